@@ -0,0 +1,63 @@
+package org.apereo.portal.start.shell
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/**
+ * A dataExport archive:  a zip file with the exported entities of each type under a folder named
+ * after the type, and an index (INDEX_ENTRY) with one tab-separated line per entity file:  its
+ * path in the archive, type, size and SHA-256.  The index lets dataImport extract only some types.
+ */
+class DataExportArchive {
+
+    static final String INDEX_ENTRY = 'export-index.tsv'
+    static final String INDEX_HEADER = 'path\ttype\tsize\tsha256'
+
+    /**
+     * @return the portal shell script that exports the given types (all exportable types if empty)
+     * on the given number of threads into the archive
+     */
+    static String createExportScript(File archiveFile, File stagingDir, Collection<String> types, int threads, String logDir) {
+        String template = DataExportArchive.getResourceAsStream('dataExportArchive.groovy.template').getText('UTF-8')
+        return template
+                .replace('@@archive@@', PortalShellInvoker.createGroovySafePath(archiveFile.absolutePath))
+                .replace('@@stagingDir@@', PortalShellInvoker.createGroovySafePath(stagingDir.absolutePath))
+                .replace('@@logDir@@', PortalShellInvoker.createGroovySafePath(logDir))
+                .replace('@@threads@@', String.valueOf(Math.max(1, threads)))
+                .replace('@@types@@', types.join(','))
+                .replace('@@indexHeader@@', INDEX_HEADER.replace('\t', '\\t'))
+                .replace('@@indexEntry@@', INDEX_ENTRY)
+    }
+
+    /**
+     * Extracts the entity files of the given types from the archive, using its index.
+     *
+     * @return the number of files extracted
+     */
+    static int extract(File archiveFile, Collection<String> types, File targetDir) {
+        int count = 0
+        new ZipFile(archiveFile).withCloseable { ZipFile zip ->
+            ZipEntry indexEntry = zip.getEntry(INDEX_ENTRY)
+            if (indexEntry == null) {
+                throw new IllegalArgumentException("${archiveFile} is not a dataExport archive;  it has no ${INDEX_ENTRY}")
+            }
+            zip.getInputStream(indexEntry).getText('UTF-8').eachLine { String line, int lineNumber ->
+                String[] fields = line.split('\t')
+                if (lineNumber == 0 || fields.length < 2 || !types.contains(fields[1])) {
+                    return
+                }
+                File targetFile = new File(targetDir, fields[0])
+                if (!targetFile.canonicalPath.startsWith(targetDir.canonicalPath + File.separator)) {
+                    throw new IllegalArgumentException("Invalid entry in ${archiveFile}:  ${fields[0]}")
+                }
+                targetFile.parentFile.mkdirs()
+                zip.getInputStream(zip.getEntry(fields[0])).withCloseable { input ->
+                    targetFile.withOutputStream { it << input }
+                }
+                count++
+            }
+        }
+        return count
+    }
+
+}
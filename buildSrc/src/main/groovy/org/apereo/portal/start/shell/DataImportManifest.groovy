@@ -0,0 +1,110 @@
+package org.apereo.portal.start.shell
+
+import java.security.MessageDigest
+
+/**
+ * Remembers the SHA-256 of every entity file imported into the portal database, so that an
+ * incremental dataImport only imports the files that were added or changed since.  The manifest is
+ * a properties file of absolute path to content hash.
+ */
+class DataImportManifest {
+
+    /**
+     * Entity types in the order they can be imported:  groups need entity types, portlets need
+     * portlet types and groups (for categories), layouts need users, portlets and fragments.  Files
+     * of any other type are imported last.
+     */
+    static final List<String> IMPORT_ORDER = [
+            'entity-type',
+            'stylesheet-descriptor',
+            'portlet-type',
+            'user',
+            'pags-group',
+            'group-membership',
+            'permission-owner',
+            'portlet-definition',
+            'permission-set',
+            'profile',
+            'fragment-definition',
+            'fragment-layout',
+            'layout',
+            'event-aggregation'
+    ]
+
+    private final File manifestFile
+    private final Properties hashes = new Properties()
+
+    DataImportManifest(File manifestFile) {
+        this.manifestFile = manifestFile
+        if (manifestFile.exists()) {
+            manifestFile.withInputStream { hashes.load(it) }
+        }
+    }
+
+    /**
+     * @return the files under the given directories whose content is not in the manifest (all of
+     * them when force is true), mapped to their new hash, in import order
+     */
+    Map<File,String> findChangedFiles(Collection<File> dirs, boolean force) {
+        Map<File,String> changed = [:]
+        dirs.each { dir ->
+            dir.eachFileRecurse(groovy.io.FileType.FILES) { file ->
+                if (file.name.endsWith('.xml')) {
+                    String hash = sha256(file)
+                    if (force || hashes.getProperty(file.absolutePath) != hash) {
+                        changed[file] = hash
+                    }
+                }
+            }
+        }
+        return changed.sort { a, b ->
+            importRank(a.key) <=> importRank(b.key) ?: a.key.absolutePath <=> b.key.absolutePath
+        }
+    }
+
+    /** @return manifest entries under the given directories whose file no longer exists */
+    List<String> findRemovedFiles(Collection<File> dirs) {
+        List<String> dirPaths = dirs.collect { it.absolutePath + File.separator }
+        return hashes.stringPropertyNames().findAll { path ->
+            dirPaths.any { path.startsWith(it) } && !new File(path).exists()
+        }.sort()
+    }
+
+    void record(Map<File,String> importedFiles) {
+        importedFiles.each { file, hash ->
+            hashes.setProperty(file.absolutePath, hash)
+        }
+    }
+
+    void forget(Collection<String> paths) {
+        paths.each { hashes.remove(it) }
+    }
+
+    void save() {
+        manifestFile.parentFile.mkdirs()
+        manifestFile.withOutputStream { hashes.store(it, 'Entity files imported by dataImport') }
+    }
+
+    /**
+     * The type is taken from the file name (e.g. Staff.group-membership.xml) or, failing that,
+     * from the directory (e.g. group_membership/Staff.xml).
+     */
+    static int importRank(File file) {
+        String name = file.name.toLowerCase()
+        String dir = file.parentFile.name.toLowerCase().replace('_', '-')
+        int rank = IMPORT_ORDER.findIndexOf { name.endsWith(".${it}.xml") }
+        if (rank < 0) {
+            rank = IMPORT_ORDER.indexOf(dir)
+        }
+        return rank < 0 ? IMPORT_ORDER.size() : rank
+    }
+
+    private static String sha256(File file) {
+        MessageDigest sha256 = MessageDigest.getInstance('SHA-256')
+        file.eachByte(65536) { byte[] buffer, int length ->
+            sha256.update(buffer, 0, length)
+        }
+        return sha256.digest().encodeHex().toString()
+    }
+
+}
@@ -1,23 +1,35 @@
 package org.apereo.portal.start.shell
 
+import java.security.MessageDigest
+import org.gradle.api.GradleException
 import org.gradle.api.Project
 
 /**
  * This class knows how to invoke org.apereo.portal.shell.PortalShell within the overlays:uPortal
  * project.  (It can't do anything in any other project.)
+ *
+ * Scripts run in the portal shell daemon (see PortalShellDaemon) when one was started with the
+ * dataShellStart task for the current classpath;  otherwise each script forks a new JVM.
  */
 class PortalShellInvoker {
 
+    static final String LIBS_STAMP_FILE_NAME = '.shell-libs.stamp'
+
     void invoke(Project project, String scriptLocation, String... args) {
-        File serverBase = project.rootProject.file(project.rootProject.ext['buildProperties'].getProperty('server.base'))
-        File deployDir = new File (serverBase, "webapps/${project.name}")
+        String classpathStamp = prepareClasspath(project)
 
-        File libsDir = project.rootProject.file(project.rootProject.getProperty('libsDir'))
-        libsDir.mkdirs()
-        project.configurations.shell.files.each {
-            project.ant.copy(todir: libsDir, file: it.absolutePath)
+        List<String> shellArgs = ['-s', scriptLocation]
+        shellArgs.addAll(args)
+        Integer status = runInDaemon(project, classpathStamp, PortalShellDaemon.COMMAND_RUN, shellArgs)
+        if (status != null) {
+            if (status != 0) {
+                throw new GradleException("Portal shell script ${scriptLocation} failed in the portal shell daemon")
+            }
+            return
         }
 
+        File deployDir = getDeployDir(project)
+        File libsDir = getLibsDir(project)
         project.ant.setLifecycleLogLevel('INFO')
         project.ant.java(fork: true, failonerror: true, dir: project.rootProject.projectDir, classname: 'org.apereo.portal.shell.PortalShell') {
             classpath {
@@ -28,16 +40,202 @@ class PortalShellInvoker {
             sysproperty(key: 'portal.home', value: project.rootProject.ext['buildProperties'].getProperty('portal.home'))
             sysproperty(key: 'logback.configurationFile', value: 'command-line.logback.xml')
             sysproperty(key: 'java.awt.headless', value: 'true')
-            arg(value: '-s')
-            arg(value: scriptLocation)
-            args.each {
+            shellArgs.each {
                 arg(value: it)
             }
         }
     }
 
+    /**
+     * Starts the portal shell daemon, unless one is already running for the current classpath, and
+     * runs the given warm-up script in it so that the portal context is started up front.
+     */
+    void startDaemon(Project project, String warmUpScriptLocation) {
+        String classpathStamp = prepareClasspath(project)
+        if (runInDaemon(project, classpathStamp, PortalShellDaemon.COMMAND_PING, []) != null) {
+            project.logger.lifecycle('The portal shell daemon is already running')
+            return
+        }
+
+        File stateFile = getDaemonStateFile(project)
+        stateFile.delete()
+        File logFile = new File(stateFile.parentFile, 'daemon.log')
+        logFile.parentFile.mkdirs()
+
+        File deployDir = getDeployDir(project)
+        File libsDir = getLibsDir(project)
+        File daemonLocation = new File(PortalShellDaemon.protectionDomain.codeSource.location.toURI())
+        String classpath = [
+                "${deployDir}/WEB-INF/classes",
+                "${deployDir}/WEB-INF/lib/*",
+                "${libsDir}/*",
+                daemonLocation.absolutePath
+        ].join(File.pathSeparator)
+        String idleMinutes = project.rootProject.ext['buildProperties'].getProperty('shell.daemon.idle.minutes') ?: '60'
+
+        List<String> command = [
+                new File(System.getProperty('java.home'), 'bin/java').absolutePath,
+                '-cp', classpath,
+                "-Dportal.home=${project.rootProject.ext['buildProperties'].getProperty('portal.home')}".toString(),
+                '-Dlogback.configurationFile=command-line.logback.xml',
+                '-Djava.awt.headless=true',
+                PortalShellDaemon.name,
+                stateFile.absolutePath,
+                classpathStamp,
+                idleMinutes
+        ]
+        Process process = new ProcessBuilder(command)
+                .directory(project.rootProject.projectDir)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+                .start()
+
+        long deadline = System.currentTimeMillis() + 60000
+        while (!stateFile.exists()) {
+            if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                process.destroy()
+                throw new GradleException("The portal shell daemon did not start;  see ${logFile}")
+            }
+            Thread.sleep(100)
+        }
+
+        project.logger.lifecycle("Started the portal shell daemon (idle timeout ${idleMinutes} minutes);  starting the portal context")
+        long start = System.currentTimeMillis()
+        Integer status = runInDaemon(project, classpathStamp, PortalShellDaemon.COMMAND_RUN, ['-s', warmUpScriptLocation])
+        if (status != 0) {
+            stopDaemon(project)
+            throw new GradleException("The portal shell daemon failed to start the portal context;  see ${logFile}")
+        }
+        project.logger.lifecycle("The portal shell daemon is ready (${System.currentTimeMillis() - start}ms)")
+    }
+
+    void stopDaemon(Project project) {
+        if (runInDaemon(project, null, PortalShellDaemon.COMMAND_STOP, []) != null) {
+            project.logger.lifecycle('Stopped the portal shell daemon')
+        }
+    }
+
     static String createGroovySafePath(String rawPath) {
         return rawPath.replaceAll('\\\\', '/')
     }
 
+    /**
+     * Copies the shell libraries into libsDir, unless they are unchanged since the last copy, and
+     * returns a stamp of the whole portal shell classpath:  a daemon started for an older stamp
+     * must not run scripts against a newly deployed portal.
+     */
+    private String prepareClasspath(Project project) {
+        File libsDir = getLibsDir(project)
+        libsDir.mkdirs()
+
+        Set<File> shellFiles = project.configurations.shell.files
+        String libsStamp = stamp(shellFiles)
+        File libsStampFile = new File(libsDir, LIBS_STAMP_FILE_NAME)
+        boolean libsCurrent = libsStampFile.exists() && libsStampFile.text == libsStamp &&
+                shellFiles.every { new File(libsDir, it.name).length() == it.length() }
+        if (!libsCurrent) {
+            shellFiles.each {
+                project.ant.copy(todir: libsDir, file: it.absolutePath)
+            }
+            libsStampFile.text = libsStamp
+        }
+
+        List<File> deployedFiles = []
+        File webInfDir = new File(getDeployDir(project), 'WEB-INF')
+        if (webInfDir.isDirectory()) {
+            webInfDir.eachFileRecurse(groovy.io.FileType.FILES) { deployedFiles << it }
+        }
+        return stamp([libsStamp] + deployedFiles.sort())
+    }
+
+    /** SHA-1 of the path, size and modification time of each file (or of the strings as given). */
+    private static String stamp(Collection<?> items) {
+        MessageDigest sha1 = MessageDigest.getInstance('SHA-1')
+        items.each {
+            String entry = it instanceof File ? "${it.absolutePath}|${it.length()}|${it.lastModified()}" : it.toString()
+            sha1.update(entry.getBytes('UTF-8'))
+            sha1.update((byte) 10)
+        }
+        return sha1.digest().encodeHex().toString()
+    }
+
+    /**
+     * Sends the command to the running daemon and relays its output.
+     *
+     * @param classpathStamp expected stamp of the daemon, or null to accept any daemon
+     * @return the exit status, or null if no (suitable) daemon is running
+     */
+    private Integer runInDaemon(Project project, String classpathStamp, String command, List<String> args) {
+        File stateFile = getDaemonStateFile(project)
+        if (!stateFile.exists()) {
+            return null
+        }
+        Properties state = new Properties()
+        stateFile.withInputStream { state.load(it) }
+
+        if (classpathStamp != null && state.getProperty('stamp') != classpathStamp) {
+            project.logger.lifecycle('The portal shell classpath changed since the portal shell daemon started;  stopping it')
+            stopDaemon(project)
+            return null
+        }
+
+        Socket socket
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), state.getProperty('port') as int)
+        } catch (IOException e) {
+            project.logger.info("The portal shell daemon is not running:  ${e}")
+            stateFile.delete()
+            return null
+        }
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.outputStream))
+            out.writeUTF(state.getProperty('token'))
+            out.writeUTF(command)
+            out.writeInt(args.size())
+            args.each { out.writeUTF(it) }
+            out.flush()
+
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.inputStream))
+            while (true) {
+                byte type = input.readByte()
+                if (type == PortalShellDaemon.FRAME_EXIT) {
+                    int status = input.readInt()
+                    String message = input.readUTF()
+                    if (status != 0) {
+                        project.logger.error("Portal shell daemon:  ${message}")
+                    }
+                    return status
+                }
+                byte[] bytes = new byte[input.readInt()]
+                input.readFully(bytes)
+                (type == PortalShellDaemon.FRAME_ERR ? System.err : System.out).write(bytes)
+            }
+        } catch (IOException e) {
+            // EOFException included:  the daemon died (or was killed) before answering
+            if (command != PortalShellDaemon.COMMAND_RUN) {
+                project.logger.info("The portal shell daemon did not answer ${command}:  ${e}")
+                return null
+            }
+            File logFile = new File(getDaemonStateFile(project).parentFile, 'daemon.log')
+            throw new GradleException("The portal shell daemon closed the connection before the script finished;  see ${logFile}", e)
+        } finally {
+            System.out.flush()
+            socket.close()
+        }
+    }
+
+    private static File getDeployDir(Project project) {
+        File serverBase = project.rootProject.file(project.rootProject.ext['buildProperties'].getProperty('server.base'))
+        return new File (serverBase, "webapps/${project.name}")
+    }
+
+    private static File getLibsDir(Project project) {
+        return project.rootProject.file(project.rootProject.getProperty('libsDir'))
+    }
+
+    private static File getDaemonStateFile(Project project) {
+        return new File(project.buildDir, 'shell/daemon.properties')
+    }
+
 }
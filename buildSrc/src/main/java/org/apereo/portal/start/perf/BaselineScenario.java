@@ -0,0 +1,221 @@
+package org.apereo.portal.start.perf;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The requests of buildSrc/src/test/perf/baseline.jmx, in the same order, with the same assertions
+ * and labelled with the names of its samplers, so that results compare with JMeter runs.  Think
+ * time follows each test fragment as in the JMX, except for the last one:  sessions end there rather
+ * than loop, since new ones arrive at a set rate, so the final think time would only hold a slot.
+ */
+class BaselineScenario {
+
+    static final String LOGIN = "UI - Login";
+    static final String AUTH_TOKEN = "API - Gather AuthToken";
+    static final String PEOPLE_SEARCH = "API - People search";
+    static final String NOTIFICATIONS = "API - GET notifications";
+    static final String LAYOUT = "API - GET layout";
+    static final String ANNOUNCEMENTS = "UI - View Announcements";
+    static final String ESUP_MAXIMIZED = "UI - View ESUP FM - Maximized";
+    static final String ESUP_FILE_TREE = "UI - View ESUP FM - htmlFileTreeURL";
+    static final String ESUP_FILE_CHILDREN = "UI - View ESUP FM - fileChildrenURL";
+
+    static final List<String> STEPS =
+            Collections.unmodifiableList(
+                    Arrays.asList(
+                            LOGIN,
+                            AUTH_TOKEN,
+                            PEOPLE_SEARCH,
+                            NOTIFICATIONS,
+                            LAYOUT,
+                            ANNOUNCEMENTS,
+                            ESUP_MAXIMIZED,
+                            ESUP_FILE_TREE,
+                            ESUP_FILE_CHILDREN));
+
+    private static final Pattern HTML_FILE_TREE_URL = Pattern.compile("htmlFileTreeURL = '(.+)'");
+    private static final Pattern FILE_CHILDREN_URL = Pattern.compile("fileChildrenURL = '(.+)'");
+
+    /** Records each request of a session. */
+    interface Sampler {
+
+        /**
+         * Sends the request and checks the response is a 200 containing all the expected strings.
+         *
+         * @return the response, or null if the request failed or an assertion did not hold
+         */
+        LoadSession.Response sample(
+                String label,
+                LoadSession session,
+                String url,
+                String form,
+                boolean withAuthToken,
+                String... expected);
+
+        /** Records a request that could not be sent because an earlier one failed. */
+        void skip(String label, String reason);
+    }
+
+    private final LoadSettings settings;
+    private final Sampler sampler;
+    private final String portalUrl;
+
+    BaselineScenario(LoadSettings settings, Sampler sampler) {
+        this.settings = settings;
+        this.sampler = sampler;
+        this.portalUrl = settings.getServerUrl() + settings.getContextPath();
+    }
+
+    void run(String username, String password) throws InterruptedException {
+        final LoadSession session = new LoadSession(this.settings.getTimeoutMillis());
+
+        final LoadSession.Response login =
+                this.sampler.sample(
+                        LOGIN,
+                        session,
+                        this.portalUrl
+                                + "/Login?userName="
+                                + encode(username)
+                                + "&password="
+                                + encode(password),
+                        null,
+                        false,
+                        "customizeOptionsWrapper");
+        if (login == null) {
+            // The remaining steps would all fail the same way as anonymous requests
+            for (String step : STEPS.subList(1, STEPS.size())) {
+                this.sampler.skip(step, "Login failed");
+            }
+            return;
+        }
+        thinkTime();
+
+        final LoadSession.Response token =
+                this.sampler.sample(
+                        AUTH_TOKEN, session, this.portalUrl + "/api/v5-1/userinfo", null, false);
+        if (token != null) {
+            session.setAuthToken(token.body.trim());
+        }
+        thinkTime();
+
+        this.sampler.sample(
+                PEOPLE_SEARCH,
+                session,
+                this.portalUrl + "/api/v5-0/portal/search?q=admin&type=people",
+                null,
+                true,
+                "{\"people\":[{\"",
+                "Portal Administrator");
+        thinkTime();
+
+        this.sampler.sample(
+                NOTIFICATIONS,
+                session,
+                this.settings.getServerUrl() + "/NotificationPortlet/api/v2/notifications",
+                null,
+                true,
+                "[{\"",
+                "Room Available");
+        thinkTime();
+
+        this.sampler.sample(
+                LAYOUT,
+                session,
+                this.portalUrl + "/api/v4-3/dlm/layout.json",
+                null,
+                true,
+                "DEFAULT_TABGROUP",
+                "\"user\": \"");
+        thinkTime();
+
+        this.sampler.sample(
+                ANNOUNCEMENTS,
+                session,
+                this.portalUrl + "/f/testing/p/announcements.n3/max/render.uP?pCp",
+                null,
+                false,
+                "My Subscriptions");
+        thinkTime();
+
+        final LoadSession.Response fileManager =
+                this.sampler.sample(
+                        ESUP_MAXIMIZED,
+                        session,
+                        this.portalUrl
+                                + "/f/welcome/p/esup-filemanager-demo.u28l1n14/max/render.uP?pCp",
+                        null,
+                        false,
+                        "My Drives");
+        final String fileTreeUrl = extract(fileManager, HTML_FILE_TREE_URL);
+        final String fileChildrenUrl = extract(fileManager, FILE_CHILDREN_URL);
+        if (fileTreeUrl == null) {
+            this.sampler.skip(ESUP_FILE_TREE, "htmlFileTreeURL not found");
+        } else {
+            this.sampler.sample(
+                    ESUP_FILE_TREE,
+                    session,
+                    fileTreeUrl,
+                    "dir=path_RlM6&sortField=titleAsc",
+                    false,
+                    "newFileOrFolderSubmit");
+        }
+        if (fileChildrenUrl == null) {
+            this.sampler.skip(ESUP_FILE_CHILDREN, "fileChildrenURL not found");
+        } else {
+            this.sampler.sample(
+                    ESUP_FILE_CHILDREN,
+                    session,
+                    fileChildrenUrl,
+                    "dir=path_RlM6&hierarchy=all",
+                    false,
+                    "[{\"",
+                    "/esup-filemanager/img/drives/drive_user.png");
+        }
+    }
+
+    /** Same as JMeter's Gaussian Random Timer:  constant + |gaussian| * deviation. */
+    private void thinkTime() throws InterruptedException {
+        final long millis =
+                this.settings.getThinkTimeConstantMillis()
+                        + Math.round(
+                                Math.abs(ThreadLocalRandom.current().nextGaussian())
+                                        * this.settings.getThinkTimeDeviationMillis());
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    /** @return the (server relative) URL captured by the pattern, made absolute */
+    private String extract(LoadSession.Response response, Pattern pattern) {
+        if (response == null) {
+            return null;
+        }
+        final Matcher matcher = pattern.matcher(response.body);
+        if (!matcher.find()) {
+            return null;
+        }
+        try {
+            return new URL(new URL(this.settings.getServerUrl() + "/"), matcher.group(1))
+                    .toString();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
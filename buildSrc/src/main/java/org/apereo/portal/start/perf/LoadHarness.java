@@ -0,0 +1,464 @@
+package org.apereo.portal.start.perf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+/**
+ * Replays the baseline.jmx scenario as an open workload:  sessions start on a schedule (Poisson or
+ * evenly spaced arrivals, ramping up linearly to the arrival rate) whether or not earlier sessions
+ * have finished, so a slow portal shows up as growing latencies rather than as fewer requests.
+ * Each session runs on its own virtual thread on Java 21 and later, on a pooled platform thread
+ * otherwise.
+ *
+ * <p>Latencies are recorded per step in HdrHistograms, together with the lag between the scheduled
+ * and the actual start of each session, which should stay near zero;  if it does not, the harness
+ * (not the portal) is the bottleneck.  Each request is also written to a JMeter compatible JTL
+ * file.
+ *
+ * <p>Usage:  LoadHarness &lt;properties file&gt; &lt;population csv&gt; &lt;output directory&gt;
+ */
+public class LoadHarness implements BaselineScenario.Sampler {
+
+    public static final String SESSION_START_LAG = "Session start lag";
+
+    static final String JTL_FILE = "baseline.jtl";
+    static final String HISTOGRAM_LOG_FILE = "baseline.hlog";
+    static final String SUMMARY_FILE = "summary.csv";
+
+    private static final String JTL_HEADER =
+            "timeStamp,elapsed,label,responseCode,responseMessage,threadName,success,failureMessage,bytes,allThreads";
+
+    private final LoadSettings settings;
+    private final List<String[]> users;
+    private final File outputDir;
+
+    private final Map<String, StepStatistics> steps = new LinkedHashMap<>();
+    private final StepStatistics sessionStartLag = new StepStatistics(SESSION_START_LAG);
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong startedSessions = new AtomicLong();
+    private final AtomicLong droppedSessions = new AtomicLong();
+    private Writer jtl;
+    private long startTimeMillis;
+    private long endTimeMillis;
+
+    /**
+     * @param users username and password of each test user;  sessions take them in turn
+     * @param outputDir where to write the JTL, histogram log and summary, or null for none
+     */
+    public LoadHarness(LoadSettings settings, List<String[]> users, File outputDir) {
+        if (users.isEmpty()) {
+            throw new IllegalArgumentException("No test users");
+        }
+        this.settings = settings;
+        this.users = users;
+        this.outputDir = outputDir;
+        for (String step : BaselineScenario.STEPS) {
+            this.steps.put(step, new StepStatistics(step));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println(
+                    "Usage:  LoadHarness <properties file> <population csv> <output directory>");
+            System.exit(2);
+        }
+        final LoadSettings settings = LoadSettings.load(new File(args[0]));
+        final List<String[]> users = readPopulation(new File(args[1]));
+        final File outputDir = new File(args[2]);
+
+        System.out.println(
+                String.format(
+                        Locale.ROOT,
+                        "Starting %s sessions/s (%s arrivals, %ds ramp up) for %ds against %s%s with %d users",
+                        settings.getArrivalRate(),
+                        settings.isPoissonArrivals() ? "Poisson" : "constant",
+                        settings.getRampUpSeconds(),
+                        settings.getDurationSeconds(),
+                        settings.getServerUrl(),
+                        settings.getContextPath(),
+                        users.size()));
+        final LoadHarness harness = new LoadHarness(settings, users, outputDir);
+        harness.run();
+        harness.printSummary(System.out);
+        System.out.println("Results written to " + outputDir.getAbsolutePath());
+    }
+
+    /** @return username and password of each line of a population file (see perfGenTestData) */
+    public static List<String[]> readPopulation(File populationFile) throws IOException {
+        final List<String[]> users = new ArrayList<>();
+        final BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(
+                                new FileInputStream(populationFile), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int comma = line.indexOf(',');
+                if (comma > 0) {
+                    users.add(new String[] {line.substring(0, comma), line.substring(comma + 1)});
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return users;
+    }
+
+    /** Starts sessions until the duration has elapsed, then waits for them to finish. */
+    public void run() throws IOException, InterruptedException {
+        // Keep-alive connections are pooled per host;  the default of 5 would close most of them
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty(
+                    "http.maxConnections",
+                    String.valueOf(Math.max(5, Math.min(this.settings.getMaxSessions(), 1000))));
+        }
+        if (this.outputDir != null) {
+            this.outputDir.mkdirs();
+            this.jtl =
+                    new BufferedWriter(
+                            new OutputStreamWriter(
+                                    new FileOutputStream(new File(this.outputDir, JTL_FILE)),
+                                    StandardCharsets.UTF_8));
+            this.jtl.write(JTL_HEADER);
+            this.jtl.write('\n');
+        }
+
+        final BaselineScenario scenario = new BaselineScenario(this.settings, this);
+        final ExecutorService executor = newSessionExecutor();
+        final Random random = new Random(this.settings.getSeed());
+        this.startTimeMillis = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(this.settings.getDurationSeconds());
+        long userIndex = 0;
+        try {
+            for (double arrivals = 0; ; arrivals += nextInterArrival(random)) {
+                final long scheduled = start + (long) (arrivalTime(arrivals) * 1e9);
+                if (scheduled >= end) {
+                    break;
+                }
+                long wait;
+                while ((wait = scheduled - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (this.activeSessions.get() >= this.settings.getMaxSessions()) {
+                    this.droppedSessions.incrementAndGet();
+                    continue;
+                }
+                this.activeSessions.incrementAndGet();
+                final long sessionNumber = this.startedSessions.incrementAndGet();
+                final String[] user = this.users.get((int) (userIndex++ % this.users.size()));
+                executor.execute(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                // Labels the session's samples in the JTL
+                                Thread.currentThread().setName("session-" + sessionNumber);
+                                try {
+                                    sessionStartLag.record(System.nanoTime() - scheduled, true);
+                                    scenario.run(user[0], user[1]);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                } finally {
+                                    activeSessions.decrementAndGet();
+                                }
+                            }
+                        });
+            }
+        } finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(this.settings.getDrainSeconds(), TimeUnit.SECONDS)) {
+                System.err.println(
+                        this.activeSessions.get()
+                                + " sessions still running after "
+                                + this.settings.getDrainSeconds()
+                                + "s;  interrupting them");
+                executor.shutdownNow();
+                executor.awaitTermination(this.settings.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            }
+            this.endTimeMillis = System.currentTimeMillis();
+            if (this.jtl != null) {
+                synchronized (this.jtl) {
+                    this.jtl.close();
+                }
+            }
+        }
+        if (this.outputDir != null) {
+            writeHistogramLog(new File(this.outputDir, HISTOGRAM_LOG_FILE));
+            final PrintStream summary =
+                    new PrintStream(
+                            new FileOutputStream(new File(this.outputDir, SUMMARY_FILE)),
+                            false,
+                            "UTF-8");
+            try {
+                writeSummaryCsv(summary);
+            } finally {
+                summary.close();
+            }
+        }
+    }
+
+    /**
+     * Inverse of the expected number of arrivals by time t, which grows as rate * t^2 / (2 * ramp)
+     * during the ramp up and linearly after.
+     *
+     * @return seconds from the start at which the given (fractional) number of sessions is reached
+     */
+    double arrivalTime(double arrivals) {
+        final double rate = this.settings.getArrivalRate();
+        final double rampUp = this.settings.getRampUpSeconds();
+        final double rampUpArrivals = rate * rampUp / 2;
+        if (arrivals < rampUpArrivals) {
+            return Math.sqrt(2 * rampUp * arrivals / rate);
+        }
+        return rampUp + (arrivals - rampUpArrivals) / rate;
+    }
+
+    /** @return arrivals until the next session:  exponentially distributed for Poisson arrivals */
+    private double nextInterArrival(Random random) {
+        return this.settings.isPoissonArrivals() ? -Math.log(1 - random.nextDouble()) : 1;
+    }
+
+    @Override
+    public LoadSession.Response sample(
+            String label,
+            LoadSession session,
+            String url,
+            String form,
+            boolean withAuthToken,
+            String... expected) {
+        final long timeStamp = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        LoadSession.Response response = null;
+        String failure = null;
+        try {
+            response = session.request(url, form, withAuthToken);
+            if (response.status != 200) {
+                failure = "Response code was " + response.status;
+            } else {
+                for (String text : expected) {
+                    if (!response.body.contains(text)) {
+                        failure = "Response does not contain " + text;
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failure = e.toString();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        this.steps.get(label).record(elapsed, failure == null);
+        writeSample(
+                timeStamp,
+                TimeUnit.NANOSECONDS.toMillis(elapsed),
+                label,
+                response == null ? "" : String.valueOf(response.status),
+                failure,
+                response == null ? 0 : response.body.length());
+        return failure == null ? response : null;
+    }
+
+    @Override
+    public void skip(String label, String reason) {
+        this.steps.get(label).recordError();
+        writeSample(System.currentTimeMillis(), 0, label, "", "Skipped:  " + reason, 0);
+    }
+
+    private void writeSample(
+            long timeStamp,
+            long elapsedMillis,
+            String label,
+            String responseCode,
+            String failure,
+            int bytes) {
+        if (this.jtl == null) {
+            return;
+        }
+        final String line =
+                timeStamp
+                        + ","
+                        + elapsedMillis
+                        + ","
+                        + csv(label)
+                        + ","
+                        + responseCode
+                        + ",,"
+                        + csv(Thread.currentThread().getName())
+                        + ","
+                        + (failure == null)
+                        + ","
+                        + (failure == null ? "" : csv(failure))
+                        + ","
+                        + bytes
+                        + ","
+                        + this.activeSessions.get()
+                        + "\n";
+        synchronized (this.jtl) {
+            try {
+                this.jtl.write(line);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write " + JTL_FILE, e);
+            }
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"").replace('\n', ' ') + '"';
+    }
+
+    private void writeHistogramLog(File file) throws IOException {
+        final HistogramLogWriter writer = new HistogramLogWriter(file);
+        try {
+            writer.outputComment("Latencies in microseconds of the baseline scenario steps");
+            writer.outputLogFormatVersion();
+            writer.outputStartTime(this.startTimeMillis);
+            writer.outputLegend();
+            for (StepStatistics statistics : getAllStatistics()) {
+                final Histogram histogram = statistics.getLatencies();
+                histogram.setStartTimeStamp(this.startTimeMillis);
+                histogram.setEndTimeStamp(this.endTimeMillis);
+                histogram.setTag(statistics.getLabel().replace(',', ' '));
+                writer.outputIntervalHistogram(histogram);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeSummaryCsv(PrintStream out) {
+        out.println("label,count,errors,p50,p90,p99,p99.9,max");
+        for (StepStatistics statistics : getAllStatistics()) {
+            final Histogram latencies = statistics.getLatencies();
+            out.println(
+                    String.format(
+                            Locale.ROOT,
+                            "%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f",
+                            csv(statistics.getLabel()),
+                            statistics.getCount(),
+                            statistics.getErrorCount(),
+                            millis(latencies.getValueAtPercentile(50)),
+                            millis(latencies.getValueAtPercentile(90)),
+                            millis(latencies.getValueAtPercentile(99)),
+                            millis(latencies.getValueAtPercentile(99.9)),
+                            millis(latencies.getMaxValue())));
+        }
+    }
+
+    public void printSummary(PrintStream out) {
+        out.println(
+                String.format(
+                        Locale.ROOT,
+                        "%-40s %8s %7s %9s %9s %9s %9s %9s",
+                        "Step (ms)",
+                        "count",
+                        "errors",
+                        "p50",
+                        "p90",
+                        "p99",
+                        "p99.9",
+                        "max"));
+        for (StepStatistics statistics : getAllStatistics()) {
+            final Histogram latencies = statistics.getLatencies();
+            out.println(
+                    String.format(
+                            Locale.ROOT,
+                            "%-40s %8d %7d %9.1f %9.1f %9.1f %9.1f %9.1f",
+                            statistics.getLabel(),
+                            statistics.getCount(),
+                            statistics.getErrorCount(),
+                            millis(latencies.getValueAtPercentile(50)),
+                            millis(latencies.getValueAtPercentile(90)),
+                            millis(latencies.getValueAtPercentile(99)),
+                            millis(latencies.getValueAtPercentile(99.9)),
+                            millis(latencies.getMaxValue())));
+        }
+        out.println(
+                "Sessions started:  "
+                        + this.startedSessions.get()
+                        + ", dropped at load.max.sessions:  "
+                        + this.droppedSessions.get());
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    /** @return the statistics of each step, in scenario order */
+    public Map<String, StepStatistics> getStepStatistics() {
+        return Collections.unmodifiableMap(this.steps);
+    }
+
+    public StepStatistics getSessionStartLag() {
+        return this.sessionStartLag;
+    }
+
+    private List<StepStatistics> getAllStatistics() {
+        final List<StepStatistics> all = new ArrayList<>(this.steps.values());
+        all.add(this.sessionStartLag);
+        return all;
+    }
+
+    public long getStartedSessions() {
+        return this.startedSessions.get();
+    }
+
+    public long getDroppedSessions() {
+        return this.droppedSessions.get();
+    }
+
+    /**
+     * Virtual threads when running on Java 21 or later (looked up reflectively since the build
+     * targets Java 8), otherwise an unbounded pool:  the number of sessions in progress is bounded by
+     * load.max.sessions, not by the executor.
+     */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newCachedThreadPool(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "load-session-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+    }
+}
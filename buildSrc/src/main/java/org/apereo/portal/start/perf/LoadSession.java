@@ -0,0 +1,156 @@
+package org.apereo.portal.start.perf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP client state of one simulated user:  its cookies (the portal session) and the API token.
+ * Cookies are kept per session rather than in the JVM wide CookieHandler, so that concurrent
+ * sessions stay independent.  Redirects are followed here so that cookies set along the way (e.g.
+ * by the login redirect) are kept.
+ */
+class LoadSession {
+
+    private static final int MAX_REDIRECTS = 10;
+
+    private final int timeoutMillis;
+    private final Map<String, String> cookies = new HashMap<>();
+    private String authToken;
+
+    LoadSession(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    String getAuthToken() {
+        return this.authToken;
+    }
+
+    void setAuthToken(String authToken) {
+        this.authToken = authToken;
+    }
+
+    /**
+     * @param form URL encoded form to POST, or null for a GET
+     * @param withAuthToken whether to send the API token as a bearer token
+     */
+    Response request(String url, String form, boolean withAuthToken) throws IOException {
+        String method = form == null ? "GET" : "POST";
+        for (int redirects = 0; ; redirects++) {
+            final HttpURLConnection connection =
+                    (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(this.timeoutMillis);
+            connection.setReadTimeout(this.timeoutMillis);
+            connection.setRequestMethod(method);
+            if (!this.cookies.isEmpty()) {
+                connection.setRequestProperty("Cookie", getCookieHeader());
+            }
+            if (withAuthToken && this.authToken != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + this.authToken);
+            }
+            if (form != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                final OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(form.getBytes(StandardCharsets.UTF_8));
+                } finally {
+                    out.close();
+                }
+            }
+
+            // Reading the whole body lets the JDK reuse the keep-alive connection
+            final int status = connection.getResponseCode();
+            storeCookies(connection.getHeaderFields());
+            final String body = readBody(connection, status);
+
+            final String location = connection.getHeaderField("Location");
+            if (status >= 300 && status < 400 && location != null) {
+                if (redirects >= MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects for " + url);
+                }
+                url = new URL(new URL(url), location).toString();
+                if (status != 307 && status != 308) {
+                    method = "GET";
+                    form = null;
+                }
+                continue;
+            }
+            return new Response(status, body);
+        }
+    }
+
+    private String getCookieHeader() {
+        final StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, String> cookie : this.cookies.entrySet()) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        return header.toString();
+    }
+
+    private void storeCookies(Map<String, List<String>> headers) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!"Set-Cookie".equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            for (String setCookie : header.getValue()) {
+                final String[] attributes = setCookie.split(";");
+                final int equals = attributes[0].indexOf('=');
+                if (equals <= 0) {
+                    continue;
+                }
+                final String name = attributes[0].substring(0, equals).trim();
+                final String value = attributes[0].substring(equals + 1).trim();
+                boolean expired = false;
+                for (int i = 1; i < attributes.length; i++) {
+                    expired |= attributes[i].trim().equalsIgnoreCase("Max-Age=0");
+                }
+                if (expired) {
+                    this.cookies.remove(name);
+                } else {
+                    this.cookies.put(name, value);
+                }
+            }
+        }
+    }
+
+    private static String readBody(HttpURLConnection connection, int status) throws IOException {
+        final InputStream in =
+                status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                body.write(buffer, 0, length);
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
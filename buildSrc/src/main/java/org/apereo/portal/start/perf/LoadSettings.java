@@ -0,0 +1,182 @@
+package org.apereo.portal.start.perf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings of a load run, read from the same properties file as baseline.jmx
+ * (buildSrc/src/test/perf/baseline.properties).  The JMeter thread group settings (threads, loops)
+ * do not apply:  the harness starts sessions at an arrival rate instead.
+ */
+public class LoadSettings {
+
+    private String protocol = "http";
+    private String domain = "localhost";
+    private int port = 8080;
+    private String context = "uPortal";
+
+    private double arrivalRate = 1;
+    private boolean poissonArrivals = true;
+    private long rampUpSeconds = 10;
+    private long durationSeconds = 60;
+    private int maxSessions = 10000;
+
+    private long thinkTimeConstantMillis = 1000;
+    private long thinkTimeDeviationMillis = 3000;
+
+    private int timeoutMillis = 30000;
+    private long drainSeconds = 120;
+    private long seed = System.nanoTime();
+
+    public static LoadSettings load(File propertiesFile) throws IOException {
+        final Properties properties = new Properties();
+        final InputStream in = new FileInputStream(propertiesFile);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return fromProperties(properties);
+    }
+
+    public static LoadSettings fromProperties(Properties properties) {
+        final LoadSettings settings = new LoadSettings();
+        settings.protocol = properties.getProperty("uportal.protocol", settings.protocol).trim();
+        settings.domain = properties.getProperty("uportal.domain", settings.domain).trim();
+        settings.port = intProperty(properties, "uportal.port", settings.port);
+        settings.context = properties.getProperty("uportal.context", settings.context).trim();
+
+        settings.arrivalRate =
+                Double.parseDouble(
+                        properties
+                                .getProperty(
+                                        "load.arrival.rate", String.valueOf(settings.arrivalRate))
+                                .trim());
+        settings.poissonArrivals =
+                !"constant".equalsIgnoreCase(
+                        properties.getProperty("load.arrival.distribution", "poisson").trim());
+        settings.rampUpSeconds = longProperty(properties, "load.ramp.up", settings.rampUpSeconds);
+        settings.durationSeconds =
+                longProperty(properties, "load.duration.seconds", settings.durationSeconds);
+        settings.maxSessions = intProperty(properties, "load.max.sessions", settings.maxSessions);
+
+        settings.thinkTimeConstantMillis =
+                longProperty(
+                        properties,
+                        "delay.think.time.constant.ms",
+                        settings.thinkTimeConstantMillis);
+        settings.thinkTimeDeviationMillis =
+                longProperty(
+                        properties,
+                        "delay.think.time.deviation.ms",
+                        settings.thinkTimeDeviationMillis);
+
+        settings.timeoutMillis = intProperty(properties, "load.timeout.ms", settings.timeoutMillis);
+        settings.drainSeconds = longProperty(properties, "load.drain.seconds", settings.drainSeconds);
+        settings.seed = longProperty(properties, "load.seed", settings.seed);
+
+        if (settings.arrivalRate <= 0) {
+            throw new IllegalArgumentException(
+                    "load.arrival.rate must be greater than 0: " + settings.arrivalRate);
+        }
+        return settings;
+    }
+
+    private static long longProperty(Properties properties, String name, long defaultValue) {
+        final String value = properties.getProperty(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        return (int) longProperty(properties, name, defaultValue);
+    }
+
+    /** @return e.g. http://localhost:8080 */
+    public String getServerUrl() {
+        return this.protocol + "://" + this.domain + ":" + this.port;
+    }
+
+    /** @return e.g. /uPortal */
+    public String getContextPath() {
+        return this.context.isEmpty() ? "" : "/" + this.context;
+    }
+
+    /** @return sessions started per second once ramped up */
+    public double getArrivalRate() {
+        return this.arrivalRate;
+    }
+
+    public void setArrivalRate(double arrivalRate) {
+        this.arrivalRate = arrivalRate;
+    }
+
+    /** @return true for exponentially distributed gaps between sessions, false for even gaps */
+    public boolean isPoissonArrivals() {
+        return this.poissonArrivals;
+    }
+
+    public void setPoissonArrivals(boolean poissonArrivals) {
+        this.poissonArrivals = poissonArrivals;
+    }
+
+    /** @return seconds over which the arrival rate rises linearly from 0 */
+    public long getRampUpSeconds() {
+        return this.rampUpSeconds;
+    }
+
+    public void setRampUpSeconds(long rampUpSeconds) {
+        this.rampUpSeconds = rampUpSeconds;
+    }
+
+    /** @return seconds during which new sessions are started */
+    public long getDurationSeconds() {
+        return this.durationSeconds;
+    }
+
+    public void setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    /** @return most sessions in progress at once;  arrivals beyond it are dropped and counted */
+    public int getMaxSessions() {
+        return this.maxSessions;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public long getThinkTimeConstantMillis() {
+        return this.thinkTimeConstantMillis;
+    }
+
+    public long getThinkTimeDeviationMillis() {
+        return this.thinkTimeDeviationMillis;
+    }
+
+    /** Think time after each step:  constant plus |gaussian| * deviation, as JMeter's timer. */
+    public void setThinkTime(long constantMillis, long deviationMillis) {
+        this.thinkTimeConstantMillis = constantMillis;
+        this.thinkTimeDeviationMillis = deviationMillis;
+    }
+
+    public int getTimeoutMillis() {
+        return this.timeoutMillis;
+    }
+
+    /** @return seconds to wait for sessions in progress once no new sessions are started */
+    public long getDrainSeconds() {
+        return this.drainSeconds;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
@@ -0,0 +1,319 @@
+package org.apereo.portal.start.perf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Per endpoint (sampler label) latency percentiles, throughput and error rate of a perf run, read
+ * from the samples of a JTL file (JMeter CSV output, also written by LoadHarness) or from a results
+ * CSV previously written by {@link #writeCsv(File)}, which is how baselines are stored.
+ *
+ * <p>Percentiles are taken over successful samples only:  failed requests often return early and
+ * would make an endpoint look faster.  Errors are tracked by the error rate instead.
+ */
+public class PerfResults {
+
+    static final String CSV_HEADER = "label,samples,errors,errorRate,throughput,p50,p90,p95,p99,max";
+
+    private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+    /** Reads the samples of a JTL file with a header line and epoch millisecond time stamps. */
+    public static PerfResults fromJtl(File jtlFile) throws IOException {
+        final Map<String, Histogram> latencies = new LinkedHashMap<>();
+        final Map<String, long[]> counts = new LinkedHashMap<>(); // samples, errors
+        long firstStart = Long.MAX_VALUE;
+        long lastEnd = Long.MIN_VALUE;
+
+        final BufferedReader reader = newReader(jtlFile);
+        try {
+            final String header = reader.readLine();
+            if (header == null) {
+                throw new IllegalArgumentException(jtlFile + " is empty");
+            }
+            final List<String> columns = splitCsv(header);
+            final int timeStampColumn = requireColumn(jtlFile, columns, "timeStamp");
+            final int elapsedColumn = requireColumn(jtlFile, columns, "elapsed");
+            final int labelColumn = requireColumn(jtlFile, columns, "label");
+            final int successColumn = requireColumn(jtlFile, columns, "success");
+
+            String line;
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final List<String> fields = splitCsv(line);
+                if (fields.size() < columns.size()) {
+                    throw new IllegalArgumentException(
+                            jtlFile + ":" + lineNumber + " has fewer fields than the header");
+                }
+                final long timeStamp;
+                final long elapsed;
+                try {
+                    timeStamp = Long.parseLong(fields.get(timeStampColumn));
+                    elapsed = Long.parseLong(fields.get(elapsedColumn));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                            jtlFile
+                                    + ":"
+                                    + lineNumber
+                                    + " time stamp and elapsed time must be in ms"
+                                    + " (jmeter.save.saveservice.timestamp_format=ms)",
+                            e);
+                }
+                final String label = fields.get(labelColumn);
+                final boolean success = Boolean.parseBoolean(fields.get(successColumn));
+
+                long[] labelCounts = counts.get(label);
+                if (labelCounts == null) {
+                    labelCounts = new long[2];
+                    counts.put(label, labelCounts);
+                    latencies.put(label, new Histogram(3));
+                }
+                labelCounts[0]++;
+                if (success) {
+                    latencies.get(label).recordValue(Math.max(0, elapsed));
+                } else {
+                    labelCounts[1]++;
+                }
+                firstStart = Math.min(firstStart, timeStamp);
+                lastEnd = Math.max(lastEnd, timeStamp + elapsed);
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Throughput is over the whole run, so that endpoints of the same scenario compare
+        final double seconds = Math.max(1, lastEnd - firstStart) / 1000.0;
+        final PerfResults results = new PerfResults();
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            final Histogram histogram = latencies.get(entry.getKey());
+            final boolean empty = histogram.getTotalCount() == 0;
+            results.put(
+                    new Endpoint(
+                            entry.getKey(),
+                            entry.getValue()[0],
+                            entry.getValue()[1],
+                            entry.getValue()[0] / seconds,
+                            empty ? 0 : histogram.getValueAtPercentile(50),
+                            empty ? 0 : histogram.getValueAtPercentile(90),
+                            empty ? 0 : histogram.getValueAtPercentile(95),
+                            empty ? 0 : histogram.getValueAtPercentile(99),
+                            empty ? 0 : histogram.getMaxValue()));
+        }
+        return results;
+    }
+
+    /** Reads results written by {@link #writeCsv(File)}. */
+    public static PerfResults fromCsv(File csvFile) throws IOException {
+        final PerfResults results = new PerfResults();
+        final BufferedReader reader = newReader(csvFile);
+        try {
+            final String header = reader.readLine();
+            if (!CSV_HEADER.equals(header)) {
+                throw new IllegalArgumentException(
+                        csvFile + " is not a perf results file;  its header should be " + CSV_HEADER);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final List<String> fields = splitCsv(line);
+                final Endpoint endpoint =
+                        new Endpoint(
+                                fields.get(0),
+                                Long.parseLong(fields.get(1)),
+                                Long.parseLong(fields.get(2)),
+                                Double.parseDouble(fields.get(4)),
+                                Long.parseLong(fields.get(5)),
+                                Long.parseLong(fields.get(6)),
+                                Long.parseLong(fields.get(7)),
+                                Long.parseLong(fields.get(8)),
+                                Long.parseLong(fields.get(9)));
+                results.put(endpoint);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    public void writeCsv(File csvFile) throws IOException {
+        final File parent = csvFile.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final PrintStream out = new PrintStream(new FileOutputStream(csvFile), false, "UTF-8");
+        try {
+            out.print(CSV_HEADER + "\n");
+            for (Endpoint endpoint : this.endpoints.values()) {
+                out.print(
+                        String.format(
+                                Locale.ROOT,
+                                "%s,%d,%d,%.2f,%.3f,%d,%d,%d,%d,%d\n",
+                                csv(endpoint.getLabel()),
+                                endpoint.getSamples(),
+                                endpoint.getErrors(),
+                                endpoint.getErrorRate(),
+                                endpoint.getThroughput(),
+                                endpoint.getP50(),
+                                endpoint.getP90(),
+                                endpoint.getP95(),
+                                endpoint.getP99(),
+                                endpoint.getMax()));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** @return results of each endpoint, by label, in the order they first appear */
+    public Map<String, Endpoint> getEndpoints() {
+        return Collections.unmodifiableMap(this.endpoints);
+    }
+
+    void put(Endpoint endpoint) {
+        this.endpoints.put(endpoint.getLabel(), endpoint);
+    }
+
+    private static BufferedReader newReader(File file) throws IOException {
+        return new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private static int requireColumn(File file, List<String> columns, String name) {
+        final int index = columns.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException(file + " has no " + name + " column");
+        }
+        return index;
+    }
+
+    /** Splits a CSV line, with fields optionally quoted as JMeter does. */
+    static List<String> splitCsv(String line) {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /** Results of one endpoint;  latencies are in milliseconds. */
+    public static class Endpoint {
+
+        private final String label;
+        private final long samples;
+        private final long errors;
+        private final double throughput;
+        private final long p50;
+        private final long p90;
+        private final long p95;
+        private final long p99;
+        private final long max;
+
+        Endpoint(
+                String label,
+                long samples,
+                long errors,
+                double throughput,
+                long p50,
+                long p90,
+                long p95,
+                long p99,
+                long max) {
+            this.label = label;
+            this.samples = samples;
+            this.errors = errors;
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public String getLabel() {
+            return this.label;
+        }
+
+        public long getSamples() {
+            return this.samples;
+        }
+
+        public long getErrors() {
+            return this.errors;
+        }
+
+        /** @return percentage of failed samples */
+        public double getErrorRate() {
+            return this.samples == 0 ? 0 : 100.0 * this.errors / this.samples;
+        }
+
+        /** @return samples per second */
+        public double getThroughput() {
+            return this.throughput;
+        }
+
+        public long getP50() {
+            return this.p50;
+        }
+
+        public long getP90() {
+            return this.p90;
+        }
+
+        public long getP95() {
+            return this.p95;
+        }
+
+        public long getP99() {
+            return this.p99;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package org.apereo.portal.start.perf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compares the results of a perf run with a baseline, endpoint by endpoint.  The p95 and p99 of an
+ * endpoint regress when they exceed the baseline by more than a percentage plus a few
+ * milliseconds (so that fast endpoints do not fail on noise);  the error rate regresses when it
+ * rises by more than a number of percentage points.  An endpoint of the baseline that is missing
+ * from the run regresses too, unless {@link #setFailOnMissing(boolean)} is off.  Endpoints with too
+ * few samples in either run, and new endpoints, are reported but never fail the gate.
+ */
+public class RegressionGate {
+
+    private double p95TolerancePercent = 10;
+    private double p99TolerancePercent = 20;
+    private long toleranceMillis = 5;
+    private double errorRateTolerance = 1;
+    private long minSamples = 20;
+    private boolean failOnMissing = true;
+
+    /** @param percent how much slower than the baseline the p95 may get */
+    public void setP95TolerancePercent(double percent) {
+        this.p95TolerancePercent = percent;
+    }
+
+    /** @param percent how much slower than the baseline the p99 may get */
+    public void setP99TolerancePercent(double percent) {
+        this.p99TolerancePercent = percent;
+    }
+
+    /** @param millis allowed on top of the percentage tolerances */
+    public void setToleranceMillis(long millis) {
+        this.toleranceMillis = millis;
+    }
+
+    /** @param percentagePoints how much higher than the baseline the error rate may get */
+    public void setErrorRateTolerance(double percentagePoints) {
+        this.errorRateTolerance = percentagePoints;
+    }
+
+    /** @param minSamples fewest samples for an endpoint to be checked */
+    public void setMinSamples(long minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * @param failOnMissing whether an endpoint of the baseline that is not in the run is a
+     *     regression, rather than a warning.  Defaults to true
+     */
+    public void setFailOnMissing(boolean failOnMissing) {
+        this.failOnMissing = failOnMissing;
+    }
+
+    public Report compare(PerfResults baseline, PerfResults current) {
+        final Set<String> labels = new LinkedHashSet<>(baseline.getEndpoints().keySet());
+        labels.addAll(current.getEndpoints().keySet());
+
+        final List<Comparison> comparisons = new ArrayList<>();
+        for (String label : labels) {
+            final Comparison comparison =
+                    new Comparison(
+                            label,
+                            baseline.getEndpoints().get(label),
+                            current.getEndpoints().get(label));
+            if (comparison.baseline == null) {
+                comparison.warnings.add("Not in the baseline");
+            } else if (comparison.current == null) {
+                (this.failOnMissing ? comparison.regressions : comparison.warnings)
+                        .add("Not in this run");
+            } else if (comparison.baseline.getSamples() < this.minSamples
+                    || comparison.current.getSamples() < this.minSamples) {
+                comparison.warnings.add(
+                        "Fewer than " + this.minSamples + " samples;  not checked");
+            } else {
+                checkLatency(
+                        comparison,
+                        "p95",
+                        comparison.baseline.getP95(),
+                        comparison.current.getP95(),
+                        this.p95TolerancePercent);
+                checkLatency(
+                        comparison,
+                        "p99",
+                        comparison.baseline.getP99(),
+                        comparison.current.getP99(),
+                        this.p99TolerancePercent);
+                final double errorRateBudget =
+                        comparison.baseline.getErrorRate() + this.errorRateTolerance;
+                if (comparison.current.getErrorRate() > errorRateBudget) {
+                    comparison.regressions.add(
+                            String.format(
+                                    Locale.ROOT,
+                                    "error rate %.2f%% > budget %.2f%% (baseline %.2f%%)",
+                                    comparison.current.getErrorRate(),
+                                    errorRateBudget,
+                                    comparison.baseline.getErrorRate()));
+                }
+            }
+            comparisons.add(comparison);
+        }
+        return new Report(comparisons);
+    }
+
+    private void checkLatency(
+            Comparison comparison,
+            String percentile,
+            long baselineMillis,
+            long currentMillis,
+            double tolerancePercent) {
+        final long budget =
+                (long) Math.floor(baselineMillis * (1 + tolerancePercent / 100))
+                        + this.toleranceMillis;
+        if (currentMillis > budget) {
+            comparison.regressions.add(
+                    String.format(
+                            Locale.ROOT,
+                            "%s %dms > budget %dms (baseline %dms)",
+                            percentile,
+                            currentMillis,
+                            budget,
+                            baselineMillis));
+        }
+    }
+
+    /** Outcome for one endpoint. */
+    public static class Comparison {
+
+        private final String label;
+        private final PerfResults.Endpoint baseline;
+        private final PerfResults.Endpoint current;
+        private final List<String> regressions = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+
+        Comparison(String label, PerfResults.Endpoint baseline, PerfResults.Endpoint current) {
+            this.label = label;
+            this.baseline = baseline;
+            this.current = current;
+        }
+
+        public String getLabel() {
+            return this.label;
+        }
+
+        /** @return results in the baseline, or null if the endpoint is new */
+        public PerfResults.Endpoint getBaseline() {
+            return this.baseline;
+        }
+
+        /** @return results in this run, or null if the endpoint was not called */
+        public PerfResults.Endpoint getCurrent() {
+            return this.current;
+        }
+
+        public List<String> getRegressions() {
+            return Collections.unmodifiableList(this.regressions);
+        }
+
+        public List<String> getWarnings() {
+            return Collections.unmodifiableList(this.warnings);
+        }
+    }
+
+    /** Comparisons of all endpoints, in baseline order followed by new endpoints. */
+    public static class Report {
+
+        private static final String[] COLUMNS = {
+            "samples", "errorRate", "throughput", "p50", "p90", "p95", "p99"
+        };
+
+        private final List<Comparison> comparisons;
+
+        Report(List<Comparison> comparisons) {
+            this.comparisons = Collections.unmodifiableList(comparisons);
+        }
+
+        public List<Comparison> getComparisons() {
+            return this.comparisons;
+        }
+
+        public boolean hasRegressions() {
+            for (Comparison comparison : this.comparisons) {
+                if (!comparison.regressions.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** @return one "label:  problem" line per regression */
+        public List<String> getRegressionMessages() {
+            final List<String> messages = new ArrayList<>();
+            for (Comparison comparison : this.comparisons) {
+                for (String regression : comparison.regressions) {
+                    messages.add(comparison.label + ":  " + regression);
+                }
+            }
+            return messages;
+        }
+
+        public void writeJson(File file) throws IOException {
+            final PrintStream out = open(file);
+            try {
+                out.print("{\n  \"regressed\": " + hasRegressions() + ",\n  \"endpoints\": [");
+                for (int i = 0; i < this.comparisons.size(); i++) {
+                    final Comparison comparison = this.comparisons.get(i);
+                    out.print(i == 0 ? "\n" : ",\n");
+                    out.print("    {\n      \"label\": " + json(comparison.label) + ",\n");
+                    out.print("      \"baseline\": " + json(comparison.baseline) + ",\n");
+                    out.print("      \"current\": " + json(comparison.current) + ",\n");
+                    out.print("      \"regressions\": " + json(comparison.regressions) + ",\n");
+                    out.print("      \"warnings\": " + json(comparison.warnings) + "\n    }");
+                }
+                out.print("\n  ]\n}\n");
+            } finally {
+                out.close();
+            }
+        }
+
+        public void writeHtml(File file) throws IOException {
+            final PrintStream out = open(file);
+            try {
+                out.print(
+                        "<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n"
+                                + "<title>Perf regression report</title>\n<style>\n"
+                                + "body { font-family: sans-serif; }\n"
+                                + "table { border-collapse: collapse; }\n"
+                                + "th, td { border: 1px solid #ccc; padding: 4px 8px; text-align: right; }\n"
+                                + "th:first-child, td:first-child, td:last-child { text-align: left; }\n"
+                                + "tr.regressed { background: #fdd; }\n"
+                                + "tr.warning { background: #ffd; }\n"
+                                + "</style>\n</head>\n<body>\n");
+                out.print(
+                        "<h1>"
+                                + (hasRegressions() ? "Regressions found" : "No regressions")
+                                + "</h1>\n<table>\n<tr><th>Endpoint</th><th>Samples</th>"
+                                + "<th>Error rate</th><th>Throughput (/s)</th><th>p50 (ms)</th>"
+                                + "<th>p90 (ms)</th><th>p95 (ms)</th><th>p99 (ms)</th>"
+                                + "<th>Notes</th></tr>\n");
+                for (Comparison comparison : this.comparisons) {
+                    final String rowClass =
+                            !comparison.regressions.isEmpty()
+                                    ? " class=\"regressed\""
+                                    : !comparison.warnings.isEmpty() ? " class=\"warning\"" : "";
+                    final PerfResults.Endpoint b = comparison.baseline;
+                    final PerfResults.Endpoint c = comparison.current;
+                    final List<String> notes = new ArrayList<>(comparison.regressions);
+                    notes.addAll(comparison.warnings);
+                    out.print("<tr" + rowClass + "><td>" + html(comparison.label) + "</td>");
+                    for (String column : COLUMNS) {
+                        out.print(cell(b, c, column));
+                    }
+                    out.print("<td>" + html(String.join("; ", notes)) + "</td></tr>\n");
+                }
+                out.print(
+                        "</table>\n<p>Cells show this run, then the baseline in brackets.</p>\n"
+                                + "</body>\n</html>\n");
+            } finally {
+                out.close();
+            }
+        }
+
+        private static String cell(
+                PerfResults.Endpoint baseline, PerfResults.Endpoint current, String column) {
+            final StringBuilder cell = new StringBuilder("<td>");
+            cell.append(current == null ? "-" : format(current, column));
+            if (baseline != null) {
+                cell.append(" (").append(format(baseline, column)).append(')');
+            }
+            return cell.append("</td>").toString();
+        }
+
+        private static String format(PerfResults.Endpoint endpoint, String column) {
+            switch (column) {
+                case "samples":
+                    return String.valueOf(endpoint.getSamples());
+                case "errorRate":
+                    return String.format(Locale.ROOT, "%.2f%%", endpoint.getErrorRate());
+                case "throughput":
+                    return String.format(Locale.ROOT, "%.2f", endpoint.getThroughput());
+                case "p50":
+                    return String.valueOf(endpoint.getP50());
+                case "p90":
+                    return String.valueOf(endpoint.getP90());
+                case "p95":
+                    return String.valueOf(endpoint.getP95());
+                case "p99":
+                    return String.valueOf(endpoint.getP99());
+                default:
+                    throw new IllegalArgumentException(column);
+            }
+        }
+
+        private static PrintStream open(File file) throws IOException {
+            final File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            return new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        }
+
+        private static String json(PerfResults.Endpoint endpoint) {
+            if (endpoint == null) {
+                return "null";
+            }
+            return String.format(
+                    Locale.ROOT,
+                    "{\"samples\": %d, \"errors\": %d, \"errorRate\": %.2f, \"throughput\": %.3f,"
+                            + " \"p50\": %d, \"p90\": %d, \"p95\": %d, \"p99\": %d, \"max\": %d}",
+                    endpoint.getSamples(),
+                    endpoint.getErrors(),
+                    endpoint.getErrorRate(),
+                    endpoint.getThroughput(),
+                    endpoint.getP50(),
+                    endpoint.getP90(),
+                    endpoint.getP95(),
+                    endpoint.getP99(),
+                    endpoint.getMax());
+        }
+
+        private static String json(List<String> values) {
+            final StringBuilder array = new StringBuilder("[");
+            for (String value : values) {
+                if (array.length() > 1) {
+                    array.append(", ");
+                }
+                array.append(json(value));
+            }
+            return array.append(']').toString();
+        }
+
+        private static String json(String value) {
+            final StringBuilder string = new StringBuilder("\"");
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    string.append('\\').append(c);
+                } else if (c < 0x20) {
+                    string.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    string.append(c);
+                }
+            }
+            return string.append('"').toString();
+        }
+
+        private static String html(String value) {
+            return value.replace("&", "&amp;")
+                    .replace("<", "&lt;")
+                    .replace(">", "&gt;")
+                    .replace("\"", "&quot;");
+        }
+    }
+}
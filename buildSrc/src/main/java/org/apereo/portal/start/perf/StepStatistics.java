@@ -0,0 +1,46 @@
+package org.apereo.portal.start.perf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/** Latencies (in microseconds) and errors of one step of the scenario, across all sessions. */
+public class StepStatistics {
+
+    private final String label;
+    private final ConcurrentHistogram latencies = new ConcurrentHistogram(3);
+    private final AtomicLong errors = new AtomicLong();
+
+    StepStatistics(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+
+    void record(long elapsedNanos, boolean success) {
+        this.latencies.recordValue(Math.max(0, elapsedNanos / 1000));
+        if (!success) {
+            this.errors.incrementAndGet();
+        }
+    }
+
+    void recordError() {
+        this.errors.incrementAndGet();
+    }
+
+    /** @return a copy of the latency histogram, in microseconds */
+    public Histogram getLatencies() {
+        return this.latencies.copy();
+    }
+
+    /** @return number of samples, including failed ones */
+    public long getCount() {
+        return this.latencies.getTotalCount();
+    }
+
+    public long getErrorCount() {
+        return this.errors.get();
+    }
+}
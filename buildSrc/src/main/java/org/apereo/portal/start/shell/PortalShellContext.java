@@ -0,0 +1,19 @@
+package org.apereo.portal.start.shell;
+
+import java.io.File;
+
+/**
+ * The portal as the {@link PortalShellDaemon} sees it:  a context that is started once and then
+ * runs scripts, with its caches cleared between them.
+ */
+interface PortalShellContext {
+
+    /** Starts the portal context;  called before the first script only. */
+    void start() throws Exception;
+
+    /** Empties the portal's caches, so that a script sees the changes made since the last one. */
+    void clearCaches() throws Exception;
+
+    /** Runs the script with the given arguments against the started context. */
+    void runScript(File scriptFile, String[] args) throws Exception;
+}
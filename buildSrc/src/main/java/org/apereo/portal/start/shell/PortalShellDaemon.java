@@ -0,0 +1,278 @@
+package org.apereo.portal.start.shell;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs portal shell scripts in a long-lived JVM.  PortalShell.main closes the portal's Spring
+ * application context when its script ends, so the daemon does not call it:  it starts the context
+ * once and runs each script itself against that context (see {@link SpringPortalShellContext}).
+ * Only the first script pays for starting the context.  The portal (or another tool) may change
+ * the database between scripts, so the JPA and ehcache caches are cleared before each later script
+ * rather than serving stale entities.
+ *
+ * <p>The daemon listens on an ephemeral loopback port and writes the port, a random token and the
+ * classpath stamp it was started with to a state file, which {@link PortalShellInvoker} reads.
+ * Requests are handled one at a time;  each one is the token, a command ({@link #COMMAND_RUN},
+ * {@link #COMMAND_PING} or {@link #COMMAND_STOP}) and its arguments.  While a script runs,
+ * System.out and System.err are sent back to the client in frames, followed by an exit frame with
+ * the status.  The daemon exits on request or after being idle for the given number of minutes.
+ *
+ * <p>This class runs in the portal shell JVM, outside of Gradle, and so only depends on the JDK.
+ *
+ * <p>Usage: PortalShellDaemon {state-file} {classpath-stamp} {idle-minutes}
+ */
+public class PortalShellDaemon {
+
+    public static final String COMMAND_RUN = "run";
+    public static final String COMMAND_STOP = "stop";
+    public static final String COMMAND_PING = "ping";
+
+    public static final byte FRAME_EXIT = 0;
+    public static final byte FRAME_OUT = 1;
+    public static final byte FRAME_ERR = 2;
+
+    private final File stateFile;
+    private final String token;
+    private final ServerSocket serverSocket;
+    private final PortalShellContext portalContext;
+
+    /** Whether the portal context was started, by the first script */
+    private boolean started;
+
+    PortalShellDaemon(File stateFile, long idleMinutes, PortalShellContext portalContext)
+            throws IOException {
+        this.stateFile = stateFile;
+        this.portalContext = portalContext;
+
+        final byte[] tokenBytes = new byte[16];
+        new SecureRandom().nextBytes(tokenBytes);
+        final StringBuilder token = new StringBuilder();
+        for (byte b : tokenBytes) {
+            token.append(String.format("%02x", b));
+        }
+        this.token = token.toString();
+
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        this.serverSocket.setSoTimeout((int) TimeUnit.MINUTES.toMillis(idleMinutes));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println(
+                    "Usage: PortalShellDaemon {state-file} {classpath-stamp} {idle-minutes}");
+            System.exit(2);
+        }
+
+        final PortalShellDaemon daemon =
+                new PortalShellDaemon(
+                        new File(args[0]), Long.parseLong(args[2]), new SpringPortalShellContext());
+        daemon.writeStateFile(args[1]);
+        try {
+            daemon.serve();
+        } finally {
+            daemon.stateFile.delete();
+            daemon.serverSocket.close();
+        }
+
+        // Non-daemon threads started by the portal context must not keep the JVM alive
+        System.exit(0);
+    }
+
+    /** Written to a temporary file and renamed, so readers never see a partial state file. */
+    void writeStateFile(String classpathStamp) throws IOException {
+        final Properties state = new Properties();
+        state.setProperty("port", String.valueOf(this.serverSocket.getLocalPort()));
+        state.setProperty("token", this.token);
+        state.setProperty("stamp", classpathStamp);
+
+        this.stateFile.getParentFile().mkdirs();
+        final File tempFile = new File(this.stateFile.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(tempFile);
+        try {
+            state.store(out, "Portal shell daemon");
+        } finally {
+            out.close();
+        }
+        this.stateFile.delete();
+        if (!tempFile.renameTo(this.stateFile)) {
+            throw new IOException("Could not create daemon state file " + this.stateFile);
+        }
+        this.stateFile.deleteOnExit();
+    }
+
+    void serve() throws IOException {
+        System.out.println(
+                "Portal shell daemon listening on port " + this.serverSocket.getLocalPort());
+        while (true) {
+            final Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (SocketTimeoutException e) {
+                System.out.println("Portal shell daemon idle, exiting");
+                return;
+            }
+
+            try {
+                if (!handle(socket)) {
+                    System.out.println("Portal shell daemon stopped");
+                    return;
+                }
+            } catch (IOException e) {
+                // The client went away;  keep serving others
+                e.printStackTrace();
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /** @return false when the daemon was asked to stop */
+    private boolean handle(Socket socket) throws IOException {
+        final DataInputStream in =
+                new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        if (!this.token.equals(in.readUTF())) {
+            writeExit(out, 1, "Invalid token");
+            return true;
+        }
+
+        final String command = in.readUTF();
+        final String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+
+        if (COMMAND_STOP.equals(command)) {
+            writeExit(out, 0, "Stopping");
+            return false;
+        }
+        if (COMMAND_PING.equals(command)) {
+            writeExit(out, 0, "OK");
+            return true;
+        }
+        if (!COMMAND_RUN.equals(command)) {
+            writeExit(out, 1, "Unknown command: " + command);
+            return true;
+        }
+
+        final PrintStream originalOut = System.out;
+        final PrintStream originalErr = System.err;
+        final PrintStream scriptOut = new PrintStream(new FrameOutputStream(out, FRAME_OUT), true);
+        final PrintStream scriptErr = new PrintStream(new FrameOutputStream(out, FRAME_ERR), true);
+        int status = 0;
+        String message = "OK";
+        System.setOut(scriptOut);
+        System.setErr(scriptErr);
+        try {
+            runScript(args);
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+            status = 1;
+            message = String.valueOf(e.getCause());
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 1;
+            message = String.valueOf(e);
+        } finally {
+            scriptOut.flush();
+            scriptErr.flush();
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+
+        writeExit(out, status, message);
+        return true;
+    }
+
+    /**
+     * Runs the script given with -s (or --script), passing it the other arguments.  The portal
+     * context is started for the first script, and its caches are cleared before each later one.
+     */
+    private void runScript(String[] args) throws Exception {
+        File scriptFile = null;
+        final List<String> scriptArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (("-s".equals(args[i]) || "--script".equals(args[i])) && i + 1 < args.length) {
+                scriptFile = new File(args[++i]);
+            } else {
+                scriptArgs.add(args[i]);
+            }
+        }
+        if (scriptFile == null) {
+            throw new IllegalArgumentException("No script given;  usage: -s {script} [args]");
+        }
+
+        if (!this.started) {
+            this.portalContext.start();
+            this.started = true;
+        } else {
+            this.portalContext.clearCaches();
+        }
+        this.portalContext.runScript(scriptFile, scriptArgs.toArray(new String[0]));
+    }
+
+    private static void writeExit(DataOutputStream out, int status, String message)
+            throws IOException {
+        synchronized (out) {
+            out.writeByte(FRAME_EXIT);
+            out.writeInt(status);
+            out.writeUTF(message);
+            out.flush();
+        }
+    }
+
+    /** Sends everything written to it as frames of the given type. */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (this.out) {
+                this.out.writeByte(this.type);
+                this.out.writeInt(len);
+                this.out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (this.out) {
+                this.out.flush();
+            }
+        }
+    }
+}
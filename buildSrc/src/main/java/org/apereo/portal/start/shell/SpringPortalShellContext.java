@@ -0,0 +1,93 @@
+package org.apereo.portal.start.shell;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The portal's Spring application context, started through PortalApplicationContextLocator.
+ * Scripts run in a new GroovyShell with a SpringBinding on the context, as in PortalShell.
+ * Everything is looked up by name:  this class is compiled without the portal and Groovy on its
+ * classpath.
+ */
+class SpringPortalShellContext implements PortalShellContext {
+
+    static final String CONTEXT_LOCATOR_CLASS =
+            "org.apereo.portal.spring.locator.PortalApplicationContextLocator";
+    static final String SPRING_BINDING_CLASS = "org.apereo.portal.shell.SpringBinding";
+    static final String EHCACHE_CACHE_MANAGER_CLASS = "net.sf.ehcache.CacheManager";
+    static final String ENTITY_MANAGER_FACTORY_CLASS = "javax.persistence.EntityManagerFactory";
+    static final String JPA_CACHE_CLASS = "javax.persistence.Cache";
+    static final String BEAN_FACTORY_CLASS =
+            "org.springframework.beans.factory.ListableBeanFactory";
+
+    private Object applicationContext;
+
+    @Override
+    public void start() throws Exception {
+        this.applicationContext =
+                Class.forName(CONTEXT_LOCATOR_CLASS)
+                        .getMethod("getApplicationContext")
+                        .invoke(null);
+    }
+
+    /**
+     * Empties the JPA second level caches and the ehcache caches of the portal context, so that a
+     * script sees the changes made in the database since the previous one.
+     */
+    @Override
+    public void clearCaches() throws Exception {
+        // The methods are looked up on the public types, the beans are often proxies
+        for (Object entityManagerFactory : getBeansOfType(ENTITY_MANAGER_FACTORY_CLASS)) {
+            final Object cache =
+                    Class.forName(ENTITY_MANAGER_FACTORY_CLASS)
+                            .getMethod("getCache")
+                            .invoke(entityManagerFactory);
+            if (cache != null) {
+                Class.forName(JPA_CACHE_CLASS).getMethod("evictAll").invoke(cache);
+            }
+        }
+        for (Object cacheManager : getBeansOfType(EHCACHE_CACHE_MANAGER_CLASS)) {
+            Class.forName(EHCACHE_CACHE_MANAGER_CLASS).getMethod("clearAll").invoke(cacheManager);
+        }
+    }
+
+    @Override
+    public void runScript(File scriptFile, String[] args) throws Exception {
+        Object binding = null;
+        for (Constructor<?> constructor : Class.forName(SPRING_BINDING_CLASS).getConstructors()) {
+            final Class<?>[] parameterTypes = constructor.getParameterTypes();
+            if (parameterTypes.length == 1
+                    && parameterTypes[0].isInstance(this.applicationContext)) {
+                binding = constructor.newInstance(this.applicationContext);
+            }
+        }
+        if (binding == null) {
+            throw new IllegalStateException(
+                    SPRING_BINDING_CLASS + " cannot be created for " + this.applicationContext);
+        }
+
+        final Class<?> bindingClass = Class.forName("groovy.lang.Binding");
+        final Class<?> shellClass = Class.forName("groovy.lang.GroovyShell");
+        final Object shell = shellClass.getConstructor(bindingClass).newInstance(binding);
+        shellClass.getMethod("run", File.class, String[].class).invoke(shell, scriptFile, args);
+    }
+
+    /** @return the beans of the named type, none if the class is not on the classpath */
+    private Collection<?> getBeansOfType(String className) throws Exception {
+        final Class<?> type;
+        try {
+            type = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            return Collections.emptyList();
+        }
+        final Map<?, ?> beans =
+                (Map<?, ?>)
+                        Class.forName(BEAN_FACTORY_CLASS)
+                                .getMethod("getBeansOfType", Class.class)
+                                .invoke(this.applicationContext, type);
+        return beans.values();
+    }
+}
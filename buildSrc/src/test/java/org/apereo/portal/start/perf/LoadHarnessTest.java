@@ -0,0 +1,213 @@
+package org.apereo.portal.start.perf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LoadHarnessTest {
+
+    private static final String SESSION_COOKIE = "JSESSIONID=perf";
+    private static final String TOKEN = "perf-token";
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final AtomicInteger unexpectedRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        this.server =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.serverExecutor = Executors.newFixedThreadPool(8);
+        this.server.setExecutor(this.serverExecutor);
+        this.server.createContext("/", new StubPortal());
+        this.server.start();
+    }
+
+    @After
+    public void stopServer() {
+        this.server.stop(0);
+        this.serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testRunsEveryStepOfEachSession() throws Exception {
+        final LoadSettings settings = newSettings();
+        settings.setArrivalRate(20);
+        settings.setPoissonArrivals(false);
+        settings.setRampUpSeconds(0);
+        settings.setDurationSeconds(1);
+        final File outputDir = this.temporaryFolder.newFolder();
+        final LoadHarness harness = new LoadHarness(settings, users(), outputDir);
+
+        harness.run();
+
+        assertEquals(0, this.unexpectedRequests.get());
+        assertEquals(20, harness.getStartedSessions());
+        assertEquals(0, harness.getDroppedSessions());
+        for (StepStatistics step : harness.getStepStatistics().values()) {
+            assertEquals(step.getLabel(), 20, step.getCount());
+            assertEquals(step.getLabel(), 0, step.getErrorCount());
+        }
+        assertEquals(20, harness.getSessionStartLag().getCount());
+
+        final List<String> jtl =
+                Files.readAllLines(
+                        new File(outputDir, LoadHarness.JTL_FILE).toPath(), StandardCharsets.UTF_8);
+        assertEquals(1 + 20 * BaselineScenario.STEPS.size(), jtl.size());
+        assertTrue(new File(outputDir, LoadHarness.HISTOGRAM_LOG_FILE).length() > 0);
+        assertTrue(new File(outputDir, LoadHarness.SUMMARY_FILE).length() > 0);
+    }
+
+    @Test
+    public void testFailedLoginSkipsTheRestOfTheSession() throws Exception {
+        final LoadSettings settings = newSettings();
+        settings.setArrivalRate(5);
+        settings.setRampUpSeconds(0);
+        settings.setDurationSeconds(1);
+        final LoadHarness harness =
+                new LoadHarness(
+                        settings, Arrays.asList(new String[][] {{"nobody", "wrong"}}), null);
+
+        harness.run();
+
+        final StepStatistics login = harness.getStepStatistics().get(BaselineScenario.LOGIN);
+        assertTrue(login.getCount() > 0);
+        assertEquals(login.getCount(), login.getErrorCount());
+        final StepStatistics layout = harness.getStepStatistics().get(BaselineScenario.LAYOUT);
+        assertEquals(0, layout.getCount());
+        assertEquals(login.getCount(), layout.getErrorCount());
+    }
+
+    @Test
+    public void testArrivalTimesRampUpLinearly() {
+        final LoadSettings settings = newSettings();
+        settings.setArrivalRate(10);
+        settings.setRampUpSeconds(10);
+        final LoadHarness harness = new LoadHarness(settings, users(), null);
+
+        // 50 sessions during the ramp up (half the rate on average), then 10 per second
+        assertEquals(0, harness.arrivalTime(0), 1e-9);
+        assertEquals(Math.sqrt(20 * 5 / 10.0), harness.arrivalTime(5), 1e-9);
+        assertEquals(10, harness.arrivalTime(50), 1e-9);
+        assertEquals(11, harness.arrivalTime(60), 1e-9);
+    }
+
+    private LoadSettings newSettings() {
+        final Properties properties = new Properties();
+        properties.setProperty("uportal.domain", "127.0.0.1");
+        properties.setProperty("uportal.port", String.valueOf(this.server.getAddress().getPort()));
+        properties.setProperty("load.seed", "1");
+        properties.setProperty("load.drain.seconds", "30");
+        final LoadSettings settings = LoadSettings.fromProperties(properties);
+        settings.setThinkTime(0, 0);
+        return settings;
+    }
+
+    private static List<String[]> users() {
+        return Arrays.asList(new String[][] {{"perfuser1", "pw1"}, {"perfuser2", "pw2"}});
+    }
+
+    /** Answers the baseline requests with the content the scenario asserts on. */
+    private class StubPortal implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            final String path = exchange.getRequestURI().getPath();
+            final String query = exchange.getRequestURI().getRawQuery();
+            final String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+            final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            final InputStream in = exchange.getRequestBody();
+            final String form = new String(readAll(in), StandardCharsets.UTF_8);
+            in.close();
+
+            if (path.equals("/uPortal/Login")) {
+                if (query != null && query.startsWith("userName=perfuser")) {
+                    exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "; Path=/");
+                    exchange.getResponseHeaders().add("Location", "/uPortal/f/welcome/normal/render.uP");
+                    respond(exchange, 302, "");
+                } else {
+                    respond(exchange, 200, "Login failed");
+                }
+                return;
+            }
+            if (!SESSION_COOKIE.equals(cookie)) {
+                unexpectedRequests.incrementAndGet();
+                respond(exchange, 403, "No session");
+                return;
+            }
+            final boolean bearer = ("Bearer " + TOKEN).equals(authorization);
+            if (path.equals("/uPortal/f/welcome/normal/render.uP")) {
+                respond(exchange, 200, "<div id=\"customizeOptionsWrapper\"></div>");
+            } else if (path.equals("/uPortal/api/v5-1/userinfo")) {
+                respond(exchange, 200, TOKEN + "\n");
+            } else if (path.equals("/uPortal/api/v5-0/portal/search") && bearer) {
+                respond(exchange, 200, "{\"people\":[{\"displayName\":\"Portal Administrator\"}]}");
+            } else if (path.equals("/NotificationPortlet/api/v2/notifications") && bearer) {
+                respond(exchange, 200, "[{\"title\":\"Room Available\"}]");
+            } else if (path.equals("/uPortal/api/v4-3/dlm/layout.json") && bearer) {
+                respond(exchange, 200, "{\"user\": \"perfuser\", \"DEFAULT_TABGROUP\": []}");
+            } else if (path.equals("/uPortal/f/testing/p/announcements.n3/max/render.uP")) {
+                respond(exchange, 200, "<h2>My Subscriptions</h2>");
+            } else if (path.equals(
+                    "/uPortal/f/welcome/p/esup-filemanager-demo.u28l1n14/max/render.uP")) {
+                respond(
+                        exchange,
+                        200,
+                        "<h2>My Drives</h2>\n"
+                                + "var htmlFileTreeURL = '/esup/tree';\n"
+                                + "var fileChildrenURL = '/esup/children';\n");
+            } else if (path.equals("/esup/tree") && form.equals("dir=path_RlM6&sortField=titleAsc")) {
+                respond(exchange, 200, "<form id=\"newFileOrFolderSubmit\"></form>");
+            } else if (path.equals("/esup/children") && form.equals("dir=path_RlM6&hierarchy=all")) {
+                respond(exchange, 200, "[{\"icon\":\"/esup-filemanager/img/drives/drive_user.png\"}]");
+            } else {
+                unexpectedRequests.incrementAndGet();
+                respond(exchange, 404, "Not found");
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
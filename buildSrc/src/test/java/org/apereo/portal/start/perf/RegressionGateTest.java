@@ -0,0 +1,167 @@
+package org.apereo.portal.start.perf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RegressionGateTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testReadsJtl() throws IOException {
+        final File jtl = this.temporaryFolder.newFile("run.jtl");
+        final PrintStream out = new PrintStream(jtl, "UTF-8");
+        out.println("timeStamp,elapsed,label,responseCode,success,failureMessage");
+        for (int i = 1; i <= 100; i++) {
+            out.println((1000 + i * 10) + "," + i + ",\"Search, people\",200,true,");
+        }
+        out.println("1000,5,UI - Login,500,false,\"Response code was 500\"");
+        out.println("2000,0,UI - Login,200,true,");
+        out.close();
+
+        final PerfResults results = PerfResults.fromJtl(jtl);
+
+        assertEquals(
+                Arrays.asList("Search, people", "UI - Login"),
+                Arrays.asList(results.getEndpoints().keySet().toArray()));
+        final PerfResults.Endpoint search = results.getEndpoints().get("Search, people");
+        assertEquals(100, search.getSamples());
+        assertEquals(0, search.getErrors());
+        assertEquals(50, search.getP50());
+        assertEquals(95, search.getP95());
+        assertEquals(99, search.getP99());
+        assertEquals(100, search.getMax());
+        // 100 samples from 1010 to 2100ms
+        assertEquals(100 / 1.1, search.getThroughput(), 1e-9);
+
+        final PerfResults.Endpoint login = results.getEndpoints().get("UI - Login");
+        assertEquals(50.0, login.getErrorRate(), 1e-9);
+        assertEquals(0, login.getP99());
+    }
+
+    @Test
+    public void testCsvRoundTrip() throws IOException {
+        final PerfResults results = results(endpoint("Search, people", 100, 1, 120, 200));
+        final File csv = new File(this.temporaryFolder.newFolder(), "baseline.csv");
+
+        results.writeCsv(csv);
+        final PerfResults read = PerfResults.fromCsv(csv);
+
+        final PerfResults.Endpoint endpoint = read.getEndpoints().get("Search, people");
+        assertEquals(100, endpoint.getSamples());
+        assertEquals(1, endpoint.getErrors());
+        assertEquals(120, endpoint.getP95());
+        assertEquals(200, endpoint.getP99());
+        assertEquals(2.5, endpoint.getThroughput(), 1e-9);
+    }
+
+    @Test
+    public void testLatencyWithinBudgetPasses() {
+        final RegressionGate gate = new RegressionGate();
+
+        // p95 budget 100 * 1.1 + 5, p99 budget 200 * 1.2 + 5
+        final RegressionGate.Report report =
+                gate.compare(
+                        results(endpoint("API", 100, 0, 100, 200)),
+                        results(endpoint("API", 100, 0, 115, 245)));
+
+        assertFalse(report.hasRegressions());
+    }
+
+    @Test
+    public void testLatencyOverBudgetFails() {
+        final RegressionGate gate = new RegressionGate();
+
+        final RegressionGate.Report report =
+                gate.compare(
+                        results(endpoint("API", 100, 0, 100, 200)),
+                        results(endpoint("API", 100, 0, 116, 246)));
+
+        assertTrue(report.hasRegressions());
+        assertEquals(
+                Arrays.asList(
+                        "API:  p95 116ms > budget 115ms (baseline 100ms)",
+                        "API:  p99 246ms > budget 245ms (baseline 200ms)"),
+                report.getRegressionMessages());
+    }
+
+    @Test
+    public void testErrorRateOverBudgetFails() {
+        final RegressionGate gate = new RegressionGate();
+        gate.setErrorRateTolerance(2);
+
+        final RegressionGate.Report report =
+                gate.compare(
+                        results(endpoint("API", 100, 1, 100, 200)),
+                        results(endpoint("API", 100, 4, 100, 200)));
+
+        assertEquals(
+                Arrays.asList("API:  error rate 4.00% > budget 3.00% (baseline 1.00%)"),
+                report.getRegressionMessages());
+    }
+
+    @Test
+    public void testFewSamplesAndMissingEndpointsOnlyWarn() throws IOException {
+        final RegressionGate gate = new RegressionGate();
+        gate.setMinSamples(50);
+        gate.setFailOnMissing(false);
+
+        final RegressionGate.Report report =
+                gate.compare(
+                        results(endpoint("Rare", 10, 0, 100, 200), endpoint("Old", 100, 0, 1, 1)),
+                        results(endpoint("Rare", 10, 0, 900, 900), endpoint("New", 100, 0, 1, 1)));
+
+        assertFalse(report.hasRegressions());
+        assertEquals(3, report.getComparisons().size());
+        for (RegressionGate.Comparison comparison : report.getComparisons()) {
+            assertEquals(comparison.getLabel(), 1, comparison.getWarnings().size());
+        }
+
+        final File dir = this.temporaryFolder.newFolder();
+        report.writeJson(new File(dir, "report.json"));
+        report.writeHtml(new File(dir, "report.html"));
+        final String json =
+                new String(
+                        Files.readAllBytes(new File(dir, "report.json").toPath()),
+                        StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"regressed\": false"));
+        assertTrue(json.contains("\"current\": null"));
+    }
+
+    @Test
+    public void testMissingEndpointFails() {
+        final RegressionGate gate = new RegressionGate();
+
+        final RegressionGate.Report report =
+                gate.compare(
+                        results(endpoint("API", 100, 0, 100, 200), endpoint("Old", 100, 0, 1, 1)),
+                        results(endpoint("API", 100, 0, 100, 200)));
+
+        assertTrue(report.hasRegressions());
+        assertEquals(Arrays.asList("Old:  Not in this run"), report.getRegressionMessages());
+    }
+
+    private static PerfResults.Endpoint endpoint(
+            String label, long samples, long errors, long p95, long p99) {
+        return new PerfResults.Endpoint(label, samples, errors, 2.5, p95 / 2, p95, p95, p99, p99);
+    }
+
+    private static PerfResults results(PerfResults.Endpoint... endpoints) {
+        final PerfResults results = new PerfResults();
+        for (PerfResults.Endpoint endpoint : endpoints) {
+            results.put(endpoint);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,194 @@
+package org.apereo.portal.start.shell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PortalShellDaemonTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final FakePortalShellContext portalContext = new FakePortalShellContext();
+    private Thread serveThread;
+    private Properties state;
+
+    @Before
+    public void startDaemon() throws IOException {
+        final File stateFile = new File(this.temporaryFolder.getRoot(), "daemon.properties");
+        final PortalShellDaemon daemon = new PortalShellDaemon(stateFile, 1, this.portalContext);
+        daemon.writeStateFile("stamp");
+        this.serveThread =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            daemon.serve();
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+        this.serveThread.setDaemon(true);
+        this.serveThread.start();
+
+        this.state = new Properties();
+        final InputStream in = new FileInputStream(stateFile);
+        try {
+            this.state.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @After
+    public void stopDaemon() throws Exception {
+        send(PortalShellDaemon.COMMAND_STOP);
+        this.serveThread.join(10000);
+    }
+
+    @Test
+    public void testSecondScriptReusesContext() throws Exception {
+        final File script = script("println");
+
+        final Result first = send(PortalShellDaemon.COMMAND_RUN, "-s", script.getPath());
+        final Result second = send(PortalShellDaemon.COMMAND_RUN, "-s", script.getPath());
+
+        assertEquals(first.err, 0, first.status);
+        assertEquals(second.err, 0, second.status);
+        assertEquals(1, this.portalContext.starts);
+        assertEquals(2, this.portalContext.runs);
+    }
+
+    @Test
+    public void testCachesClearedBeforeLaterScripts() throws Exception {
+        final File script = script("println");
+
+        send(PortalShellDaemon.COMMAND_RUN, "-s", script.getPath());
+        assertEquals(0, this.portalContext.clears);
+        send(PortalShellDaemon.COMMAND_RUN, "-s", script.getPath());
+        assertEquals(1, this.portalContext.clears);
+        send(PortalShellDaemon.COMMAND_RUN, "-s", script.getPath());
+        assertEquals(2, this.portalContext.clears);
+    }
+
+    @Test
+    public void testPassesArgumentsAndReportsFailures() throws Exception {
+        final File script = script("println");
+        final Result echo =
+                send(PortalShellDaemon.COMMAND_RUN, "--script", script.getPath(), "a", "b");
+        assertEquals(echo.err, 0, echo.status);
+        assertEquals(script.getName() + " [a, b]", echo.out.trim());
+
+        final File failing = script("fail");
+        final Result failed = send(PortalShellDaemon.COMMAND_RUN, "-s", failing.getPath());
+        assertNotEquals(0, failed.status);
+        assertTrue(failed.message, failed.message.contains("boom"));
+        assertTrue(failed.err, failed.err.contains("boom"));
+
+        final Result noScript = send(PortalShellDaemon.COMMAND_RUN, "a");
+        assertNotEquals(0, noScript.status);
+    }
+
+    private File script(String text) throws IOException {
+        final File script = this.temporaryFolder.newFile();
+        Files.write(script.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return script;
+    }
+
+    /**
+     * Counts what the daemon asks of the portal.  A script that is "fail" throws, any other prints
+     * its name and arguments.
+     */
+    private static final class FakePortalShellContext implements PortalShellContext {
+        volatile int starts;
+        volatile int clears;
+        volatile int runs;
+
+        @Override
+        public void start() {
+            this.starts++;
+        }
+
+        @Override
+        public void clearCaches() {
+            this.clears++;
+        }
+
+        @Override
+        public void runScript(File scriptFile, String[] args) throws IOException {
+            this.runs++;
+            final String text =
+                    new String(Files.readAllBytes(scriptFile.toPath()), StandardCharsets.UTF_8);
+            if ("fail".equals(text)) {
+                throw new IllegalStateException("boom");
+            }
+            System.out.println(scriptFile.getName() + " " + Arrays.toString(args));
+        }
+    }
+
+    /** Talks to the daemon the way PortalShellInvoker does. */
+    private Result send(String command, String... args) throws IOException {
+        final Socket socket =
+                new Socket(
+                        InetAddress.getLoopbackAddress(),
+                        Integer.parseInt(this.state.getProperty("port")));
+        try {
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(this.state.getProperty("token"));
+            out.writeUTF(command);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            while (true) {
+                final byte type = in.readByte();
+                if (type == PortalShellDaemon.FRAME_EXIT) {
+                    final Result result = new Result();
+                    result.status = in.readInt();
+                    result.message = in.readUTF();
+                    result.out = new String(stdout.toByteArray(), StandardCharsets.UTF_8);
+                    result.err = new String(stderr.toByteArray(), StandardCharsets.UTF_8);
+                    return result;
+                }
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                (type == PortalShellDaemon.FRAME_OUT ? stdout : stderr).write(bytes);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static final class Result {
+        int status;
+        String message;
+        String out;
+        String err;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.concurrent.TimeUnit;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of checking a password with {@link PersonDirAuthenticationHandler} for each of the uPortal
+ * hash algorithms, with the password hash lookup stubbed out, on one thread and on four.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersonDirAuthenticationHandlerBenchmark {
+    @Param({"MD5", "SHA256"})
+    public String algorithm;
+
+    private PersonDirAuthenticationHandler authenticationHandler;
+    private UsernamePasswordCredentials validCredentials;
+    private UsernamePasswordCredentials invalidCredentials;
+
+    @Setup
+    public void setUp() {
+        final String passwordHash;
+        final String password;
+        if ("MD5".equals(this.algorithm)) {
+            passwordHash = "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt";
+            password = "admin";
+        } else {
+            passwordHash = "(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA==";
+            password = "wombat";
+        }
+
+        this.authenticationHandler = new PersonDirAuthenticationHandler();
+        this.authenticationHandler.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        return passwordHash;
+                    }
+                });
+
+        this.validCredentials = new UsernamePasswordCredentials();
+        this.validCredentials.setUsername("user");
+        this.validCredentials.setPassword(password);
+
+        this.invalidCredentials = new UsernamePasswordCredentials();
+        this.invalidCredentials.setUsername("user");
+        this.invalidCredentials.setPassword(password + "x");
+    }
+
+    @Benchmark
+    public boolean validPassword() throws Exception {
+        return this.authenticationHandler.authenticateUsernamePasswordInternal(
+                this.validCredentials);
+    }
+
+    /**
+     * {@link #validPassword()} on four threads at once. On a host with four or more processors its
+     * average time stays close to the single threaded one, unless concurrent checks are serialized
+     * on a shared digester.
+     */
+    @Benchmark
+    @Threads(4)
+    public boolean validPasswordConcurrently() throws Exception {
+        return validPassword();
+    }
+
+    @Benchmark
+    public boolean invalidPassword() throws Exception {
+        return this.authenticationHandler.authenticateUsernamePasswordInternal(
+                this.invalidCredentials);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Password hash lookups against an embedded HSQL UP_PERSON_DIR table behind a DBCP pool configured
+ * like the one in deployerConfigContext.xml, with and without the caching DAO in front.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PortalPersonDirUserPasswordDaoBenchmark {
+    @Param({"10000"})
+    public int users;
+
+    @Param({"jdbc", "caching"})
+    public String dao;
+
+    private BasicDataSource dataSource;
+    private UserPasswordDao userPasswordDao;
+    private String[] userNames;
+
+    @Setup
+    public void setUp() {
+        this.dataSource = new BasicDataSource();
+        this.dataSource.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
+        this.dataSource.setUrl("jdbc:hsqldb:mem:CasBenchmark");
+        this.dataSource.setUsername("sa");
+        this.dataSource.setPassword("");
+        this.dataSource.setMinIdle(1);
+        this.dataSource.setMaxIdle(2);
+        this.dataSource.setMaxActive(16);
+
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+        jdbcTemplate.execute(
+                "CREATE TABLE UP_PERSON_DIR (USER_NAME VARCHAR(1000), ENCRPTD_PSWD VARCHAR(1000))");
+        jdbcTemplate.execute("CREATE UNIQUE INDEX UP_PERSON_DIR_UN ON UP_PERSON_DIR (USER_NAME)");
+
+        final List<String> userNames = new ArrayList<String>(this.users);
+        for (int i = 0; i < this.users; i++) {
+            final String userName = "perfuser" + i;
+            jdbcTemplate.update(
+                    "INSERT INTO UP_PERSON_DIR VALUES (?, ?)",
+                    userName,
+                    "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt");
+            userNames.add(userName);
+        }
+        this.userNames = userNames.toArray(new String[userNames.size()]);
+
+        final PortalPersonDirUserPasswordDao portalPersonDirUserPasswordDao =
+                new PortalPersonDirUserPasswordDao();
+        portalPersonDirUserPasswordDao.setDataSource(this.dataSource);
+
+        if ("caching".equals(this.dao)) {
+            final CachingUserPasswordDao cachingUserPasswordDao = new CachingUserPasswordDao();
+            cachingUserPasswordDao.setUserPasswordDao(portalPersonDirUserPasswordDao);
+            cachingUserPasswordDao.setMaxSize(this.users);
+            this.userPasswordDao = cachingUserPasswordDao;
+        } else {
+            this.userPasswordDao = portalPersonDirUserPasswordDao;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        new JdbcTemplate(this.dataSource).execute("SHUTDOWN");
+        this.dataSource.close();
+    }
+
+    @Benchmark
+    public String knownUser() {
+        final String userName =
+                this.userNames[ThreadLocalRandom.current().nextInt(this.userNames.length)];
+        return this.userPasswordDao.getPasswordHash(userName);
+    }
+
+    @Benchmark
+    public String unknownUser() {
+        return this.userPasswordDao.getPasswordHash(
+                "nobody" + ThreadLocalRandom.current().nextInt(100));
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import org.jasig.cas.services.DefaultServicesManagerImpl;
+import org.jasig.cas.services.InMemoryServiceRegistryDaoImpl;
+import org.jasig.cas.services.RegexRegisteredService;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.web.support.ArgumentExtractor;
+import org.jasig.cas.web.support.CasArgumentExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Theme resolution for the CAS login page: a service registry with a configurable number of regex
+ * services and a mix of desktop, mobile and crawler user agents.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigurableUserAgentOverrideThemeResolverBenchmark {
+    private static final String[] USER_AGENTS = {
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36 Edg/120.0.0.0",
+        "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Safari/605.1.15",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:121.0) Gecko/20100101 Firefox/121.0",
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Mobile/15E148 Safari/604.1",
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Mobile/15E148 Safari/604.1",
+        "Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.6099.144 Mobile Safari/537.36",
+        "Mozilla/5.0 (iPad; CPU OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Mobile/15E148 Safari/604.1",
+        "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+    };
+
+    @Param({"1", "100"})
+    public int registeredServices;
+
+    private ConfigurableUserAgentOverrideThemeResolver themeResolver;
+    private HttpServletRequest[] requests;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final List<RegisteredService> services = new ArrayList<RegisteredService>();
+        for (int i = 0; i < this.registeredServices - 1; i++) {
+            final RegexRegisteredService service = new RegexRegisteredService();
+            service.setId(i + 1);
+            service.setName("Service " + i);
+            service.setServiceId("^https://app" + i + "\\.example\\.edu/.*");
+            service.setEvaluationOrder(i);
+            service.setTheme("cas-theme-app" + i);
+            services.add(service);
+        }
+        final RegexRegisteredService portal = new RegexRegisteredService();
+        portal.setId(0);
+        portal.setName("HTTP and IMAP");
+        portal.setServiceId("^(https?|imaps?)://.*");
+        portal.setEvaluationOrder(10000001);
+        services.add(portal);
+
+        final InMemoryServiceRegistryDaoImpl serviceRegistryDao =
+                new InMemoryServiceRegistryDaoImpl();
+        serviceRegistryDao.setRegisteredServices(services);
+
+        final Map<String, String> defaultOverrides = new LinkedHashMap<String, String>();
+        defaultOverrides.put(".*iPhone.*", "cas-theme-mobile");
+        defaultOverrides.put(".*Android.*", "cas-theme-mobile");
+        defaultOverrides.put(".*iPad.*", "cas-theme-tablet");
+
+        this.themeResolver = new ConfigurableUserAgentOverrideThemeResolver();
+        this.themeResolver.setDefaultThemeName("cas-theme-default");
+        this.themeResolver.setServicesManager(new DefaultServicesManagerImpl(serviceRegistryDao));
+        this.themeResolver.setArgumentExtractors(
+                Collections.<ArgumentExtractor>singletonList(new CasArgumentExtractor()));
+        this.themeResolver.setOverrides(
+                Collections.<String, Map<String, String>>singletonMap(
+                        "cas-theme-default", defaultOverrides));
+
+        this.requests = new HttpServletRequest[USER_AGENTS.length];
+        for (int i = 0; i < USER_AGENTS.length; i++) {
+            final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+            request.addHeader("User-Agent", USER_AGENTS[i]);
+            request.setParameter("service", "https://portal.example.edu/uPortal/Login");
+            this.requests[i] = request;
+        }
+    }
+
+    @Benchmark
+    public String resolveThemeName() {
+        final HttpServletRequest request = this.requests[this.next];
+        this.next = (this.next + 1) % this.requests.length;
+        return this.themeResolver.resolveThemeName(request);
+    }
+}
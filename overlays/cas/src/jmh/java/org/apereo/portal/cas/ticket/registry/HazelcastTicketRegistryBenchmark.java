@@ -0,0 +1,161 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Service tickets granted on one node of a {@link HazelcastTicketRegistry} cluster and validated
+ * on the next one, as when the service's back channel request reaches another node than the
+ * user's browser. The nodes run in one JVM and talk to each other over loopback.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class HazelcastTicketRegistryBenchmark {
+    private static final Service SERVICE = new SimpleWebApplicationServiceImpl("https://portal/");
+
+    @Param({"3"})
+    public int nodes;
+
+    private final List<HazelcastTicketRegistry> registries =
+            new ArrayList<HazelcastTicketRegistry>();
+    private final AtomicLong nextTicket = new AtomicLong();
+
+    @Setup
+    public void setUp() throws Exception {
+        final String clusterName = "cas-benchmark-" + System.nanoTime();
+        final int[] ports = freePorts(this.nodes);
+        final StringBuilder members = new StringBuilder();
+        for (int i = 0; i < this.nodes; i++) {
+            members.append(i == 0 ? "" : ",").append("127.0.0.1:").append(ports[i]);
+        }
+        for (int i = 0; i < this.nodes; i++) {
+            final HazelcastTicketRegistry registry = new HazelcastTicketRegistry();
+            registry.setClusterName(clusterName);
+            registry.setInstanceName(clusterName + "-" + i);
+            registry.setMembers(members.toString());
+            registry.setNetworkInterface("127.0.0.1");
+            registry.setPort(ports[i]);
+            registry.setPortAutoIncrement(false);
+            registry.afterPropertiesSet();
+            this.registries.add(registry);
+        }
+
+        this.registries
+                .get(0)
+                .addTicket(
+                        new TicketGrantingTicketImpl(
+                                "TGT-benchmark",
+                                new ImmutableAuthentication(new SimplePrincipal("student")),
+                                new NeverExpiresExpirationPolicy()));
+        for (HazelcastTicketRegistry registry : this.registries) {
+            while (registry.getTicket("TGT-benchmark") == null) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (HazelcastTicketRegistry registry : this.registries) {
+            registry.destroy();
+        }
+        this.registries.clear();
+    }
+
+    /** Grant a service ticket on one node and validate it on the next, which deletes it */
+    @Benchmark
+    public boolean grantAndValidate() {
+        final long next = this.nextTicket.incrementAndGet();
+        final String ticketId = "ST-" + next + "-cas01";
+        final HazelcastTicketRegistry granting = this.registries.get((int) (next % this.nodes));
+        final TicketGrantingTicket tgt =
+                (TicketGrantingTicket) granting.getTicket("TGT-benchmark");
+        granting.addTicket(
+                tgt.grantServiceTicket(
+                        ticketId,
+                        SERVICE,
+                        new MultiTimeUseOrTimeoutExpirationPolicy(1, 10000),
+                        false));
+
+        final HazelcastTicketRegistry validating =
+                this.registries.get((int) ((next + 1) % this.nodes));
+        final ServiceTicket st =
+                (ServiceTicket) validating.getTicket(ticketId, ServiceTicket.class);
+        if (st == null) {
+            return false;
+        }
+        try {
+            synchronized (st) {
+                return !st.isExpired() && st.isValidFor(SERVICE);
+            }
+        } finally {
+            if (st.isExpired()) {
+                validating.deleteTicket(ticketId);
+            }
+        }
+    }
+
+    /** @return ports that were free a moment ago, all different */
+    private static int[] freePorts(int count) throws IOException {
+        final ServerSocket[] sockets = new ServerSocket[count];
+        final int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+}
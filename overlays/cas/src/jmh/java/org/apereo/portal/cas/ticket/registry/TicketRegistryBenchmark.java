@@ -0,0 +1,146 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.AbstractTicketRegistry;
+import org.jasig.cas.ticket.registry.DefaultTicketRegistry;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Add, lookup and expiration latency of {@link DefaultTicketRegistry} and {@link
+ * TimingWheelTicketRegistry} holding 1M live ticket granting tickets. Sample time mode reports the
+ * p99 latencies; the heap used by the registry and its tickets is printed during setup.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Threads(4)
+@State(Scope.Benchmark)
+public class TicketRegistryBenchmark {
+    @Param({"default", "timingWheel"})
+    public String registry;
+
+    @Param({"1000000"})
+    public int tickets;
+
+    private AbstractTicketRegistry ticketRegistry;
+    private String[] ticketIds;
+    private Authentication authentication;
+    private ExpirationPolicy expirationPolicy;
+    private final AtomicLong nextTicket = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        final long heapBefore = usedHeap();
+
+        if ("default".equals(this.registry)) {
+            this.ticketRegistry = new DefaultTicketRegistry();
+        } else {
+            this.ticketRegistry = new TimingWheelTicketRegistry();
+        }
+
+        this.authentication = new ImmutableAuthentication(new SimplePrincipal("student"));
+        this.expirationPolicy = new TimeoutExpirationPolicy(TimeUnit.HOURS.toMillis(2));
+
+        this.ticketIds = new String[this.tickets];
+        for (int i = 0; i < this.tickets; i++) {
+            this.ticketIds[i] = "TGT-" + i + "-bWV0YWRhdGEgZm9yIHRoZSB0aWNrZXQgaWQgbGVuZ3Ro-cas01";
+            this.ticketRegistry.addTicket(
+                    new TicketGrantingTicketImpl(
+                            this.ticketIds[i], this.authentication, this.expirationPolicy));
+        }
+
+        final long heapAfter = usedHeap();
+        System.out.println();
+        System.out.println(
+                this.registry
+                        + ": "
+                        + (heapAfter - heapBefore) / (1024 * 1024)
+                        + " MB heap for "
+                        + this.tickets
+                        + " tickets, "
+                        + (heapAfter - heapBefore) / this.tickets
+                        + " bytes per ticket including the ticket ids");
+    }
+
+    /** Add a new ticket and delete it again, keeping the registry at its size */
+    @Benchmark
+    public boolean addTicket() {
+        final String ticketId = "TGT-new-" + this.nextTicket.incrementAndGet() + "-cas01";
+        this.ticketRegistry.addTicket(
+                new TicketGrantingTicketImpl(ticketId, this.authentication, this.expirationPolicy));
+        return this.ticketRegistry.deleteTicket(ticketId);
+    }
+
+    @Benchmark
+    public Ticket getTicket() {
+        return this.ticketRegistry.getTicket(
+                this.ticketIds[ThreadLocalRandom.current().nextInt(this.ticketIds.length)]);
+    }
+
+    /**
+     * One run of expiration: a scan of every ticket for the default registry (what {@code
+     * DefaultTicketRegistryCleaner} does), the tickets due for the timing wheel registry
+     */
+    @Benchmark
+    @Threads(1)
+    public int findExpiredTickets() {
+        if (this.ticketRegistry instanceof TimingWheelTicketRegistry) {
+            final List<Ticket> expired =
+                    ((TimingWheelTicketRegistry) this.ticketRegistry).pollExpiredTickets();
+            return expired.size();
+        }
+
+        int expired = 0;
+        for (Ticket ticket : this.ticketRegistry.getTickets()) {
+            if (ticket.isExpired()) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
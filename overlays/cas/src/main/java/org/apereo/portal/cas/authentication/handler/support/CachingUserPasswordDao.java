@@ -0,0 +1,225 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache in front of another {@link UserPasswordDao}. Lookups are cached for {@link
+ * #setTimeToLiveSeconds(int)}, users that do not exist are cached for {@link
+ * #setNegativeTimeToLiveSeconds(int)} and the number of cached users is bounded by {@link
+ * #setMaxSize(int)} (least recently used entries are evicted first). Concurrent lookups of the same
+ * user name are merged so that only one of them reaches the wrapped DAO.
+ *
+ * <p>A password change made in uPortal is not seen by CAS until the cached entry expires, so keep
+ * the time to live short.
+ *
+ * <p>The hit, miss and merged counts are published over JMX as
+ * org.apereo.portal.cas:type=PasswordHashCache (see authenticationMetrics.xml).
+ */
+public class CachingUserPasswordDao implements UserPasswordDao {
+    private final ConcurrentMap<String, FutureTask<String>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<String>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong mergedCount = new AtomicLong();
+
+    private UserPasswordDao userPasswordDao;
+    private int maxSize = 10000;
+    private long timeToLiveNanos = TimeUnit.SECONDS.toNanos(60);
+    private long negativeTimeToLiveNanos = TimeUnit.SECONDS.toNanos(10);
+
+    private Map<String, CachedHash> cache = createCache(this.maxSize);
+
+    /** @return the wrapped userPasswordDao */
+    public UserPasswordDao getUserPasswordDao() {
+        return this.userPasswordDao;
+    }
+
+    /** @param userPasswordDao the DAO to read through to on a cache miss */
+    public void setUserPasswordDao(UserPasswordDao userPasswordDao) {
+        this.userPasswordDao = userPasswordDao;
+    }
+
+    /** @param maxSize maximum number of user names to cache, defaults to 10000 */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be greater than 0: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.cache = createCache(maxSize);
+    }
+
+    /** @param timeToLiveSeconds how long a found password hash is cached, defaults to 60 */
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLiveSeconds);
+    }
+
+    /**
+     * @param negativeTimeToLiveSeconds how long an unknown user name is cached, defaults to 10. Set
+     *     to 0 to disable negative caching.
+     */
+    public void setNegativeTimeToLiveSeconds(int negativeTimeToLiveSeconds) {
+        this.negativeTimeToLiveNanos = TimeUnit.SECONDS.toNanos(negativeTimeToLiveSeconds);
+    }
+
+    /** @return number of lookups answered from the cache */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /** @return number of lookups that went to the wrapped DAO */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /** @return number of lookups that waited on an identical lookup already in progress */
+    public long getMergedCount() {
+        return this.mergedCount.get();
+    }
+
+    /** @return number of user names currently cached */
+    public int getSize() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    /** Discard all cached entries. */
+    public void clear() {
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#getPasswordHash(java.lang.String)
+     */
+    public String getPasswordHash(final String userName) {
+        final Map<String, CachedHash> cache = this.cache;
+
+        final CachedHash cached;
+        synchronized (cache) {
+            cached = cache.get(userName);
+        }
+        if (cached != null) {
+            if (cached.expires - System.nanoTime() > 0) {
+                this.hitCount.incrementAndGet();
+                return cached.passwordHash;
+            }
+            synchronized (cache) {
+                cache.remove(userName);
+            }
+        }
+
+        FutureTask<String> lookup = this.inFlight.get(userName);
+        if (lookup != null) {
+            this.mergedCount.incrementAndGet();
+        } else {
+            final FutureTask<String> newLookup =
+                    new FutureTask<String>(
+                            new Callable<String>() {
+                                public String call() {
+                                    return load(cache, userName);
+                                }
+                            });
+            lookup = this.inFlight.putIfAbsent(userName, newLookup);
+            if (lookup != null) {
+                this.mergedCount.incrementAndGet();
+            } else {
+                lookup = newLookup;
+                this.missCount.incrementAndGet();
+                try {
+                    newLookup.run();
+                } finally {
+                    this.inFlight.remove(userName, newLookup);
+                }
+            }
+        }
+
+        return awaitLookup(lookup);
+    }
+
+    private String load(Map<String, CachedHash> cache, String userName) {
+        final String passwordHash = this.userPasswordDao.getPasswordHash(userName);
+
+        final long timeToLive =
+                passwordHash != null ? this.timeToLiveNanos : this.negativeTimeToLiveNanos;
+        if (timeToLive > 0) {
+            final CachedHash cached = new CachedHash(passwordHash, System.nanoTime() + timeToLive);
+            synchronized (cache) {
+                cache.put(userName, cached);
+            }
+        }
+
+        return passwordHash;
+    }
+
+    private static String awaitLookup(FutureTask<String> lookup) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return lookup.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Map<String, CachedHash> createCache(final int maxSize) {
+        return new LinkedHashMap<String, CachedHash>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedHash> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static final class CachedHash {
+        private final String passwordHash;
+        private final long expires;
+
+        CachedHash(String passwordHash, long expires) {
+            this.passwordHash = passwordHash;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts recent login failures per user name and per source address, so that logins can be
+ * refused before the password hash is looked up and checked once either has failed too often.
+ * Failures of a user name are counted per source address when it is known, so that failing logins
+ * from one address do not lock the user out at the others, and a successful login clears them
+ * (see {@link #recordSuccess(String, String)}).
+ *
+ * <p>Failures are counted in a count-min sketch: {@link #setDepth(int) depth} rows of {@link
+ * #setWidth(int) width} counters, each key incrementing one counter per row and its estimate being
+ * the smallest of them. Memory is fixed (4 bytes per counter) however many distinct keys are seen;
+ * collisions can only overestimate a count, and are kept rare by the conservative update (only the
+ * smallest counters are incremented) and by sizing the width well above the number of failures per
+ * window divided by the thresholds. The hash is seeded per instance so that colliding keys cannot
+ * be chosen in advance.
+ *
+ * <p>Counters decay: each holds a 16 bit count and the 16 bit window it was last updated in, and
+ * the count is halved for every {@link #setWindowSeconds(int) window} elapsed since. Updates are a
+ * compare-and-set per counter, without locks.
+ */
+public class LoginFailureTracker {
+
+    private static final int COUNT_MASK = 0xFFFF;
+    private static final int WINDOW_SHIFT = 16;
+
+    private final long seed = new SecureRandom().nextLong();
+
+    private int width = 1 << 18;
+    private int depth = 4;
+    private long windowMillis = TimeUnit.SECONDS.toMillis(60);
+    private int maxUsernameFailures = 0;
+    private int maxSourceFailures = 0;
+
+    private volatile AtomicIntegerArray counters;
+
+    private final AtomicLong shedByUsernameCount = new AtomicLong();
+    private final AtomicLong shedBySourceCount = new AtomicLong();
+
+    /** @param width counters per row, rounded up to a power of 2, defaults to 262144 */
+    public synchronized void setWidth(int width) {
+        if (width < 1 || width > 1 << 24) {
+            throw new IllegalArgumentException("width must be between 1 and 2^24: " + width);
+        }
+        checkNotAllocated();
+        this.width = nextPowerOfTwo(width);
+    }
+
+    /** @param depth number of rows, i.e. counters per key, defaults to 4 */
+    public synchronized void setDepth(int depth) {
+        if (depth < 1 || depth > 8) {
+            throw new IllegalArgumentException("depth must be between 1 and 8: " + depth);
+        }
+        checkNotAllocated();
+        this.depth = depth;
+    }
+
+    /** @param windowSeconds time after which failure counts are halved, defaults to 60 */
+    public void setWindowSeconds(int windowSeconds) {
+        if (windowSeconds < 1) {
+            throw new IllegalArgumentException(
+                    "windowSeconds must be greater than 0: " + windowSeconds);
+        }
+        this.windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+    }
+
+    /**
+     * @param maxUsernameFailures recent failures after which logins for a user name from a source
+     *     address are refused, defaults to 0, which disables the limit. Behind a proxy, only enable
+     *     it once the container reports the client's address: otherwise every login comes from the
+     *     proxy's address and anyone can lock a user out by failing logins with their user name.
+     */
+    public void setMaxUsernameFailures(int maxUsernameFailures) {
+        this.maxUsernameFailures = maxUsernameFailures;
+    }
+
+    /**
+     * @param maxSourceFailures recent failures after which logins from a source address are
+     *     refused, defaults to 0, which disables the limit. Behind a proxy, only enable it once the
+     *     container reports the client's address (e.g. with Tomcat's RemoteIpValve).
+     */
+    public void setMaxSourceFailures(int maxSourceFailures) {
+        this.maxSourceFailures = maxSourceFailures;
+    }
+
+    /** @return bytes used by the counters */
+    public long getMemoryBytes() {
+        return 4L * this.width * this.depth;
+    }
+
+    /** @return number of logins refused because of the failures of their user name */
+    public long getShedByUsernameCount() {
+        return this.shedByUsernameCount.get();
+    }
+
+    /** @return number of logins refused because of the failures of their source address */
+    public long getShedBySourceCount() {
+        return this.shedBySourceCount.get();
+    }
+
+    /**
+     * @param source address the login comes from, null if unknown
+     * @return true if the login should be refused without checking the password
+     */
+    public boolean isBlocked(String username, String source) {
+        final int window = currentWindow();
+        if (this.maxUsernameFailures > 0
+                && username != null
+                && estimate(usernameKey(username, source), window) >= this.maxUsernameFailures) {
+            this.shedByUsernameCount.incrementAndGet();
+            return true;
+        }
+        if (this.maxSourceFailures > 0
+                && source != null
+                && estimate(sourceKey(source), window) >= this.maxSourceFailures) {
+            this.shedBySourceCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /** Count a failed login for the user name and the source address (null if unknown). */
+    public void recordFailure(String username, String source) {
+        final int window = currentWindow();
+        if (username != null) {
+            increment(usernameKey(username, source), window);
+        }
+        if (source != null) {
+            increment(sourceKey(source), window);
+        }
+    }
+
+    /**
+     * Forget the failures of the user name from the source address (null if unknown) after it
+     * logged in. The counters are cleared rather than decremented, so this may also forgive some
+     * failures of the keys that share them, but never blocks a login.
+     */
+    public void recordSuccess(String username, String source) {
+        if (username == null) {
+            return;
+        }
+        final AtomicIntegerArray counters = getCounters();
+        final long hash = hash(usernameKey(username, source));
+        final int cleared = currentWindow() << WINDOW_SHIFT;
+        for (int row = 0; row < this.depth; row++) {
+            counters.set(index(hash, row), cleared);
+        }
+    }
+
+    /** @return the (over)estimated recent failures of a user name from a source address */
+    public int getUsernameFailures(String username, String source) {
+        return estimate(usernameKey(username, source), currentWindow());
+    }
+
+    /** @return the (over)estimated recent failures of a source address */
+    public int getSourceFailures(String source) {
+        return estimate(sourceKey(source), currentWindow());
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private int currentWindow() {
+        return (int) (currentTimeMillis() / this.windowMillis) & COUNT_MASK;
+    }
+
+    private static String usernameKey(String username, String source) {
+        final String key = "u:" + username.toLowerCase(Locale.ROOT);
+        // '\n' cannot be part of an address, so distinct pairs cannot make the same key
+        return source == null ? key : key + '\n' + source;
+    }
+
+    private static String sourceKey(String source) {
+        return "s:" + source;
+    }
+
+    private int estimate(String key, int window) {
+        final AtomicIntegerArray counters = getCounters();
+        final long hash = hash(key);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < this.depth; row++) {
+            min = Math.min(min, decayedCount(counters.get(index(hash, row)), window));
+        }
+        return min;
+    }
+
+    private void increment(String key, int window) {
+        final AtomicIntegerArray counters = getCounters();
+        final long hash = hash(key);
+        final int target = Math.min(estimate(key, window) + 1, COUNT_MASK);
+        for (int row = 0; row < this.depth; row++) {
+            final int index = index(hash, row);
+            while (true) {
+                final int cell = counters.get(index);
+                final int count = decayedCount(cell, window);
+                // Conservative update: counters already above the key's count are left alone
+                if (count >= target && (cell >>> WINDOW_SHIFT) == window) {
+                    break;
+                }
+                final int updated = window << WINDOW_SHIFT | Math.max(count, target);
+                if (counters.compareAndSet(index, cell, updated)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /** @return the count of the cell, halved for each window elapsed since it was updated */
+    private static int decayedCount(int cell, int window) {
+        final int elapsed = (window - (cell >>> WINDOW_SHIFT)) & COUNT_MASK;
+        return elapsed >= WINDOW_SHIFT ? 0 : (cell & COUNT_MASK) >>> elapsed;
+    }
+
+    /** Row indexes are derived from one 64 bit hash, as h1 + row * h2. */
+    private int index(long hash, int row) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        return row * this.width + ((h1 + row * h2) & (this.width - 1));
+    }
+
+    private long hash(String key) {
+        long h = this.seed;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x9E3779B97F4A7C15L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private AtomicIntegerArray getCounters() {
+        AtomicIntegerArray counters = this.counters;
+        if (counters == null) {
+            synchronized (this) {
+                counters = this.counters;
+                if (counters == null) {
+                    counters = new AtomicIntegerArray(this.width * this.depth);
+                    this.counters = counters;
+                }
+            }
+        }
+        return counters;
+    }
+
+    private void checkNotAllocated() {
+        if (this.counters != null) {
+            throw new IllegalStateException("The counters are already allocated");
+        }
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        return value == 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+}
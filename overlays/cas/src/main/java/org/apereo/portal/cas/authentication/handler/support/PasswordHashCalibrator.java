@@ -0,0 +1,137 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long password verification takes on the current host, so that the iteration count
+ * of a {@link SaltedDigestPasswordHashScheme} can be chosen to meet a target login latency rather
+ * than taken as a fixed number.
+ *
+ * <p>Run from the command line with <code>./gradlew :overlays:cas:casCalibratePasswordHash
+ * -PtargetMillis=50</code>, or call {@link #measureNanosPerCheck(PasswordHashScheme, int)} and
+ * {@link #recommendIterations(String, long)} directly.
+ */
+public class PasswordHashCalibrator {
+    private static final String[] DEFAULT_ALGORITHMS = {"MD5", "SHA-256", "SHA-512"};
+
+    private static final int CALIBRATION_ITERATIONS = 10000;
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * @param scheme Scheme to measure
+     * @param checks Number of password checks to time, after an equal number of warm-up checks
+     * @return Average time in nanoseconds of one password check with the scheme
+     */
+    public long measureNanosPerCheck(PasswordHashScheme scheme, int checks) {
+        final String storedHash = scheme.hash("calibration-password");
+
+        // Warm up the digesters and the JIT
+        for (int i = 0; i < checks; i++) {
+            scheme.matches("calibration-password", storedHash);
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            if (!scheme.matches("calibration-password", storedHash)) {
+                throw new IllegalStateException("Scheme does not verify its own hash: " + scheme);
+            }
+        }
+        return (System.nanoTime() - start) / checks;
+    }
+
+    /**
+     * @param algorithm JCA message digest algorithm, e.g. "SHA-256"
+     * @param targetNanos How long a single password check should take
+     * @return Iteration count at which a check with the algorithm takes about targetNanos
+     */
+    public int recommendIterations(String algorithm, long targetNanos) {
+        final double nanosPerIteration = measureNanosPerIteration(algorithm);
+        final double iterations = targetNanos / nanosPerIteration;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(iterations)));
+    }
+
+    /** @return Average time in nanoseconds of one digest iteration with the algorithm */
+    public double measureNanosPerIteration(String algorithm) {
+        final SaltedDigestPasswordHashScheme scheme =
+                new SaltedDigestPasswordHashScheme(
+                        "(CALIBRATE)", algorithm, CALIBRATION_ITERATIONS, 1);
+
+        // Time enough checks to get a stable average, at least MIN_SAMPLE_NANOS worth
+        int checks = 1;
+        long nanosPerCheck;
+        while (true) {
+            nanosPerCheck = measureNanosPerCheck(scheme, checks);
+            if (nanosPerCheck * checks >= MIN_SAMPLE_NANOS || checks >= 1 << 20) {
+                break;
+            }
+            checks *= 2;
+        }
+        return nanosPerCheck / (double) CALIBRATION_ITERATIONS;
+    }
+
+    /**
+     * Prints the verification cost of the default uPortal schemes and the iteration count that
+     * meets the target latency for each algorithm.
+     *
+     * <p>Arguments: [targetMillis] [algorithm ...], defaults to 50 ms and MD5, SHA-256, SHA-512
+     */
+    public static void main(String[] args) {
+        final long targetMillis = args.length > 0 ? Long.parseLong(args[0]) : 50;
+        final String[] algorithms;
+        if (args.length > 1) {
+            algorithms = new String[args.length - 1];
+            System.arraycopy(args, 1, algorithms, 0, algorithms.length);
+        } else {
+            algorithms = DEFAULT_ALGORITHMS;
+        }
+
+        final PasswordHashCalibrator calibrator = new PasswordHashCalibrator();
+        final long targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+
+        System.out.println(
+                "Password verification cost on this host ("
+                        + Runtime.getRuntime().availableProcessors()
+                        + " processors)");
+        for (final PasswordHashScheme scheme :
+                SaltedDigestPasswordHashScheme.createDefaultSchemes(1)) {
+            System.out.println(
+                    "  "
+                            + scheme
+                            + ": "
+                            + formatMillis(calibrator.measureNanosPerCheck(scheme, 1000))
+                            + " per check");
+        }
+
+        System.out.println("Iterations for a " + targetMillis + " ms check");
+        for (final String algorithm : algorithms) {
+            final double nanosPerIteration = calibrator.measureNanosPerIteration(algorithm);
+            final long iterations = Math.max(1, Math.round(targetNanos / nanosPerIteration));
+            System.out.println(
+                    "  "
+                            + algorithm
+                            + ": "
+                            + iterations
+                            + " iterations ("
+                            + String.format("%.1f", nanosPerIteration)
+                            + " ns per iteration)");
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+/**
+ * A password hashing scheme, identified by the prefix (e.g. <code>(SHA256)</code>) that uPortal
+ * stores in front of the encoded hash in UP_PERSON_DIR.ENCRPTD_PSWD.
+ */
+public interface PasswordHashScheme {
+    /** @return The prefix that identifies hashes produced by this scheme, e.g. "(SHA256)" */
+    public String getPrefix();
+
+    /**
+     * @param cleartextPassword Password entered by the user
+     * @param storedHash Full stored hash, <em>including</em> the prefix of this scheme. Implementations
+     *     should read the encoded hash that follows the prefix in place rather than copying it.
+     * @return true if the password matches the stored hash
+     */
+    public boolean matches(String cleartextPassword, String storedHash);
+
+    /**
+     * @param cleartextPassword Password to hash
+     * @return Full hash, including the prefix of this scheme, as it would be stored by uPortal
+     */
+    public String hash(String cleartextPassword);
+}
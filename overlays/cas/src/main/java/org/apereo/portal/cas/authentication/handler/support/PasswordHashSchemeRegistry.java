@@ -0,0 +1,137 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Finds the {@link PasswordHashScheme} for a stored password hash by its prefix. Prefixes are held
+ * in per-length tables of prefix hash codes so that a lookup is a binary search per distinct prefix
+ * length and never copies any part of the stored hash. Longer prefixes are tried first.
+ */
+public final class PasswordHashSchemeRegistry {
+    private final List<PasswordHashScheme> schemes;
+
+    /** Distinct prefix lengths, longest first */
+    private final int[] prefixLengths;
+    /** For each prefix length, the sorted hash codes of the prefixes of that length */
+    private final int[][] prefixHashes;
+    /** For each prefix length, the schemes in the same order as {@link #prefixHashes} */
+    private final PasswordHashScheme[][] prefixSchemes;
+
+    public PasswordHashSchemeRegistry(List<? extends PasswordHashScheme> schemes) {
+        this.schemes = Collections.unmodifiableList(new ArrayList<PasswordHashScheme>(schemes));
+
+        final TreeMap<Integer, List<PasswordHashScheme>> byLength =
+                new TreeMap<Integer, List<PasswordHashScheme>>(Collections.reverseOrder());
+        final List<String> prefixes = new ArrayList<String>();
+        for (final PasswordHashScheme scheme : schemes) {
+            final String prefix = scheme.getPrefix();
+            if (prefix == null || prefix.length() == 0) {
+                throw new IllegalArgumentException("Password hash scheme has no prefix: " + scheme);
+            }
+            if (prefixes.contains(prefix)) {
+                throw new IllegalArgumentException("Duplicate password hash prefix: " + prefix);
+            }
+            prefixes.add(prefix);
+
+            List<PasswordHashScheme> sameLength = byLength.get(prefix.length());
+            if (sameLength == null) {
+                sameLength = new ArrayList<PasswordHashScheme>();
+                byLength.put(prefix.length(), sameLength);
+            }
+            sameLength.add(scheme);
+        }
+
+        this.prefixLengths = new int[byLength.size()];
+        this.prefixHashes = new int[byLength.size()][];
+        this.prefixSchemes = new PasswordHashScheme[byLength.size()][];
+
+        int i = 0;
+        for (final List<PasswordHashScheme> sameLength : byLength.values()) {
+            final PasswordHashScheme[] sorted =
+                    sameLength.toArray(new PasswordHashScheme[sameLength.size()]);
+            Arrays.sort(
+                    sorted,
+                    new Comparator<PasswordHashScheme>() {
+                        public int compare(PasswordHashScheme a, PasswordHashScheme b) {
+                            final int ha = a.getPrefix().hashCode();
+                            final int hb = b.getPrefix().hashCode();
+                            return ha < hb ? -1 : (ha == hb ? 0 : 1);
+                        }
+                    });
+
+            final int[] hashes = new int[sorted.length];
+            for (int j = 0; j < sorted.length; j++) {
+                hashes[j] = sorted[j].getPrefix().hashCode();
+            }
+
+            this.prefixLengths[i] = sorted[0].getPrefix().length();
+            this.prefixHashes[i] = hashes;
+            this.prefixSchemes[i] = sorted;
+            i++;
+        }
+    }
+
+    /** @return All registered schemes, in registration order */
+    public List<PasswordHashScheme> getSchemes() {
+        return this.schemes;
+    }
+
+    /**
+     * @param storedHash Full stored hash, including its algorithm prefix
+     * @return The scheme whose prefix the hash starts with, null if there is none
+     */
+    public PasswordHashScheme find(String storedHash) {
+        if (storedHash == null) {
+            return null;
+        }
+
+        for (int i = 0; i < this.prefixLengths.length; i++) {
+            final int length = this.prefixLengths[i];
+            if (storedHash.length() < length) {
+                continue;
+            }
+
+            // Same value String.hashCode() would return for storedHash.substring(0, length)
+            int hash = 0;
+            for (int c = 0; c < length; c++) {
+                hash = 31 * hash + storedHash.charAt(c);
+            }
+
+            final int[] hashes = this.prefixHashes[i];
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index < 0) {
+                continue;
+            }
+            while (index > 0 && hashes[index - 1] == hash) {
+                index--;
+            }
+            for (; index < hashes.length && hashes[index] == hash; index++) {
+                final PasswordHashScheme scheme = this.prefixSchemes[i][index];
+                if (storedHash.startsWith(scheme.getPrefix())) {
+                    return scheme;
+                }
+            }
+        }
+
+        return null;
+    }
+}
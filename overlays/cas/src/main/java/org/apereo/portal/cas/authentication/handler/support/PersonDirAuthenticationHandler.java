@@ -14,49 +14,109 @@
  */
 package org.apereo.portal.cas.authentication.handler.support;
 
+import com.github.inspektr.common.web.ClientInfo;
+import com.github.inspektr.common.web.ClientInfoHolder;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apereo.portal.cas.monitor.AuthenticationMetrics;
+import org.apereo.portal.cas.monitor.AuthenticationMetrics.Outcome;
+import org.apereo.portal.cas.monitor.VerificationPool;
 import org.jasig.cas.authentication.handler.AuthenticationException;
+import org.jasig.cas.authentication.handler.BlockedCredentialsAuthenticationException;
 import org.jasig.cas.authentication.handler.support.AbstractUsernamePasswordAuthenticationHandler;
 import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
-import org.jasypt.digest.config.SimpleDigesterConfig;
-import org.jasypt.util.password.ConfigurablePasswordEncryptor;
+import org.springframework.beans.factory.DisposableBean;
 
 /**
  * Impl of the uPortal MD5 password checking algorithm
  *
+ * <p>The stored hash is checked by the {@link PasswordHashScheme} registered for its prefix. By
+ * default these are the uPortal (MD5) and (SHA256) schemes; other schemes or iteration counts can
+ * be configured with {@link #setHashSchemes(List)}. Each default scheme is checked by a pool of
+ * {@link #setDigesterPoolSize(int)} digesters (one per available processor by default) so that
+ * concurrent logins are not serialized on a single shared digester.
+ *
+ * <p>By default the password hash is checked on the calling (request) thread. Setting {@link
+ * #setVerificationThreads(int)} to a positive value moves the check onto a dedicated pool of that
+ * many threads with a queue of {@link #setVerificationQueueCapacity(int)} waiting checks. When the
+ * queue is full, or a check does not complete within {@link #setVerificationTimeoutMillis(long)},
+ * an {@link AuthenticationBusyException} is thrown instead of tying up more request threads.
+ *
+ * <p>If {@link #setFailureTracker(LoginFailureTracker)} is set, failed logins are counted per user
+ * name and per source address, and once either has failed too often recently, logins are refused
+ * with a {@link BlockedCredentialsAuthenticationException} before the password hash is looked up or
+ * checked, so that password spraying does not take CPU and database time from real users. A
+ * successful login clears the failures of its user name.
+ *
+ * <p>If {@link #setMetrics(AuthenticationMetrics)} is set, the duration and outcome of each check
+ * and the duration of each hash check by algorithm are recorded.
+ *
  */
-public class PersonDirAuthenticationHandler extends AbstractUsernamePasswordAuthenticationHandler {
-    private static final String MD5_PREFIX = "(MD5)";
+public class PersonDirAuthenticationHandler extends AbstractUsernamePasswordAuthenticationHandler
+        implements VerificationPool, DisposableBean {
+    private UserPasswordDao userPasswordDao;
 
-    private static final String SHA256_PREFIX = "(SHA256)";
+    private PasswordHashSchemeRegistry hashSchemes;
+    private boolean defaultHashSchemes;
 
-    private UserPasswordDao userPasswordDao;
+    private int verificationThreads = 0;
+    private int verificationQueueCapacity = 100;
+    private long verificationTimeoutMillis = 5000;
+    private volatile ThreadPoolExecutor verificationExecutor;
+
+    private AuthenticationMetrics metrics;
+    private LoginFailureTracker failureTracker;
 
-    private ConfigurablePasswordEncryptor md5Encryptor;
-    private ConfigurablePasswordEncryptor sha256Encryptor;
+    private final AtomicLong verificationRejectedCount = new AtomicLong();
+    private final AtomicLong verificationTimeoutCount = new AtomicLong();
 
     public PersonDirAuthenticationHandler() {
-        /*
-         * Create an MD5 password encryptor that uses an 8-byte salt with one
-         * hash iteration.  This encryptor should be  capable of validating
-         * legacy uPortal passwords.
-         */
-        md5Encryptor = new ConfigurablePasswordEncryptor();
-        SimpleDigesterConfig md5Config = new SimpleDigesterConfig();
-        md5Config.setIterations(1);
-        md5Config.setAlgorithm("MD5");
-        md5Config.setSaltSizeBytes(8);
-        md5Encryptor.setConfig(md5Config);
-
-        /*
-         * Create a stronger SHA-256 password encryptor for setting and
-         * validating new passwords.
-         */
-        sha256Encryptor = new ConfigurablePasswordEncryptor();
-        SimpleDigesterConfig shaConfig = new SimpleDigesterConfig();
-        shaConfig.setIterations(1000);
-        shaConfig.setAlgorithm("SHA-256");
-        shaConfig.setSaltSizeBytes(8);
-        sha256Encryptor.setConfig(shaConfig);
+        this.hashSchemes =
+                new PasswordHashSchemeRegistry(
+                        SaltedDigestPasswordHashScheme.createDefaultSchemes(
+                                Runtime.getRuntime().availableProcessors()));
+        this.defaultHashSchemes = true;
+    }
+
+    /**
+     * @param hashSchemes The schemes used to check stored password hashes, replaces the default
+     *     (MD5) and (SHA256) schemes
+     */
+    public void setHashSchemes(List<? extends PasswordHashScheme> hashSchemes) {
+        this.hashSchemes = new PasswordHashSchemeRegistry(hashSchemes);
+        this.defaultHashSchemes = false;
+    }
+
+    /** @return The schemes used to check stored password hashes */
+    public List<PasswordHashScheme> getHashSchemes() {
+        return this.hashSchemes.getSchemes();
+    }
+
+    /**
+     * @param digesterPoolSize number of digesters per default scheme, i.e. how many passwords of
+     *     the same algorithm can be checked in parallel. Defaults to the number of available
+     *     processors. Schemes set with {@link #setHashSchemes(List)} have their own pool size.
+     */
+    public void setDigesterPoolSize(int digesterPoolSize) {
+        if (digesterPoolSize < 1) {
+            throw new IllegalArgumentException(
+                    "digesterPoolSize must be greater than 0: " + digesterPoolSize);
+        }
+        if (this.defaultHashSchemes) {
+            this.hashSchemes =
+                    new PasswordHashSchemeRegistry(
+                            SaltedDigestPasswordHashScheme.createDefaultSchemes(digesterPoolSize));
+        }
     }
 
     /** @return the userPasswordDao */
@@ -68,6 +128,90 @@ public class PersonDirAuthenticationHandler extends AbstractUsernamePasswordAuth
         this.userPasswordDao = userPasswordDao;
     }
 
+    /** @return the metrics recorded for each login, null if none */
+    public AuthenticationMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @param metrics the metrics to record the duration and outcome of each login in, which also
+     *     publish the state of the verification threads
+     */
+    public void setMetrics(AuthenticationMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.setVerificationPool(this);
+        }
+    }
+
+    /** @return the tracker of recent login failures, null if none */
+    public LoginFailureTracker getFailureTracker() {
+        return this.failureTracker;
+    }
+
+    /** @param failureTracker the tracker of recent login failures used to refuse logins early */
+    public void setFailureTracker(LoginFailureTracker failureTracker) {
+        this.failureTracker = failureTracker;
+    }
+
+    /**
+     * @param verificationThreads number of threads dedicated to checking password hashes, 0 (the
+     *     default) checks them on the request thread
+     */
+    public void setVerificationThreads(int verificationThreads) {
+        this.verificationThreads = verificationThreads;
+    }
+
+    /** @param verificationQueueCapacity number of checks that may wait for a free thread */
+    public void setVerificationQueueCapacity(int verificationQueueCapacity) {
+        this.verificationQueueCapacity = verificationQueueCapacity;
+    }
+
+    /** @param verificationTimeoutMillis how long a request waits for its check to complete */
+    public void setVerificationTimeoutMillis(long verificationTimeoutMillis) {
+        this.verificationTimeoutMillis = verificationTimeoutMillis;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.VerificationPool#getVerificationQueueDepth()
+     */
+    public int getVerificationQueueDepth() {
+        final ThreadPoolExecutor executor = this.verificationExecutor;
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.VerificationPool#getVerificationActiveCount()
+     */
+    public int getVerificationActiveCount() {
+        final ThreadPoolExecutor executor = this.verificationExecutor;
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.VerificationPool#getVerificationRejectedCount()
+     */
+    public long getVerificationRejectedCount() {
+        return this.verificationRejectedCount.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.VerificationPool#getVerificationTimeoutCount()
+     */
+    public long getVerificationTimeoutCount() {
+        return this.verificationTimeoutCount.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() {
+        final ThreadPoolExecutor executor = this.verificationExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.cas.authentication.handler.support.AbstractUsernamePasswordAuthenticationHandler#authenticateUsernamePasswordInternal(org.jasig.cas.authentication.principal.UsernamePasswordCredentials)
      */
@@ -77,28 +221,181 @@ public class PersonDirAuthenticationHandler extends AbstractUsernamePasswordAuth
         final String username = credentials.getUsername();
         final String cleartextPassword = credentials.getPassword();
 
-        final String expectedFullHash = this.userPasswordDao.getPasswordHash(username);
+        final long start = System.nanoTime();
+        final LoginFailureTracker failureTracker = this.failureTracker;
+        final String source = failureTracker != null ? getSourceAddress() : null;
+        Outcome outcome = Outcome.ERROR;
+        try {
+            if (failureTracker != null && failureTracker.isBlocked(username, source)) {
+                outcome = Outcome.SHED;
+                if (this.log.isDebugEnabled()) {
+                    this.log.debug(
+                            "Too many recent login failures, refusing login attempt for user '"
+                                    + username
+                                    + "' from "
+                                    + source);
+                }
+                throw new BlockedCredentialsAuthenticationException();
+            }
 
-        if (expectedFullHash == null) {
-            return false;
+            final String expectedFullHash = this.userPasswordDao.getPasswordHash(username);
+
+            if (expectedFullHash == null) {
+                outcome = Outcome.UNKNOWN_USER;
+                return false;
+            }
+
+            outcome = verifyPassword(username, cleartextPassword, expectedFullHash);
+            return outcome == Outcome.SUCCESS;
+        } catch (AuthenticationBusyException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } finally {
+            if (failureTracker != null) {
+                if (outcome == Outcome.SUCCESS) {
+                    failureTracker.recordSuccess(username, source);
+                } else if (outcome == Outcome.BAD_PASSWORD
+                        || outcome == Outcome.UNKNOWN_USER
+                        || outcome == Outcome.INVALID_HASH) {
+                    failureTracker.recordFailure(username, source);
+                }
+            }
+            final AuthenticationMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.recordAuthentication(outcome, start);
+            }
         }
+    }
 
-        if (expectedFullHash.startsWith(MD5_PREFIX)) {
+    /**
+     * @return the IP address the login comes from, as recorded by the ClientInfoThreadLocalFilter,
+     *     null if unknown
+     */
+    protected String getSourceAddress() {
+        final ClientInfo clientInfo = ClientInfoHolder.getClientInfo();
+        return clientInfo != null ? clientInfo.getClientIpAddress() : null;
+    }
 
-            String hashWithoutAlgorithmPrefix = expectedFullHash.substring(5);
-            return md5Encryptor.checkPassword(cleartextPassword, hashWithoutAlgorithmPrefix);
+    /**
+     * Check the password on the calling thread, or on the verification pool if one is configured.
+     */
+    private Outcome verifyPassword(
+            final String username, final String cleartextPassword, final String expectedFullHash)
+            throws AuthenticationBusyException {
+        final ThreadPoolExecutor executor = getVerificationExecutor();
+        if (executor == null) {
+            return checkPassword(username, cleartextPassword, expectedFullHash);
+        }
 
-        } else if (expectedFullHash.startsWith(SHA256_PREFIX)) {
+        final Future<Outcome> result;
+        try {
+            result =
+                    executor.submit(
+                            new Callable<Outcome>() {
+                                public Outcome call() {
+                                    return checkPassword(
+                                            username, cleartextPassword, expectedFullHash);
+                                }
+                            });
+        } catch (RejectedExecutionException e) {
+            this.verificationRejectedCount.incrementAndGet();
+            this.log.warn(
+                    "Password verification queue is full, rejecting login attempt for user '"
+                            + username
+                            + "'");
+            throw new AuthenticationBusyException(e);
+        }
 
-            String hashWithoutAlgorithmPrefix = expectedFullHash.substring(8);
-            return sha256Encryptor.checkPassword(cleartextPassword, hashWithoutAlgorithmPrefix);
+        try {
+            return result.get(this.verificationTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            this.verificationTimeoutCount.incrementAndGet();
+            this.log.warn(
+                    "Password verification for user '"
+                            + username
+                            + "' did not complete within "
+                            + this.verificationTimeoutMillis
+                            + "ms");
+            throw new AuthenticationBusyException(e);
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AuthenticationBusyException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
 
-        } else {
+    /**
+     * Check the cleartext password against the full (algorithm prefixed) hash stored for the user.
+     *
+     * @return {@link Outcome#SUCCESS} if the password matches, {@link Outcome#BAD_PASSWORD} if it
+     *     does not, {@link Outcome#INVALID_HASH} if no configured scheme can read the stored hash
+     */
+    protected Outcome checkPassword(
+            String username, String cleartextPassword, String expectedFullHash) {
+        final PasswordHashScheme scheme = this.hashSchemes.find(expectedFullHash);
+        if (scheme == null) {
             this.log.error(
                     "Existing password hash for user '"
                             + username
                             + "' is not a valid hash. It does not start with a supported algorithm prefix");
-            return false;
+            return Outcome.INVALID_HASH;
+        }
+
+        final long start = System.nanoTime();
+        final boolean matches = scheme.matches(cleartextPassword, expectedFullHash);
+
+        final AuthenticationMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordVerification(scheme.getPrefix(), start);
+        }
+        return matches ? Outcome.SUCCESS : Outcome.BAD_PASSWORD;
+    }
+
+    private ThreadPoolExecutor getVerificationExecutor() {
+        if (this.verificationThreads <= 0) {
+            return null;
+        }
+
+        ThreadPoolExecutor executor = this.verificationExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.verificationExecutor;
+                if (executor == null) {
+                    executor =
+                            new ThreadPoolExecutor(
+                                    this.verificationThreads,
+                                    this.verificationThreads,
+                                    60L,
+                                    TimeUnit.SECONDS,
+                                    new ArrayBlockingQueue<Runnable>(
+                                            Math.max(1, this.verificationQueueCapacity)),
+                                    new VerificationThreadFactory());
+                    executor.allowCoreThreadTimeOut(true);
+                    this.verificationExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static final class VerificationThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            final Thread thread =
+                    new Thread(r, "cas-password-verification-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
         }
     }
 }
@@ -0,0 +1,240 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.apereo.portal.cas.monitor.AuthenticationMetrics;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Retrieves the password hash and the attributes of a uPortal local account in one query, joining
+ * UP_PERSON_DIR with UP_PERSON_ATTR and UP_PERSON_ATTR_VALUES. The attributes read with the hash
+ * are kept for a short time so that the attribute repository (see {@link
+ * org.apereo.portal.cas.persondir.PrefetchedPersonAttributeDao}) can hand them to the principal
+ * resolver once the password is verified, instead of querying the database again. Attributes
+ * that are not picked up, e.g. after a wrong password, are dropped after {@link
+ * #setPrefetchTimeToLiveSeconds(int)} or once {@link #setMaxPrefetched(int)} are kept.
+ */
+public class PortalPersonDirAttributeUserPasswordDao implements UserPasswordDao {
+    static final String DEFAULT_PERSON_QUERY =
+            "SELECT D.USER_ID, D.ENCRPTD_PSWD, A.ATTR_NAME, V.ATTR_VALUE"
+                    + " FROM UP_PERSON_DIR D"
+                    + " LEFT JOIN UP_PERSON_ATTR A ON A.USER_DIR_ID = D.USER_ID"
+                    + " LEFT JOIN UP_PERSON_ATTR_VALUES V ON V.ATTR_ID = A.ID"
+                    + " WHERE D.USER_NAME = ?"
+                    + " ORDER BY A.ID, V.VALUE_ORDER";
+
+    private final AtomicLong prefetchHitCount = new AtomicLong();
+    private final AtomicLong attributeQueryCount = new AtomicLong();
+
+    private JdbcTemplate jdbcTemplate;
+    private AuthenticationMetrics metrics;
+    private String personQuery = DEFAULT_PERSON_QUERY;
+    private Map<String, String> attributeNames = Collections.emptyMap();
+    private int maxPrefetched = 1000;
+    private long prefetchTimeToLiveNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private Map<String, Prefetched> prefetched = createPrefetched(this.maxPrefetched);
+
+    /** @param dataSource the uPortal database */
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /** @param metrics the metrics to record the duration of each query in */
+    public void setMetrics(AuthenticationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param personQuery query for one row per attribute value of the user name parameter, with
+     *     the columns: user id, password hash, attribute name and attribute value. Users without
+     *     attributes have one row with null attribute name and value.
+     */
+    public void setPersonQuery(String personQuery) {
+        this.personQuery = personQuery;
+    }
+
+    /**
+     * @param attributeNames attribute names as stored in uPortal mapped to the names to give them
+     *     in the principal. Attributes not listed are left out; if empty, the default, all are
+     *     kept under their stored names.
+     */
+    public void setAttributeNames(Map<String, String> attributeNames) {
+        this.attributeNames = new LinkedHashMap<String, String>(attributeNames);
+    }
+
+    /** @return the attribute name mapping, empty if all attributes are kept */
+    public Map<String, String> getAttributeNames() {
+        return Collections.unmodifiableMap(this.attributeNames);
+    }
+
+    /** @param maxPrefetched most users whose attributes are kept, defaults to 1000 */
+    public void setMaxPrefetched(int maxPrefetched) {
+        if (maxPrefetched < 1) {
+            throw new IllegalArgumentException(
+                    "maxPrefetched must be greater than 0: " + maxPrefetched);
+        }
+        this.maxPrefetched = maxPrefetched;
+        this.prefetched = createPrefetched(maxPrefetched);
+    }
+
+    /**
+     * @param prefetchTimeToLiveSeconds how long attributes read with a password hash are kept for
+     *     the attribute repository, defaults to 60
+     */
+    public void setPrefetchTimeToLiveSeconds(int prefetchTimeToLiveSeconds) {
+        this.prefetchTimeToLiveNanos = TimeUnit.SECONDS.toNanos(prefetchTimeToLiveSeconds);
+    }
+
+    /** @return number of attribute lookups answered with attributes read with the password hash */
+    public long getPrefetchHitCount() {
+        return this.prefetchHitCount.get();
+    }
+
+    /** @return number of attribute lookups that had to query the database */
+    public long getAttributeQueryCount() {
+        return this.attributeQueryCount.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#getPasswordHash(java.lang.String)
+     */
+    public String getPasswordHash(String userName) {
+        final long start = System.nanoTime();
+        try {
+            final Person person = queryPerson(userName);
+            if (person == null) {
+                return null;
+            }
+            final Map<String, Prefetched> prefetched = this.prefetched;
+            final Prefetched entry =
+                    new Prefetched(
+                            person.attributes, System.nanoTime() + this.prefetchTimeToLiveNanos);
+            synchronized (prefetched) {
+                prefetched.put(userName, entry);
+            }
+            return person.passwordHash;
+        } finally {
+            final AuthenticationMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.recordPasswordLookup(start);
+            }
+        }
+    }
+
+    /**
+     * Returns the attributes read with the user's password hash, if they are recent, or queries
+     * them otherwise. Attributes read with a password hash are only returned once.
+     *
+     * @return the user's attributes, null if the user does not exist
+     */
+    public Map<String, List<Object>> getAttributes(String userName) {
+        final Map<String, Prefetched> prefetched = this.prefetched;
+        final Prefetched entry;
+        synchronized (prefetched) {
+            entry = prefetched.remove(userName);
+        }
+        if (entry != null && entry.expires - System.nanoTime() > 0) {
+            this.prefetchHitCount.incrementAndGet();
+            return entry.attributes;
+        }
+
+        this.attributeQueryCount.incrementAndGet();
+        final Person person = queryPerson(userName);
+        return person == null ? null : person.attributes;
+    }
+
+    private Person queryPerson(String userName) {
+        final Set<Object> userIds = new HashSet<Object>();
+        final Person person = new Person();
+        this.jdbcTemplate.query(
+                this.personQuery,
+                new RowCallbackHandler() {
+                    public void processRow(ResultSet rs) throws SQLException {
+                        if (userIds.add(rs.getObject(1))) {
+                            person.passwordHash = rs.getString(2);
+                        }
+                        addAttribute(person.attributes, rs.getString(3), rs.getString(4));
+                    }
+                },
+                userName);
+
+        if (userIds.isEmpty()) {
+            return null;
+        }
+        if (userIds.size() > 1) {
+            throw new IncorrectResultSizeDataAccessException(1, userIds.size());
+        }
+        return person;
+    }
+
+    private void addAttribute(Map<String, List<Object>> attributes, String name, String value) {
+        if (name == null || value == null) {
+            return;
+        }
+        final String mappedName =
+                this.attributeNames.isEmpty() ? name : this.attributeNames.get(name);
+        if (mappedName == null) {
+            return;
+        }
+        List<Object> values = attributes.get(mappedName);
+        if (values == null) {
+            values = new ArrayList<Object>(1);
+            attributes.put(mappedName, values);
+        }
+        values.add(value);
+    }
+
+    private static Map<String, Prefetched> createPrefetched(final int maxSize) {
+        return new LinkedHashMap<String, Prefetched>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Prefetched> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static final class Person {
+        private final Map<String, List<Object>> attributes =
+                new LinkedHashMap<String, List<Object>>();
+        private String passwordHash;
+    }
+
+    private static final class Prefetched {
+        private final Map<String, List<Object>> attributes;
+        private final long expires;
+
+        Prefetched(Map<String, List<Object>> attributes, long expires) {
+            this.attributes = attributes;
+            this.expires = expires;
+        }
+    }
+}
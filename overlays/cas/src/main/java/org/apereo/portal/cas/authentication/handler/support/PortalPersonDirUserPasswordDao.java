@@ -15,6 +15,7 @@
 package org.apereo.portal.cas.authentication.handler.support;
 
 import javax.sql.DataSource;
+import org.apereo.portal.cas.monitor.AuthenticationMetrics;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 ;
@@ -29,6 +30,7 @@ public class PortalPersonDirUserPasswordDao implements UserPasswordDao {
 
     private DataSource dataSource;
     private JdbcTemplate jdbcTemplate;
+    private AuthenticationMetrics metrics;
 
     /** @return the dataSource */
     public DataSource getDataSource() {
@@ -41,14 +43,25 @@ public class PortalPersonDirUserPasswordDao implements UserPasswordDao {
         this.jdbcTemplate = new JdbcTemplate(this.dataSource);
     }
 
+    /** @param metrics the metrics to record the duration of each query in */
+    public void setMetrics(AuthenticationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /* (non-Javadoc)
      * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#getPasswordHash(java.lang.String)
      */
     public String getPasswordHash(String userName) {
+        final long start = System.nanoTime();
         try {
             return this.jdbcTemplate.queryForObject(PERSON_DIR_QUERY, String.class, userName);
         } catch (EmptyResultDataAccessException e) {
             return null;
+        } finally {
+            final AuthenticationMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.recordPasswordLookup(start);
+            }
         }
     }
 }
@@ -0,0 +1,213 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.codec.binary.Base64;
+import org.jasypt.digest.PooledByteDigester;
+
+/**
+ * Salted, iterated message digest in the format written by uPortal (and by jasypt's
+ * StandardStringDigester): the prefix followed by the Base64 encoding of the salt and the digest.
+ * The part of the stored hash that follows the prefix is copied into a byte array, then Base64
+ * decoded; a hash with non-ASCII characters is rejected before decoding.
+ *
+ * <p>The number of iterations is part of the hash format: it must be the value uPortal used when it
+ * hashed the stored passwords. To raise the cost, configure uPortal and CAS with a new prefix for
+ * the new iteration count and keep the old scheme registered for existing passwords. {@link
+ * PasswordHashCalibrator} measures what a given cost amounts to on the current host.
+ */
+public class SaltedDigestPasswordHashScheme implements PasswordHashScheme {
+    public static final String MD5_PREFIX = "(MD5)";
+
+    public static final String SHA256_PREFIX = "(SHA256)";
+
+    private static final Charset MESSAGE_CHARSET = Charset.forName("UTF-8");
+
+    private String prefix;
+    private String algorithm;
+    private int iterations = 1000;
+    private int saltSizeBytes = 8;
+    private int poolSize = Runtime.getRuntime().availableProcessors();
+
+    private volatile PooledByteDigester digester;
+
+    public SaltedDigestPasswordHashScheme() {}
+
+    public SaltedDigestPasswordHashScheme(
+            String prefix, String algorithm, int iterations, int poolSize) {
+        this.prefix = prefix;
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param poolSize Number of digesters per scheme
+     * @return The schemes uPortal uses to hash passwords
+     */
+    public static List<PasswordHashScheme> createDefaultSchemes(int poolSize) {
+        return Arrays.<PasswordHashScheme>asList(
+                /*
+                 * MD5 with an 8-byte salt and one hash iteration.  This scheme
+                 * should be capable of validating legacy uPortal passwords.
+                 */
+                new SaltedDigestPasswordHashScheme(MD5_PREFIX, "MD5", 1, poolSize),
+                /*
+                 * The stronger SHA-256 scheme used for setting and validating
+                 * new passwords.
+                 */
+                new SaltedDigestPasswordHashScheme(SHA256_PREFIX, "SHA-256", 1000, poolSize));
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordHashScheme#getPrefix()
+     */
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    /** @param prefix The prefix that identifies hashes of this scheme, e.g. "(SHA256)" */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /** @param algorithm Name of the JCA message digest algorithm, e.g. "SHA-256" */
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public int getIterations() {
+        return this.iterations;
+    }
+
+    /** @param iterations Number of times the digest is applied, defaults to 1000 */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public int getSaltSizeBytes() {
+        return this.saltSizeBytes;
+    }
+
+    /** @param saltSizeBytes Size of the salt stored in front of the digest, defaults to 8 */
+    public void setSaltSizeBytes(int saltSizeBytes) {
+        this.saltSizeBytes = saltSizeBytes;
+    }
+
+    public int getPoolSize() {
+        return this.poolSize;
+    }
+
+    /**
+     * @param poolSize Number of digesters, i.e. how many hashes of this scheme can be checked in
+     *     parallel. Defaults to the number of available processors.
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordHashScheme#matches(java.lang.String, java.lang.String)
+     */
+    public boolean matches(String cleartextPassword, String storedHash) {
+        if (cleartextPassword == null || storedHash == null) {
+            return false;
+        }
+
+        final byte[] digest = decodeDigest(storedHash, this.prefix.length());
+        if (digest == null || digest.length <= this.saltSizeBytes) {
+            return false;
+        }
+
+        return getDigester().matches(toMessageBytes(cleartextPassword), digest);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordHashScheme#hash(java.lang.String)
+     */
+    public String hash(String cleartextPassword) {
+        final byte[] digest = getDigester().digest(toMessageBytes(cleartextPassword));
+        return this.prefix + Base64.encodeBase64String(digest);
+    }
+
+    @Override
+    public String toString() {
+        return "SaltedDigestPasswordHashScheme [prefix="
+                + this.prefix
+                + ", algorithm="
+                + this.algorithm
+                + ", iterations="
+                + this.iterations
+                + ", saltSizeBytes="
+                + this.saltSizeBytes
+                + "]";
+    }
+
+    private static byte[] toMessageBytes(String cleartextPassword) {
+        // Same normalization jasypt applies before digesting a String
+        return Normalizer.normalize(cleartextPassword, Normalizer.Form.NFC)
+                .getBytes(MESSAGE_CHARSET);
+    }
+
+    /** Decode the Base64 text that starts at offset in storedHash, null if it is not valid Base64. */
+    private static byte[] decodeDigest(String storedHash, int offset) {
+        final int length = storedHash.length() - offset;
+        if (length <= 0) {
+            return null;
+        }
+
+        final byte[] encoded = new byte[length];
+        for (int i = 0; i < length; i++) {
+            final char c = storedHash.charAt(offset + i);
+            if (c > 0x7f) {
+                return null;
+            }
+            encoded[i] = (byte) c;
+        }
+        return Base64.decodeBase64(encoded);
+    }
+
+    /** @return the digesters, created on first use */
+    PooledByteDigester getDigester() {
+        PooledByteDigester digester = this.digester;
+        if (digester == null) {
+            synchronized (this) {
+                digester = this.digester;
+                if (digester == null) {
+                    if (this.prefix == null || this.algorithm == null) {
+                        throw new IllegalStateException(
+                                "prefix and algorithm must be set: " + this);
+                    }
+                    digester = new PooledByteDigester();
+                    digester.setAlgorithm(this.algorithm);
+                    digester.setIterations(this.iterations);
+                    digester.setSaltSizeBytes(this.saltSizeBytes);
+                    digester.setPoolSize(Math.max(1, this.poolSize));
+                    digester.initialize();
+                    this.digester = digester;
+                }
+            }
+        }
+        return digester;
+    }
+}
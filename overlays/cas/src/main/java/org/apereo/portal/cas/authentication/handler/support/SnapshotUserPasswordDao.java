@@ -0,0 +1,640 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Answers password hash lookups from an in-memory copy of UP_PERSON_DIR so that logins do not
+ * query the database. The whole table is loaded in the background when the bean starts and again
+ * every {@link #setReloadIntervalSeconds(int)}; in between, every {@link
+ * #setRefreshIntervalSeconds(int)} only the rows whose password changed recently are read (see
+ * {@link #setChangesQuery(String)}). Until the first load completes, and for user names that are
+ * not in the copy (e.g. accounts created since the last refresh), lookups fall back to {@link
+ * #setUserPasswordDao(UserPasswordDao)}.
+ *
+ * <p>User names and hashes are not kept as Strings: each entry is packed as bytes into one array
+ * and found through an open addressing table of offsets, with the hash scheme prefix (e.g.
+ * "(SHA256)") interned as a one byte index. For 1M users with 11 character user names and SHA-256
+ * hashes this takes 89MB of heap (72MB of entries and 16MB of table), against 272MB for the same
+ * data in a HashMap&lt;String,String&gt; (measured on a 64-bit Java 8 JVM). While the table is
+ * reloaded the previous copy stays in use. The new copy is sized from {@link
+ * #setCountQuery(String)} and the size of the entries last loaded, so a reload peaks at a little
+ * over twice that; without the count, or if the table grew a lot since it was counted, the arrays
+ * grow by copying and the peak is 3 to 4 times that.
+ *
+ * <p>Deleted accounts, and password changes that do not update LST_PSWD_CGH_DT (e.g. data
+ * imports), are only seen at the next full reload.
+ */
+public class SnapshotUserPasswordDao implements UserPasswordDao, InitializingBean, DisposableBean {
+    static final String DEFAULT_SNAPSHOT_QUERY =
+            "SELECT USER_NAME, ENCRPTD_PSWD FROM UP_PERSON_DIR";
+    static final String DEFAULT_CHANGES_QUERY =
+            "SELECT USER_NAME, ENCRPTD_PSWD FROM UP_PERSON_DIR WHERE LST_PSWD_CGH_DT >= ?";
+    static final String DEFAULT_COUNT_QUERY = "SELECT COUNT(*) FROM UP_PERSON_DIR";
+
+    /** Bytes per entry assumed before the first load, an 11 character user name and SHA-256 */
+    private static final int DEFAULT_ENTRY_BYTES = 72;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    /** changes read since the last full reload, by user name; guarded by itself */
+    private final Map<String, String> changes = new LinkedHashMap<String, String>();
+
+    private JdbcTemplate jdbcTemplate;
+    private UserPasswordDao userPasswordDao;
+    private String snapshotQuery = DEFAULT_SNAPSHOT_QUERY;
+    private String changesQuery = DEFAULT_CHANGES_QUERY;
+    private String countQuery = DEFAULT_COUNT_QUERY;
+    private int fetchSize = 1000;
+    private long refreshIntervalMillis = TimeUnit.SECONDS.toMillis(30);
+    private long reloadIntervalMillis = TimeUnit.HOURS.toMillis(1);
+    private long changesOverlapMillis = TimeUnit.MINUTES.toMillis(5);
+    private int maxChanges = 100000;
+
+    private volatile State state;
+    private long lastReload;
+    private long changesSince;
+    private int entryBytes = DEFAULT_ENTRY_BYTES;
+    private ScheduledExecutorService refreshExecutor;
+
+    /** @param dataSource the uPortal database */
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(this.fetchSize);
+    }
+
+    /** @return the DAO lookups fall back to */
+    public UserPasswordDao getUserPasswordDao() {
+        return this.userPasswordDao;
+    }
+
+    /**
+     * @param userPasswordDao the DAO to look up user names that are not in memory, usually a
+     *     CachingUserPasswordDao so that unknown user names do not each query the database
+     */
+    public void setUserPasswordDao(UserPasswordDao userPasswordDao) {
+        this.userPasswordDao = userPasswordDao;
+    }
+
+    /** @param snapshotQuery query for all user names and password hashes, in that order */
+    public void setSnapshotQuery(String snapshotQuery) {
+        this.snapshotQuery = snapshotQuery;
+    }
+
+    /**
+     * @param changesQuery query for the user names and password hashes changed since the time
+     *     stamp parameter, defaults to the rows whose LST_PSWD_CGH_DT is later. Set to null to only
+     *     do full reloads.
+     */
+    public void setChangesQuery(String changesQuery) {
+        this.changesQuery = changesQuery;
+    }
+
+    /**
+     * @param countQuery query for the number of rows the snapshot query returns, used to size the
+     *     in-memory copy before it is loaded. Set to null to not count first.
+     */
+    public void setCountQuery(String countQuery) {
+        this.countQuery = countQuery;
+    }
+
+    /** @param fetchSize rows fetched per round trip while loading, defaults to 1000 */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        if (this.jdbcTemplate != null) {
+            this.jdbcTemplate.setFetchSize(fetchSize);
+        }
+    }
+
+    /**
+     * @param refreshIntervalSeconds seconds between reads of recent changes, defaults to 30. Set to
+     *     0 to not refresh in the background at all.
+     */
+    public void setRefreshIntervalSeconds(int refreshIntervalSeconds) {
+        this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(refreshIntervalSeconds);
+    }
+
+    /** @param reloadIntervalSeconds seconds between full reloads, defaults to 3600 */
+    public void setReloadIntervalSeconds(int reloadIntervalSeconds) {
+        this.reloadIntervalMillis = TimeUnit.SECONDS.toMillis(reloadIntervalSeconds);
+    }
+
+    /**
+     * @param changesOverlapSeconds how far before the previous refresh changes are read again, to
+     *     allow for clock differences between uPortal and CAS, defaults to 300
+     */
+    public void setChangesOverlapSeconds(int changesOverlapSeconds) {
+        this.changesOverlapMillis = TimeUnit.SECONDS.toMillis(changesOverlapSeconds);
+    }
+
+    /**
+     * @param maxChanges changes kept in memory before the next refresh is a full reload, defaults
+     *     to 100000
+     */
+    public void setMaxChanges(int maxChanges) {
+        this.maxChanges = maxChanges;
+    }
+
+    /** @return number of lookups answered from memory */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /** @return number of lookups passed to the fallback DAO */
+    public long getFallbackCount() {
+        return this.fallbackCount.get();
+    }
+
+    /**
+     * @return number of entries in memory, 0 until the first load completes. A user whose password
+     *     changed since the last full reload has two.
+     */
+    public int getSize() {
+        final State state = this.state;
+        return state == null ? 0 : state.snapshot.size + state.changes.size;
+    }
+
+    /** @return approximate heap used by the in-memory copy, in bytes */
+    public long getMemoryBytes() {
+        final State state = this.state;
+        return state == null
+                ? 0
+                : state.snapshot.getMemoryBytes() + state.changes.getMemoryBytes();
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() {
+        if (this.refreshIntervalMillis <= 0) {
+            return;
+        }
+        this.refreshExecutor =
+                Executors.newSingleThreadScheduledExecutor(new RefreshThreadFactory());
+        this.refreshExecutor.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        try {
+                            refresh();
+                        } catch (RuntimeException e) {
+                            logger.warn(
+                                    "Failed to refresh the password hashes from UP_PERSON_DIR,"
+                                            + " keeping the previous ones",
+                                    e);
+                        }
+                    }
+                },
+                0,
+                this.refreshIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() {
+        if (this.refreshExecutor != null) {
+            this.refreshExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the changes since the previous refresh or, on the first call and once the reload
+     * interval has passed, the whole table. Runs in the background; call it directly to refresh
+     * now.
+     */
+    public void refresh() {
+        synchronized (this.changes) {
+            final long start = currentTimeMillis();
+            if (this.state == null
+                    || this.changesQuery == null
+                    || start - this.lastReload >= this.reloadIntervalMillis) {
+                reload(start);
+            } else {
+                readChanges(start);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#getPasswordHash(java.lang.String)
+     */
+    public String getPasswordHash(String userName) {
+        final State state = this.state;
+        if (state != null && userName != null) {
+            final byte[] key = userName.getBytes(UTF_8);
+            final int hash = Snapshot.hash(key);
+
+            Snapshot snapshot = state.changes;
+            int entry = snapshot.find(key, hash);
+            if (entry < 0) {
+                snapshot = state.snapshot;
+                entry = snapshot.find(key, hash);
+            }
+            if (entry >= 0 && !snapshot.isDuplicate(entry)) {
+                this.hitCount.incrementAndGet();
+                return snapshot.getPasswordHash(entry);
+            }
+        }
+
+        this.fallbackCount.incrementAndGet();
+        return this.userPasswordDao.getPasswordHash(userName);
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void reload(long start) {
+        final SnapshotBuilder builder = newSnapshotBuilder();
+        this.jdbcTemplate.query(
+                this.snapshotQuery,
+                new RowCallbackHandler() {
+                    public void processRow(ResultSet rs) throws SQLException {
+                        builder.add(rs.getString(1), rs.getString(2));
+                    }
+                });
+        if (builder.size > 0) {
+            this.entryBytes = Math.max(1, builder.length / builder.size);
+        }
+        final Snapshot snapshot = builder.build();
+
+        this.changes.clear();
+        this.state = new State(snapshot, new SnapshotBuilder().build());
+        this.lastReload = start;
+        this.changesSince = start;
+
+        this.logger.info(
+                "Loaded {} password hashes from UP_PERSON_DIR into {} bytes in {}ms",
+                snapshot.size,
+                snapshot.getMemoryBytes(),
+                currentTimeMillis() - start);
+    }
+
+    /** @return a builder sized for the rows the count query reports, plus room for a few more */
+    private SnapshotBuilder newSnapshotBuilder() {
+        if (this.countQuery == null) {
+            return new SnapshotBuilder();
+        }
+        final Long rows = this.jdbcTemplate.queryForObject(this.countQuery, Long.class);
+        if (rows == null || rows <= 0) {
+            return new SnapshotBuilder();
+        }
+        // rows may be inserted between the count and the snapshot query
+        final long entries = rows + rows / 16 + 16;
+        return new SnapshotBuilder(entries, entries * this.entryBytes);
+    }
+
+    private void readChanges(long start) {
+        final State state = this.state;
+        final Map<String, String> changed = new LinkedHashMap<String, String>();
+        this.jdbcTemplate.query(
+                this.changesQuery,
+                new RowCallbackHandler() {
+                    public void processRow(ResultSet rs) throws SQLException {
+                        final String userName = rs.getString(1);
+                        final String passwordHash = rs.getString(2);
+                        if (userName != null && !isCurrent(state, userName, passwordHash)) {
+                            changed.put(userName, passwordHash);
+                        }
+                    }
+                },
+                new Timestamp(this.changesSince - this.changesOverlapMillis));
+        this.changesSince = start;
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        this.changes.putAll(changed);
+        if (this.changes.size() > this.maxChanges) {
+            reload(start);
+            return;
+        }
+
+        final SnapshotBuilder builder = new SnapshotBuilder();
+        for (Map.Entry<String, String> change : this.changes.entrySet()) {
+            builder.add(change.getKey(), change.getValue());
+        }
+        this.state = new State(state.snapshot, builder.build());
+        this.logger.debug("Read {} changed password hashes from UP_PERSON_DIR", changed.size());
+    }
+
+    /** @return true if the in-memory copy already has this password hash for the user name */
+    private boolean isCurrent(State state, String userName, String passwordHash) {
+        if (this.changes.containsKey(userName)) {
+            return equal(this.changes.get(userName), passwordHash);
+        }
+        final byte[] key = userName.getBytes(UTF_8);
+        final int entry = state.snapshot.find(key, Snapshot.hash(key));
+        return entry >= 0
+                && !state.snapshot.isDuplicate(entry)
+                && equal(state.snapshot.getPasswordHash(entry), passwordHash);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Full copy of the table, plus the changes read since it was loaded. */
+    private static final class State {
+        private final Snapshot snapshot;
+        private final Snapshot changes;
+
+        State(Snapshot snapshot, Snapshot changes) {
+            this.snapshot = snapshot;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Immutable user name to password hash table. Each entry is stored in {@link #data} as:
+     *
+     * <pre>
+     * 2 bytes  user name length
+     * n bytes  user name, UTF-8
+     * 1 byte   index of the interned hash prefix, 0 for none
+     * 2 bytes  length of the rest of the hash, NULL_HASH or DUPLICATE
+     * n bytes  rest of the hash, UTF-8
+     * </pre>
+     *
+     * and found by linear probing in {@link #offsets} (entry offset + 1, 0 for an empty slot),
+     * kept at most half full; {@link #hashes} holds the hash of each slot's user name so that
+     * probing rarely compares bytes that cannot match.
+     */
+    private static final class Snapshot {
+        private static final int NULL_HASH = 0xFFFF;
+        private static final int DUPLICATE = 0xFFFE;
+        private static final int MAX_LENGTH = 0xFFFD;
+
+        private final byte[] data;
+        private final int[] offsets;
+        private final int[] hashes;
+        private final String[] prefixes;
+        private final int size;
+
+        Snapshot(byte[] data, int[] offsets, int[] hashes, String[] prefixes, int size) {
+            this.data = data;
+            this.offsets = offsets;
+            this.hashes = hashes;
+            this.prefixes = prefixes;
+            this.size = size;
+        }
+
+        static int hash(byte[] key) {
+            int h = 0x811C9DC5;
+            for (byte b : key) {
+                h = (h ^ b) * 0x01000193;
+            }
+            // murmur3 finalizer, so that the low bits used for the slot are well mixed
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            return h ^ (h >>> 16);
+        }
+
+        /** @return the offset of the entry for the user name, -1 if there is none */
+        int find(byte[] key, int hash) {
+            final int mask = this.offsets.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                final int offset = this.offsets[slot] - 1;
+                if (offset < 0) {
+                    return -1;
+                }
+                if (this.hashes[slot] == hash && keyEquals(offset, key)) {
+                    return offset;
+                }
+            }
+        }
+
+        /** @return true if the user name is in the table more than once, so must be looked up */
+        boolean isDuplicate(int entry) {
+            return readLength(valueLengthOffset(entry)) == DUPLICATE;
+        }
+
+        String getPasswordHash(int entry) {
+            final int valueLengthOffset = valueLengthOffset(entry);
+            final int length = readLength(valueLengthOffset);
+            if (length == NULL_HASH) {
+                return null;
+            }
+            final String rest = new String(this.data, valueLengthOffset + 2, length, UTF_8);
+            final int prefix = this.data[valueLengthOffset - 1] & 0xFF;
+            return prefix == 0 ? rest : this.prefixes[prefix].concat(rest);
+        }
+
+        long getMemoryBytes() {
+            // array headers and the prefix Strings are negligible
+            return this.data.length + 8L * this.offsets.length;
+        }
+
+        private boolean keyEquals(int offset, byte[] key) {
+            if (readLength(offset) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (this.data[offset + 2 + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int valueLengthOffset(int entry) {
+            return entry + 2 + readLength(entry) + 1;
+        }
+
+        private int readLength(int offset) {
+            return (this.data[offset] & 0xFF) << 8 | (this.data[offset + 1] & 0xFF);
+        }
+    }
+
+    /** Packs entries as they are read and builds the {@link Snapshot} once all are in. */
+    private static final class SnapshotBuilder {
+        private static final int MAX_PREFIXES = 255;
+        private static final int MAX_PREFIX_LENGTH = 16;
+        private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+        private final Map<String, Integer> prefixIndexes = new HashMap<String, Integer>();
+        private final List<String> prefixes = new ArrayList<String>();
+
+        private byte[] data = new byte[4096];
+        private int length;
+        private int[] entries = new int[256];
+        private int size;
+
+        SnapshotBuilder() {
+            this.prefixes.add("");
+        }
+
+        SnapshotBuilder(long entries, long dataBytes) {
+            this();
+            this.entries = new int[(int) Math.min(MAX_ARRAY_LENGTH, Math.max(256, entries))];
+            this.data = new byte[(int) Math.min(MAX_ARRAY_LENGTH, Math.max(4096, dataBytes))];
+        }
+
+        void add(String userName, String passwordHash) {
+            if (userName == null) {
+                return;
+            }
+            final byte[] key = userName.getBytes(UTF_8);
+            int prefix = 0;
+            byte[] rest = null;
+            if (passwordHash != null) {
+                final int end = passwordHash.indexOf(')');
+                if (passwordHash.startsWith("(") && end > 0 && end < MAX_PREFIX_LENGTH) {
+                    prefix = internPrefix(passwordHash.substring(0, end + 1));
+                }
+                rest =
+                        (prefix == 0
+                                        ? passwordHash
+                                        : passwordHash.substring(
+                                                this.prefixes.get(prefix).length()))
+                                .getBytes(UTF_8);
+            }
+            if (key.length > Snapshot.MAX_LENGTH
+                    || rest != null && rest.length > Snapshot.MAX_LENGTH) {
+                // Left to the fallback DAO
+                return;
+            }
+
+            ensureCapacity(2 + key.length + 1 + 2 + (rest == null ? 0 : rest.length));
+            if (this.size == this.entries.length) {
+                this.entries = Arrays.copyOf(this.entries, this.size * 2);
+            }
+            this.entries[this.size++] = this.length;
+            writeLength(key.length);
+            System.arraycopy(key, 0, this.data, this.length, key.length);
+            this.length += key.length;
+            this.data[this.length++] = (byte) prefix;
+            if (rest == null) {
+                writeLength(Snapshot.NULL_HASH);
+            } else {
+                writeLength(rest.length);
+                System.arraycopy(rest, 0, this.data, this.length, rest.length);
+                this.length += rest.length;
+            }
+        }
+
+        Snapshot build() {
+            // at most half full;  highestOneBit of size * 2 - 1 rounds up to a power of two
+            final int capacity =
+                    Math.max(2, Integer.highestOneBit(Math.max(1, this.size * 2 - 1)) << 1);
+            final int mask = capacity - 1;
+            // A pre-sized array is kept as it is rather than held twice while it is trimmed
+            final byte[] data =
+                    this.data.length - this.length <= this.length / 8
+                            ? this.data
+                            : Arrays.copyOf(this.data, this.length);
+            final int[] offsets = new int[capacity];
+            final int[] hashes = new int[capacity];
+            final Snapshot snapshot =
+                    new Snapshot(
+                            data, offsets, hashes, this.prefixes.toArray(new String[0]), this.size);
+
+            int size = 0;
+            for (int i = 0; i < this.size; i++) {
+                final int entry = this.entries[i];
+                final byte[] key =
+                        Arrays.copyOfRange(data, entry + 2, entry + 2 + snapshot.readLength(entry));
+                final int hash = Snapshot.hash(key);
+                final int existing = snapshot.find(key, hash);
+                if (existing >= 0) {
+                    // Mark it so that lookups go to the fallback DAO, which reports the duplicate
+                    final int valueLengthOffset = snapshot.valueLengthOffset(existing);
+                    data[valueLengthOffset] = (byte) (Snapshot.DUPLICATE >>> 8);
+                    data[valueLengthOffset + 1] = (byte) Snapshot.DUPLICATE;
+                    continue;
+                }
+                int slot = hash & mask;
+                while (offsets[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                offsets[slot] = entry + 1;
+                hashes[slot] = hash;
+                size++;
+            }
+            return size == this.size
+                    ? snapshot
+                    : new Snapshot(data, offsets, hashes, snapshot.prefixes, size);
+        }
+
+        private int internPrefix(String prefix) {
+            final Integer index = this.prefixIndexes.get(prefix);
+            if (index != null) {
+                return index;
+            }
+            if (this.prefixes.size() > MAX_PREFIXES) {
+                return 0;
+            }
+            this.prefixIndexes.put(prefix, this.prefixes.size());
+            this.prefixes.add(prefix);
+            return this.prefixes.size() - 1;
+        }
+
+        private void ensureCapacity(int entryLength) {
+            final long required = (long) this.length + entryLength;
+            if (required <= this.data.length) {
+                return;
+            }
+            if (required > MAX_ARRAY_LENGTH) {
+                throw new IllegalStateException(
+                        "UP_PERSON_DIR does not fit in memory, use PortalPersonDirUserPasswordDao");
+            }
+            final long grown = Math.max(required, this.data.length * 2L);
+            this.data = Arrays.copyOf(this.data, (int) Math.min(MAX_ARRAY_LENGTH, grown));
+        }
+
+        private void writeLength(int length) {
+            this.data[this.length++] = (byte) (length >>> 8);
+            this.data[this.length++] = (byte) length;
+        }
+    }
+
+    private static final class RefreshThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "cas-password-snapshot-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.clearpass;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Credentials cache for ClearPass that keeps the cached values outside the Java heap. Each value is
+ * encrypted with AES-GCM under a key generated when the map is created (so nothing survives a
+ * restart) and stored in a fixed size slot of a direct buffer of {@link #setMaxEntries(int)} slots
+ * of {@link #setSlotSize(int)} bytes. Only the keys (user names and ticket granting ticket ids)
+ * and slot numbers are kept on the heap.
+ *
+ * <p>Entries expire {@link #setTimeToLiveSeconds(int)} after they were stored, which should be the
+ * maximum lifetime of a ticket granting ticket; TicketRegistryDecorator removes them earlier when
+ * the ticket is deleted. When every slot is in use, expired entries are purged and, failing that,
+ * the oldest entry is evicted, so the off-heap memory used never exceeds maxEntries * slotSize.
+ */
+public class OffHeapCredentialsMap extends AbstractMap<String, String> implements DisposableBean {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final int HEADER_BYTES = 4 + IV_BYTES + TAG_BITS / 8;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final SecureRandom random = new SecureRandom();
+    private final SecretKey key;
+    private final Cipher cipher;
+
+    /** key to slot, in insertion order so the first entry is the oldest */
+    private final LinkedHashMap<String, Integer> slots = new LinkedHashMap<String, Integer>();
+
+    private int maxEntries = 100000;
+    private int slotSize = 256;
+    private long timeToLiveNanos = TimeUnit.HOURS.toNanos(8);
+
+    private ByteBuffer buffer;
+    private long[] expires;
+    private int[] freeSlots;
+    private int freeCount;
+
+    private long evictionCount;
+
+    public OffHeapCredentialsMap() {
+        try {
+            final KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(128, this.random);
+            this.key = keyGenerator.generateKey();
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    }
+
+    /** @param maxEntries number of slots, i.e. the maximum number of entries, defaults to 100000 */
+    public synchronized void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be greater than 0: " + maxEntries);
+        }
+        checkCapacity(maxEntries, this.slotSize);
+        checkNotAllocated();
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param slotSize bytes per entry, defaults to 256. Values may use up to slotSize - {@value
+     *     #HEADER_BYTES} bytes of UTF-8;  larger values are not cached.
+     */
+    public synchronized void setSlotSize(int slotSize) {
+        if (slotSize <= HEADER_BYTES) {
+            throw new IllegalArgumentException(
+                    "slotSize must be greater than " + HEADER_BYTES + ": " + slotSize);
+        }
+        checkCapacity(this.maxEntries, slotSize);
+        checkNotAllocated();
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * @param timeToLiveSeconds how long an entry is kept, defaults to 28800 (8 hours). Should match
+     *     the hard timeout of ticket granting tickets.
+     */
+    public synchronized void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLiveSeconds);
+    }
+
+    /** @return the maximum number of bytes used outside the heap */
+    public long getCapacityBytes() {
+        return (long) this.maxEntries * this.slotSize;
+    }
+
+    /** @return number of entries evicted because every slot was in use */
+    public synchronized long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public synchronized int size() {
+        return this.slots.size();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return liveSlot(key) >= 0;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public synchronized String get(Object key) {
+        final int slot = liveSlot(key);
+        return slot >= 0 ? read((String) key, slot) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized String put(String key, String value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("keys and values cannot be null");
+        }
+        final byte[] plaintext = value.getBytes(UTF_8);
+        final String previous = remove(key);
+        if (plaintext.length > this.slotSize - HEADER_BYTES) {
+            // ClearPass then has no credentials for the user, which beats failing the login
+            Arrays.fill(plaintext, (byte) 0);
+            this.logger.warn(
+                    "Not caching a value of {} bytes, slots hold at most {};  raise slotSize",
+                    plaintext.length,
+                    this.slotSize - HEADER_BYTES);
+            return previous;
+        }
+
+        final int slot = allocateSlot();
+        write(key, slot, plaintext);
+        this.expires[slot] = System.nanoTime() + this.timeToLiveNanos;
+        this.slots.put(key, slot);
+
+        return previous;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public synchronized String remove(Object key) {
+        final Integer slot = this.slots.get(key);
+        if (slot == null) {
+            return null;
+        }
+        final String value = isExpired(slot) ? null : read((String) key, slot);
+        release((String) key, slot);
+        return value;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public synchronized void clear() {
+        for (Map.Entry<String, Integer> entry : this.slots.entrySet()) {
+            wipe(entry.getValue());
+            this.freeSlots[this.freeCount++] = entry.getValue();
+        }
+        this.slots.clear();
+    }
+
+    /** Decrypted copy of the live entries. */
+    @Override
+    public synchronized Set<Map.Entry<String, String>> entrySet() {
+        final Map<String, String> entries = new HashMap<String, String>();
+        for (Map.Entry<String, Integer> entry : this.slots.entrySet()) {
+            if (!isExpired(entry.getValue())) {
+                entries.put(entry.getKey(), read(entry.getKey(), entry.getValue()));
+            }
+        }
+        return Collections.unmodifiableSet(entries.entrySet());
+    }
+
+    /**
+     * Remove the expired entries.
+     *
+     * @return number of entries removed
+     */
+    public synchronized int purgeExpired() {
+        int purged = 0;
+        for (final Iterator<Map.Entry<String, Integer>> it = this.slots.entrySet().iterator();
+                it.hasNext(); ) {
+            final Map.Entry<String, Integer> entry = it.next();
+            if (isExpired(entry.getValue())) {
+                it.remove();
+                wipe(entry.getValue());
+                this.freeSlots[this.freeCount++] = entry.getValue();
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public synchronized void destroy() {
+        if (this.buffer != null) {
+            clear();
+        }
+    }
+
+    /** @return the slot of the key if it has not expired, -1 otherwise */
+    private int liveSlot(Object key) {
+        final Integer slot = this.slots.get(key);
+        if (slot == null) {
+            return -1;
+        }
+        if (isExpired(slot)) {
+            release((String) key, slot);
+            return -1;
+        }
+        return slot;
+    }
+
+    private boolean isExpired(int slot) {
+        return this.expires[slot] - System.nanoTime() <= 0;
+    }
+
+    private int allocateSlot() {
+        if (this.buffer == null) {
+            this.buffer = ByteBuffer.allocateDirect(this.maxEntries * this.slotSize);
+            this.expires = new long[this.maxEntries];
+            this.freeSlots = new int[this.maxEntries];
+            for (int i = 0; i < this.maxEntries; i++) {
+                this.freeSlots[i] = this.maxEntries - 1 - i;
+            }
+            this.freeCount = this.maxEntries;
+        }
+
+        if (this.freeCount == 0 && purgeExpired() == 0) {
+            final Map.Entry<String, Integer> oldest = this.slots.entrySet().iterator().next();
+            release(oldest.getKey(), oldest.getValue());
+            // Warn once, every further eviction only shows in getEvictionCount()
+            if (this.evictionCount++ == 0) {
+                this.logger.warn(
+                        "All {} credential slots are in use, evicting the oldest entries; "
+                                + "consider raising maxEntries",
+                        this.maxEntries);
+            }
+        }
+
+        return this.freeSlots[--this.freeCount];
+    }
+
+    private void release(String key, int slot) {
+        this.slots.remove(key);
+        wipe(slot);
+        this.freeSlots[this.freeCount++] = slot;
+    }
+
+    private void write(String key, int slot, byte[] plaintext) {
+        final byte[] iv = new byte[IV_BYTES];
+        this.random.nextBytes(iv);
+
+        final byte[] ciphertext;
+        try {
+            this.cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_BITS, iv));
+            this.cipher.updateAAD(key.getBytes(UTF_8));
+            ciphertext = this.cipher.doFinal(plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to encrypt credentials", e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        final ByteBuffer slotBuffer = slotBuffer(slot);
+        slotBuffer.putInt(ciphertext.length);
+        slotBuffer.put(iv);
+        slotBuffer.put(ciphertext);
+    }
+
+    private String read(String key, int slot) {
+        final ByteBuffer slotBuffer = slotBuffer(slot);
+        final byte[] iv = new byte[IV_BYTES];
+        final byte[] ciphertext = new byte[slotBuffer.getInt()];
+        slotBuffer.get(iv);
+        slotBuffer.get(ciphertext);
+
+        final byte[] plaintext;
+        try {
+            this.cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_BITS, iv));
+            this.cipher.updateAAD(key.getBytes(UTF_8));
+            plaintext = this.cipher.doFinal(ciphertext);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to decrypt credentials", e);
+        }
+
+        final String value = new String(plaintext, UTF_8);
+        Arrays.fill(plaintext, (byte) 0);
+        return value;
+    }
+
+    private void wipe(int slot) {
+        final ByteBuffer slotBuffer = slotBuffer(slot);
+        while (slotBuffer.hasRemaining()) {
+            slotBuffer.put((byte) 0);
+        }
+    }
+
+    private ByteBuffer slotBuffer(int slot) {
+        final ByteBuffer slotBuffer = this.buffer.duplicate();
+        slotBuffer.position(slot * this.slotSize);
+        slotBuffer.limit(slot * this.slotSize + this.slotSize);
+        return slotBuffer;
+    }
+
+    /** The buffer is indexed with ints, so it cannot be larger than Integer.MAX_VALUE bytes */
+    private static void checkCapacity(int maxEntries, int slotSize) {
+        if ((long) maxEntries * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "maxEntries * slotSize must not exceed "
+                            + Integer.MAX_VALUE
+                            + " bytes: "
+                            + maxEntries
+                            + " * "
+                            + slotSize);
+        }
+    }
+
+    private void checkNotAllocated() {
+        if (this.buffer != null) {
+            throw new IllegalStateException("The credentials map is already in use");
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.monitor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms for the phases of a CAS login: the password hash lookup and the
+ * hash check (by algorithm), plus the outcome of each login.
+ * Recording does not allocate or lock, so one instance can be shared by every component that takes
+ * part in a login.
+ *
+ * <p>Published over JMX as an {@link AuthenticationMetricsMBean}, together with the state of the
+ * {@link VerificationPool} that checks password hashes, if any. {@link #logSummary()} can be
+ * scheduled to periodically log them.
+ */
+public class AuthenticationMetrics implements AuthenticationMetricsMBean {
+
+    /** How a password check ended. */
+    public enum Outcome {
+        SUCCESS,
+        BAD_PASSWORD,
+        UNKNOWN_USER,
+        INVALID_HASH,
+        BUSY,
+        SHED,
+        ERROR
+    }
+
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final LatencyHistogram[] authenticationLatency = new LatencyHistogram[OUTCOMES.length];
+    private final ConcurrentMap<String, LatencyHistogram> verificationLatency =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram passwordLookupLatency = new LatencyHistogram();
+
+    private final AtomicLong summaryLogins = new AtomicLong();
+
+    private volatile VerificationPool verificationPool;
+
+    public AuthenticationMetrics() {
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            this.authenticationLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param outcome how the password check ended
+     * @param startNanos {@link System#nanoTime()} when the password check started
+     */
+    public void recordAuthentication(Outcome outcome, long startNanos) {
+        this.authenticationLatency[outcome.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * @param algorithm prefix of the password hash scheme, e.g. (SHA256)
+     * @param startNanos {@link System#nanoTime()} when the hash check started
+     */
+    public void recordVerification(String algorithm, long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        LatencyHistogram histogram = this.verificationLatency.get(algorithm);
+        if (histogram == null) {
+            final LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = this.verificationLatency.putIfAbsent(algorithm, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /** @param startNanos {@link System#nanoTime()} when the password hash query started */
+    public void recordPasswordLookup(long startNanos) {
+        this.passwordLookupLatency.recordSince(startNanos);
+    }
+
+    /** @param verificationPool the threads checking password hashes, whose state to publish */
+    public void setVerificationPool(VerificationPool verificationPool) {
+        this.verificationPool = verificationPool;
+    }
+
+    /** @return the latency histogram of password checks with the given outcome */
+    public LatencyHistogram getAuthenticationLatency(Outcome outcome) {
+        return this.authenticationLatency[outcome.ordinal()];
+    }
+
+    /** @return the latency histogram of hash checks for the algorithm prefix, null if none */
+    public LatencyHistogram getVerificationLatency(String algorithm) {
+        return this.verificationLatency.get(algorithm);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getSuccessCount()
+     */
+    public long getSuccessCount() {
+        return getAuthenticationLatency(Outcome.SUCCESS).getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getBadPasswordCount()
+     */
+    public long getBadPasswordCount() {
+        return getAuthenticationLatency(Outcome.BAD_PASSWORD).getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getUnknownUserCount()
+     */
+    public long getUnknownUserCount() {
+        return getAuthenticationLatency(Outcome.UNKNOWN_USER).getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getInvalidHashCount()
+     */
+    public long getInvalidHashCount() {
+        return getAuthenticationLatency(Outcome.INVALID_HASH).getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getBusyCount()
+     */
+    public long getBusyCount() {
+        return getAuthenticationLatency(Outcome.BUSY).getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getShedCount()
+     */
+    public long getShedCount() {
+        return getAuthenticationLatency(Outcome.SHED).getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getErrorCount()
+     */
+    public long getErrorCount() {
+        return getAuthenticationLatency(Outcome.ERROR).getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getVerificationQueueDepth()
+     */
+    public int getVerificationQueueDepth() {
+        final VerificationPool pool = this.verificationPool;
+        return pool != null ? pool.getVerificationQueueDepth() : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getVerificationActiveCount()
+     */
+    public int getVerificationActiveCount() {
+        final VerificationPool pool = this.verificationPool;
+        return pool != null ? pool.getVerificationActiveCount() : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getVerificationRejectedCount()
+     */
+    public long getVerificationRejectedCount() {
+        final VerificationPool pool = this.verificationPool;
+        return pool != null ? pool.getVerificationRejectedCount() : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getVerificationTimeoutCount()
+     */
+    public long getVerificationTimeoutCount() {
+        final VerificationPool pool = this.verificationPool;
+        return pool != null ? pool.getVerificationTimeoutCount() : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getAuthenticationLatency()
+     */
+    public Map<String, String> getAuthenticationLatency() {
+        final Map<String, String> latency = new LinkedHashMap<String, String>();
+        for (Outcome outcome : OUTCOMES) {
+            latency.put(outcome.name(), getAuthenticationLatency(outcome).toString());
+        }
+        return latency;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getVerificationLatency()
+     */
+    public Map<String, String> getVerificationLatency() {
+        final Map<String, String> latency = new TreeMap<String, String>();
+        for (Map.Entry<String, LatencyHistogram> entry : this.verificationLatency.entrySet()) {
+            latency.put(entry.getKey(), entry.getValue().toString());
+        }
+        return latency;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#getPasswordLookupLatency()
+     */
+    public String getPasswordLookupLatency() {
+        return this.passwordLookupLatency.toString();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.monitor.AuthenticationMetricsMBean#reset()
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : this.authenticationLatency) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : this.verificationLatency.values()) {
+            histogram.reset();
+        }
+        this.passwordLookupLatency.reset();
+    }
+
+    /**
+     * Log the metrics recorded since startup (or the last {@link #reset()}) at INFO level. Nothing
+     * is logged if there were no logins since the previous summary.
+     */
+    public void logSummary() {
+        if (!this.logger.isInfoEnabled()) {
+            return;
+        }
+
+        long logins = 0;
+        for (LatencyHistogram histogram : this.authenticationLatency) {
+            logins += histogram.getCount();
+        }
+        if (logins == 0 || this.summaryLogins.getAndSet(logins) == logins) {
+            return;
+        }
+
+        final StringBuilder summary = new StringBuilder();
+        summary.append("CAS login metrics, ").append(logins).append(" logins");
+        for (Outcome outcome : OUTCOMES) {
+            final LatencyHistogram histogram = getAuthenticationLatency(outcome);
+            if (histogram.getCount() > 0) {
+                summary.append("\n  ").append(outcome).append(": ").append(histogram);
+            }
+        }
+        for (Map.Entry<String, String> entry : getVerificationLatency().entrySet()) {
+            summary.append("\n  verify ").append(entry.getKey()).append(": ");
+            summary.append(entry.getValue());
+        }
+        final VerificationPool pool = this.verificationPool;
+        if (pool != null) {
+            summary.append("\n  verification threads: ");
+            summary.append(pool.getVerificationActiveCount()).append(" active, ");
+            summary.append(pool.getVerificationQueueDepth()).append(" queued, ");
+            summary.append(pool.getVerificationRejectedCount()).append(" rejected, ");
+            summary.append(pool.getVerificationTimeoutCount()).append(" timed out");
+        }
+        summary.append("\n  password lookup: ").append(this.passwordLookupLatency);
+        this.logger.info(summary.toString());
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.monitor;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link AuthenticationMetrics}. Latencies are reported as count, mean, 50th, 90th and
+ * 99th percentile and max in milliseconds.
+ */
+public interface AuthenticationMetricsMBean {
+
+    /** @return number of logins with a matching password */
+    long getSuccessCount();
+
+    /** @return number of logins with a password that did not match the stored hash */
+    long getBadPasswordCount();
+
+    /** @return number of logins for a user name without a stored password hash */
+    long getUnknownUserCount();
+
+    /** @return number of logins for a user whose stored hash has no supported algorithm prefix */
+    long getInvalidHashCount();
+
+    /** @return number of logins refused because password verification was too busy */
+    long getBusyCount();
+
+    /** @return number of logins refused unchecked after too many recent failures */
+    long getShedCount();
+
+    /** @return number of logins that failed with an unexpected exception */
+    long getErrorCount();
+
+    /** @return number of password checks waiting for a verification thread */
+    int getVerificationQueueDepth();
+
+    /** @return number of verification threads currently checking a password */
+    int getVerificationActiveCount();
+
+    /** @return number of password checks refused because the verification queue was full */
+    long getVerificationRejectedCount();
+
+    /** @return number of password checks abandoned because they did not complete in time */
+    long getVerificationTimeoutCount();
+
+    /** @return latency of the whole password check by outcome */
+    Map<String, String> getAuthenticationLatency();
+
+    /** @return latency of the hash check by algorithm prefix */
+    Map<String, String> getVerificationLatency();
+
+    /** @return latency of the UP_PERSON_DIR password hash query */
+    String getPasswordLookupLatency();
+
+    /** Discard all counts and latencies, except those of the verification threads. */
+    void reset();
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.monitor;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock and allocation free histogram of durations in nanoseconds. Durations are counted in power of
+ * two buckets, so percentiles are reported as the upper bound of their bucket and are accurate to
+ * within a factor of two.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** @param nanos the duration to record, negative durations are recorded as 0 */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        // bucket i holds durations in [2^(i-1), 2^i)
+        this.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        this.count.incrementAndGet();
+        this.totalNanos.addAndGet(nanos);
+
+        long max = this.maxNanos.get();
+        while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+            max = this.maxNanos.get();
+        }
+    }
+
+    /** Record the time elapsed since {@code startNanos}, a value of {@link System#nanoTime()} */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** @return number of recorded durations */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /** @return mean of the recorded durations in nanoseconds, 0 if none were recorded */
+    public long getMeanNanos() {
+        final long count = this.count.get();
+        return count > 0 ? this.totalNanos.get() / count : 0;
+    }
+
+    /** @return longest recorded duration in nanoseconds */
+    public long getMaxNanos() {
+        return this.maxNanos.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the duration in nanoseconds below which the given percentage of
+     *     recorded durations fall, 0 if none were recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) - 1, this.maxNanos.get());
+            }
+        }
+        return this.maxNanos.get();
+    }
+
+    /** Discard all recorded durations. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.set(0);
+        this.totalNanos.set(0);
+        this.maxNanos.set(0);
+    }
+
+    /** @return count, mean, 50th, 90th and 99th percentile and max in milliseconds */
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.ENGLISH,
+                "count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                getCount(),
+                toMillis(getMeanNanos()),
+                toMillis(getPercentileNanos(50)),
+                toMillis(getPercentileNanos(90)),
+                toMillis(getPercentileNanos(99)),
+                toMillis(getMaxNanos()));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.monitor;
+
+/**
+ * The threads that check password hashes, as seen by {@link AuthenticationMetrics}: it reads these
+ * whenever its own values are read.
+ */
+public interface VerificationPool {
+
+    /** @return number of checks waiting for a verification thread */
+    int getVerificationQueueDepth();
+
+    /** @return number of verification threads currently checking a password */
+    int getVerificationActiveCount();
+
+    /** @return number of checks refused because the verification queue was full */
+    long getVerificationRejectedCount();
+
+    /** @return number of checks abandoned because they did not complete in time */
+    long getVerificationTimeoutCount();
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.persondir;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apereo.portal.cas.authentication.handler.support.PortalPersonDirAttributeUserPasswordDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.BasePersonAttributeDao;
+import org.jasig.services.persondir.support.NamedPersonImpl;
+
+/**
+ * Attribute repository for uPortal local accounts that returns the attributes a {@link
+ * PortalPersonDirAttributeUserPasswordDao} read along with the password hash of the same login, so
+ * that resolving the principal does not query the database again. Users looked up outside of a
+ * login (or long after it) are queried.
+ */
+public class PrefetchedPersonAttributeDao extends BasePersonAttributeDao {
+    private static final String USERNAME_ATTRIBUTE = "username";
+
+    private PortalPersonDirAttributeUserPasswordDao userPasswordDao;
+
+    /** @param userPasswordDao the DAO the authentication handler reads password hashes with */
+    public void setUserPasswordDao(PortalPersonDirAttributeUserPasswordDao userPasswordDao) {
+        this.userPasswordDao = userPasswordDao;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPerson(java.lang.String)
+     */
+    public IPersonAttributes getPerson(String uid) {
+        if (uid == null) {
+            throw new IllegalArgumentException("uid may not be null.");
+        }
+        final Map<String, List<Object>> attributes = this.userPasswordDao.getAttributes(uid);
+        return attributes == null ? null : new NamedPersonImpl(uid, attributes);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeople(java.util.Map)
+     */
+    public Set<IPersonAttributes> getPeople(Map<String, Object> query) {
+        final Object uid = query.get(USERNAME_ATTRIBUTE);
+        return findPerson(uid instanceof List ? (List<?>) uid : Collections.singletonList(uid));
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(
+            Map<String, List<Object>> query) {
+        return findPerson(query.get(USERNAME_ATTRIBUTE));
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
+     */
+    public Set<String> getPossibleUserAttributeNames() {
+        final Map<String, String> attributeNames = this.userPasswordDao.getAttributeNames();
+        // null tells callers that any attribute may be returned
+        return attributeNames.isEmpty()
+                ? null
+                : Collections.unmodifiableSet(new LinkedHashSet<String>(attributeNames.values()));
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getAvailableQueryAttributes()
+     */
+    public Set<String> getAvailableQueryAttributes() {
+        return Collections.singleton(USERNAME_ATTRIBUTE);
+    }
+
+    /** @return the person with the one user name queried, null if the query is not by user name */
+    private Set<IPersonAttributes> findPerson(List<?> uids) {
+        if (uids == null || uids.size() != 1 || !(uids.get(0) instanceof String)) {
+            return null;
+        }
+        final IPersonAttributes person = getPerson((String) uids.get(0));
+        return person == null
+                ? Collections.<IPersonAttributes>emptySet()
+                : Collections.singleton(person);
+    }
+}
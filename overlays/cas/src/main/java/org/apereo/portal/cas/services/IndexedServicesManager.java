@@ -0,0 +1,417 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.services.RegexRegisteredService;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.ReloadableServicesManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ReloadableServicesManager} decorator that avoids a linear regular expression scan of all
+ * registered services in {@link #findServiceBy(Service)}.
+ *
+ * <p>The literal prefix of each {@link RegexRegisteredService} pattern is extracted when the
+ * registry is loaded. Services whose prefix covers the whole scheme and host (for example {@code
+ * ^https://portal\.example\.edu/.*}) are indexed by that scheme and host, services with a shorter
+ * prefix are only checked when the service URL starts with it, and any other service is always
+ * checked. Candidates are still confirmed with {@link RegisteredService#matches(Service)} in
+ * evaluation order, so the result is the same as the wrapped services manager's. The results for
+ * recently seen service URLs are cached until the registry changes.
+ *
+ * <p>Like {@link RegexRegisteredService}, patterns are assumed to match the whole service URL.
+ * Scheme, host and prefix comparisons are case insensitive so that services whose patterns are
+ * case insensitive are never skipped.
+ */
+public class IndexedServicesManager implements ReloadableServicesManager {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ReloadableServicesManager servicesManager;
+
+    private int serviceCacheSize = 1000;
+
+    private volatile ServiceIndex index;
+
+    /** @param servicesManager the services manager to decorate */
+    public IndexedServicesManager(ReloadableServicesManager servicesManager) {
+        this.servicesManager = servicesManager;
+        rebuildIndex();
+    }
+
+    /**
+     * @param serviceCacheSize number of service URLs to cache the matching registered service for,
+     *     defaults to 1000
+     */
+    public void setServiceCacheSize(int serviceCacheSize) {
+        if (serviceCacheSize < 1) {
+            throw new IllegalArgumentException(
+                    "serviceCacheSize must be greater than 0: " + serviceCacheSize);
+        }
+        synchronized (this) {
+            this.serviceCacheSize = serviceCacheSize;
+            this.index = new ServiceIndex(this.index, serviceCacheSize);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.services.ServicesManager#findServiceBy(org.jasig.cas.authentication.principal.Service)
+     */
+    public RegisteredService findServiceBy(Service service) {
+        final ServiceIndex index = this.index;
+        if (service == null || service.getId() == null || index.isEmpty()) {
+            return this.servicesManager.findServiceBy(service);
+        }
+        return index.findServiceBy(service);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.services.ServicesManager#matchesExistingService(org.jasig.cas.authentication.principal.Service)
+     */
+    public boolean matchesExistingService(Service service) {
+        return findServiceBy(service) != null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.services.ServicesManager#findServiceBy(long)
+     */
+    public RegisteredService findServiceBy(long id) {
+        return this.servicesManager.findServiceBy(id);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.services.ServicesManager#getAllServices()
+     */
+    public Collection<RegisteredService> getAllServices() {
+        return this.servicesManager.getAllServices();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.services.ServicesManager#save(org.jasig.cas.services.RegisteredService)
+     */
+    public void save(RegisteredService registeredService) {
+        this.servicesManager.save(registeredService);
+        rebuildIndex();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.services.ServicesManager#delete(long)
+     */
+    public RegisteredService delete(long id) {
+        final RegisteredService deleted = this.servicesManager.delete(id);
+        rebuildIndex();
+        return deleted;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.services.ReloadableServicesManager#reload()
+     */
+    public void reload() {
+        this.servicesManager.reload();
+        rebuildIndex();
+    }
+
+    /**
+     * Rebuild the index from the wrapped services manager. Entries of services whose pattern did
+     * not change are reused, and the index is left untouched if no service changed.
+     */
+    protected synchronized void rebuildIndex() {
+        final List<RegisteredService> services =
+                new ArrayList<RegisteredService>(
+                        new TreeSet<RegisteredService>(this.servicesManager.getAllServices()));
+
+        final ServiceIndex previous = this.index;
+        if (previous != null && previous.isCurrent(services)) {
+            return;
+        }
+
+        this.index = new ServiceIndex(services, previous, this.serviceCacheSize);
+        this.logger.debug("Indexed {} registered services", services.size());
+    }
+
+    /**
+     * @return the literal text every string matched by the regular expression starts with, null if
+     *     there is none
+     */
+    static String getLiteralPrefix(String regex) {
+        if (hasTopLevelAlternation(regex)) {
+            return null;
+        }
+
+        final StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            final char literal;
+            int next = i + 1;
+            if (c == '\\') {
+                if (next == regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+                    // character classes, back references, \Q...\E quoting and the like
+                    break;
+                }
+                literal = regex.charAt(next++);
+            } else if (".[]()*+?{}|^$".indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+            }
+
+            // a quantified character may be missing
+            if (next < regex.length() && "*+?{".indexOf(regex.charAt(next)) >= 0) {
+                break;
+            }
+
+            prefix.append(literal);
+            i = next;
+        }
+
+        return prefix.length() > 0 ? prefix.toString() : null;
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the lower case scheme and authority of the URL (for example {@code
+     *     https://portal.example.edu:8443}), or null if it is not an absolute URL or, when {@code
+     *     complete} is true, the authority is not followed by a path, query or fragment
+     */
+    static String getSchemeAndAuthority(String url, boolean complete) {
+        final int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0) {
+            return null;
+        }
+
+        int end = schemeEnd + 3;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        if (complete && end == url.length()) {
+            return null;
+        }
+
+        return url.substring(0, end).toLowerCase(Locale.ENGLISH);
+    }
+
+    /** A registered service with its position in evaluation order and its literal prefix. */
+    private static final class IndexEntry {
+        private final RegisteredService service;
+        private final String serviceId;
+        private final int order;
+        private final String prefix;
+        private final String schemeAndAuthority;
+
+        IndexEntry(RegisteredService service, int order, IndexEntry previous) {
+            this.service = service;
+            this.serviceId = service.getServiceId();
+            this.order = order;
+            if (previous != null) {
+                this.prefix = previous.prefix;
+                this.schemeAndAuthority = previous.schemeAndAuthority;
+            } else if (service instanceof RegexRegisteredService && this.serviceId != null) {
+                this.prefix = getLiteralPrefix(this.serviceId);
+                this.schemeAndAuthority =
+                        this.prefix != null ? getSchemeAndAuthority(this.prefix, true) : null;
+            } else {
+                this.prefix = null;
+                this.schemeAndAuthority = null;
+            }
+        }
+
+        boolean mayMatch(String url) {
+            return this.prefix == null
+                    || url.regionMatches(true, 0, this.prefix, 0, this.prefix.length());
+        }
+    }
+
+    /** Immutable snapshot of the registered services with its own cache of recent lookups. */
+    private static final class ServiceIndex {
+        private static final IndexEntry[] NO_ENTRIES = new IndexEntry[0];
+        private static final Object NO_MATCH = new Object();
+
+        private final List<RegisteredService> services;
+        private final Map<String, IndexEntry> entriesByServiceId;
+        private final Map<String, IndexEntry[]> entriesBySchemeAndAuthority;
+        private final IndexEntry[] otherEntries;
+        private final Map<String, Object> cache;
+
+        ServiceIndex(List<RegisteredService> services, ServiceIndex previous, int cacheSize) {
+            this.services = services;
+            this.entriesByServiceId = new HashMap<String, IndexEntry>();
+
+            final Map<String, List<IndexEntry>> bySchemeAndAuthority =
+                    new HashMap<String, List<IndexEntry>>();
+            final List<IndexEntry> others = new ArrayList<IndexEntry>();
+
+            int order = 0;
+            for (RegisteredService service : services) {
+                IndexEntry reusable =
+                        previous != null
+                                ? previous.entriesByServiceId.get(service.getServiceId())
+                                : null;
+                if (reusable != null && reusable.service.getClass() != service.getClass()) {
+                    reusable = null;
+                }
+                final IndexEntry entry = new IndexEntry(service, order++, reusable);
+                if (entry.serviceId != null) {
+                    this.entriesByServiceId.put(entry.serviceId, entry);
+                }
+
+                if (entry.schemeAndAuthority != null) {
+                    List<IndexEntry> entries = bySchemeAndAuthority.get(entry.schemeAndAuthority);
+                    if (entries == null) {
+                        entries = new ArrayList<IndexEntry>();
+                        bySchemeAndAuthority.put(entry.schemeAndAuthority, entries);
+                    }
+                    entries.add(entry);
+                } else {
+                    others.add(entry);
+                }
+            }
+
+            this.entriesBySchemeAndAuthority = new HashMap<String, IndexEntry[]>();
+            for (Map.Entry<String, List<IndexEntry>> entries : bySchemeAndAuthority.entrySet()) {
+                this.entriesBySchemeAndAuthority.put(
+                        entries.getKey(), entries.getValue().toArray(NO_ENTRIES));
+            }
+            this.otherEntries = others.toArray(NO_ENTRIES);
+            this.cache = createCache(cacheSize);
+        }
+
+        /** Copy of the index with an empty cache of the given size */
+        ServiceIndex(ServiceIndex index, int cacheSize) {
+            this.services = index.services;
+            this.entriesByServiceId = index.entriesByServiceId;
+            this.entriesBySchemeAndAuthority = index.entriesBySchemeAndAuthority;
+            this.otherEntries = index.otherEntries;
+            this.cache = createCache(cacheSize);
+        }
+
+        boolean isEmpty() {
+            return this.services.isEmpty();
+        }
+
+        /**
+         * @return true if the services, in evaluation order, are the same instances with the same
+         *     patterns as the ones this index was built from
+         */
+        boolean isCurrent(List<RegisteredService> services) {
+            if (services.size() != this.services.size()) {
+                return false;
+            }
+            final Iterator<RegisteredService> current = this.services.iterator();
+            for (RegisteredService service : services) {
+                final RegisteredService indexed = current.next();
+                if (service != indexed) {
+                    return false;
+                }
+                final IndexEntry entry = this.entriesByServiceId.get(service.getServiceId());
+                if (entry == null || entry.service != service) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        RegisteredService findServiceBy(Service service) {
+            final String url = service.getId();
+
+            Object cached;
+            synchronized (this.cache) {
+                cached = this.cache.get(url);
+            }
+            if (cached == null) {
+                final RegisteredService match = match(service, url);
+                cached = match != null ? match : NO_MATCH;
+                synchronized (this.cache) {
+                    this.cache.put(url, cached);
+                }
+            }
+
+            return cached != NO_MATCH ? (RegisteredService) cached : null;
+        }
+
+        /** Walk the indexed and the other candidates together in evaluation order */
+        private RegisteredService match(Service service, String url) {
+            final String schemeAndAuthority = getSchemeAndAuthority(url, false);
+            IndexEntry[] indexed =
+                    schemeAndAuthority != null
+                            ? this.entriesBySchemeAndAuthority.get(schemeAndAuthority)
+                            : null;
+            if (indexed == null) {
+                indexed = NO_ENTRIES;
+            }
+            final IndexEntry[] others = this.otherEntries;
+
+            int i = 0;
+            int o = 0;
+            while (i < indexed.length || o < others.length) {
+                final IndexEntry entry;
+                if (o == others.length
+                        || (i < indexed.length && indexed[i].order < others[o].order)) {
+                    entry = indexed[i++];
+                } else {
+                    entry = others[o++];
+                }
+
+                if (entry.mayMatch(url) && entry.service.matches(service)) {
+                    return entry.service;
+                }
+            }
+
+            return null;
+        }
+
+        private static Map<String, Object> createCache(final int maxSize) {
+            return new LinkedHashMap<String, Object>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+    }
+}
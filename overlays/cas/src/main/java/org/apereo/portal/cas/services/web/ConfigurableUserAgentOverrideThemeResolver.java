@@ -14,12 +14,12 @@
  */
 package org.apereo.portal.cas.services.web;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.jasig.cas.authentication.principal.Service;
@@ -49,7 +49,12 @@ public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeRes
 
     private List<ArgumentExtractor> argumentExtractors;
 
-    private Map<String, Map<Pattern, String>> overrides;
+    private Map<String, UserAgentThemeClassifier> overrides =
+            Collections.<String, UserAgentThemeClassifier>emptyMap();
+
+    private int userAgentCacheSize = 1000;
+
+    private Map<ThemeUserAgent, String> userAgentCache = createCache(this.userAgentCacheSize);
 
     /*
      * (non-Javadoc)
@@ -61,22 +66,36 @@ public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeRes
         String themeName = resolveServiceThemeName(request);
 
         /*
-         * If the overrides map contains overrides for this theme name, iterate
-         * through the mapped user agent regexes for this theme name.  If we
-         * find a matching regex, set the theme name to the one mapped to that
-         * regex.
+         * If the overrides map contains overrides for this theme name, check
+         * the user agent against the mapped user agent regexes for this theme
+         * name and use the theme name mapped to the first one that matches.
+         * Results are cached per theme name and user agent.
          */
-
-        if (overrides.containsKey(themeName)) {
+        final UserAgentThemeClassifier classifier = this.overrides.get(themeName);
+        if (classifier != null) {
 
             // retrieve the user agent string from the request
-            String userAgent = request.getHeader("User-Agent");
+            final String userAgent = request.getHeader("User-Agent");
+            if (userAgent == null) {
+                return themeName;
+            }
 
-            for (Entry<Pattern, String> entry : overrides.get(themeName).entrySet()) {
-                if (entry.getKey().matcher(userAgent).matches()) {
-                    return entry.getValue();
+            final Map<ThemeUserAgent, String> cache = this.userAgentCache;
+            final ThemeUserAgent key = new ThemeUserAgent(themeName, userAgent);
+            String overrideThemeName;
+            synchronized (cache) {
+                overrideThemeName = cache.get(key);
+            }
+            if (overrideThemeName == null) {
+                overrideThemeName = classifier.classify(userAgent);
+                if (overrideThemeName == null) {
+                    overrideThemeName = themeName;
+                }
+                synchronized (cache) {
+                    cache.put(key, overrideThemeName);
                 }
             }
+            return overrideThemeName;
         }
 
         // if no override was found for the current theme and user agent,
@@ -123,22 +142,81 @@ public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeRes
 
     /**
      * Set the map of theme name overrides. This map is of the format { service theme name -> { user
-     * agent regular expression -> override theme name } }
+     * agent regular expression -> override theme name } }. The user agent regular expressions of a
+     * theme are evaluated in map order, the first one matching the whole user agent wins.
      *
      * @param overrides
      */
     public void setOverrides(Map<String, Map<String, String>> overrides) {
-        // initialize the overrides variable to an empty map
-        this.overrides = new HashMap<String, Map<Pattern, String>>();
+        final Map<String, UserAgentThemeClassifier> classifiers =
+                new HashMap<String, UserAgentThemeClassifier>();
 
-        // convert the provided map's regular expressions to Pattern objects
+        // compile each theme's regular expressions into a single classifier
         for (Entry<String, Map<String, String>> themeMapping : overrides.entrySet()) {
-            Map<Pattern, String> mappings = new LinkedHashMap<Pattern, String>();
-            for (Entry<String, String> browserMapping : themeMapping.getValue().entrySet()) {
-                Pattern p = Pattern.compile(browserMapping.getKey());
-                mappings.put(p, browserMapping.getValue());
+            classifiers.put(
+                    themeMapping.getKey(), new UserAgentThemeClassifier(themeMapping.getValue()));
+        }
+
+        this.overrides = classifiers;
+        this.userAgentCache = createCache(this.userAgentCacheSize);
+    }
+
+    /**
+     * Set the number of (service theme name, user agent) pairs to remember the resolved theme name
+     * for, defaults to 1000. Least recently used pairs are discarded first.
+     *
+     * @param userAgentCacheSize
+     */
+    public void setUserAgentCacheSize(int userAgentCacheSize) {
+        if (userAgentCacheSize < 1) {
+            throw new IllegalArgumentException(
+                    "userAgentCacheSize must be greater than 0: " + userAgentCacheSize);
+        }
+        this.userAgentCacheSize = userAgentCacheSize;
+        this.userAgentCache = createCache(userAgentCacheSize);
+    }
+
+    private static Map<ThemeUserAgent, String> createCache(final int maxSize) {
+        return new LinkedHashMap<ThemeUserAgent, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ThemeUserAgent, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static final class ThemeUserAgent {
+        private final String themeName;
+        private final String userAgent;
+        private final int hash;
+
+        ThemeUserAgent(String themeName, String userAgent) {
+            this.themeName = themeName;
+            this.userAgent = userAgent;
+            this.hash = 31 * (themeName == null ? 0 : themeName.hashCode()) + userAgent.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ThemeUserAgent)) {
+                return false;
             }
-            this.overrides.put(themeMapping.getKey(), mappings);
+            final ThemeUserAgent other = (ThemeUserAgent) obj;
+            return this.hash == other.hash
+                    && this.userAgent.equals(other.userAgent)
+                    && (this.themeName == null
+                            ? other.themeName == null
+                            : this.themeName.equals(other.themeName));
         }
     }
 }
@@ -0,0 +1,146 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Ordered list of user agent regular expressions and the theme names they map to, compiled into a
+ * single alternation so that a user agent is matched against all of them in one pass. The first
+ * expression, in configuration order, that matches the whole user agent wins.
+ *
+ * <p>Expressions that use back references cannot be combined without renumbering their groups, so
+ * they are matched on their own, in order, after the combined expression failed to pick an earlier
+ * one.
+ */
+class UserAgentThemeClassifier {
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+    private final Pattern combined;
+    private final int[] combinedGroups;
+    private final int[] combinedIndexes;
+
+    private final Pattern[] standalone;
+    private final int[] standaloneIndexes;
+
+    private final String[] themeNames;
+
+    /**
+     * @param mappings user agent regular expression to theme name, in evaluation order
+     * @throws java.util.regex.PatternSyntaxException if one of the expressions is invalid
+     */
+    UserAgentThemeClassifier(Map<String, String> mappings) {
+        final int size = mappings.size();
+        this.themeNames = new String[size];
+
+        final StringBuilder alternation = new StringBuilder();
+        final List<Integer> groups = new ArrayList<Integer>();
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final List<Pattern> standalone = new ArrayList<Pattern>();
+        final List<Integer> standaloneIndexes = new ArrayList<Integer>();
+
+        int index = 0;
+        int group = 1;
+        for (Entry<String, String> mapping : mappings.entrySet()) {
+            final String regex = mapping.getKey();
+            final Pattern pattern = Pattern.compile(regex);
+            this.themeNames[index] = mapping.getValue();
+
+            if (BACK_REFERENCE.matcher(regex).find()) {
+                standalone.add(pattern);
+                standaloneIndexes.add(index);
+            } else {
+                if (alternation.length() > 0) {
+                    alternation.append('|');
+                }
+                alternation.append('(').append(regex).append(')');
+                groups.add(group);
+                indexes.add(index);
+                group += 1 + pattern.matcher("").groupCount();
+            }
+            index++;
+        }
+
+        Pattern combined = null;
+        if (!groups.isEmpty()) {
+            try {
+                combined = Pattern.compile(alternation.toString());
+            } catch (PatternSyntaxException e) {
+                // e.g. a comment in (?x) mode swallowing the closing parenthesis, match one by one
+                groups.clear();
+                indexes.clear();
+                standalone.clear();
+                standaloneIndexes.clear();
+                index = 0;
+                for (String regex : mappings.keySet()) {
+                    standalone.add(Pattern.compile(regex));
+                    standaloneIndexes.add(index++);
+                }
+            }
+        }
+        this.combined = combined;
+        this.combinedGroups = toArray(groups);
+        this.combinedIndexes = toArray(indexes);
+        this.standalone = standalone.toArray(new Pattern[standalone.size()]);
+        this.standaloneIndexes = toArray(standaloneIndexes);
+    }
+
+    /**
+     * @param userAgent the user agent to classify, may be null
+     * @return the theme name mapped to the first matching expression, null if none match
+     */
+    String classify(String userAgent) {
+        if (userAgent == null) {
+            return null;
+        }
+
+        int match = Integer.MAX_VALUE;
+        if (this.combined != null) {
+            final Matcher matcher = this.combined.matcher(userAgent);
+            if (matcher.matches()) {
+                for (int i = 0; i < this.combinedGroups.length; i++) {
+                    if (matcher.start(this.combinedGroups[i]) >= 0) {
+                        match = this.combinedIndexes[i];
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Only expressions configured before the combined match can still take precedence
+        for (int i = 0; i < this.standalone.length && this.standaloneIndexes[i] < match; i++) {
+            if (this.standalone[i].matcher(userAgent).matches()) {
+                match = this.standaloneIndexes[i];
+                break;
+            }
+        }
+
+        return match != Integer.MAX_VALUE ? this.themeNames[match] : null;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        final int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
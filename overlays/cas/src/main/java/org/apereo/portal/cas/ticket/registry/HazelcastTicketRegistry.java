@@ -0,0 +1,419 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.NetworkConfig;
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.ReplicatedMap;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Ticket registry shared by several CAS nodes through an embedded Hazelcast cluster, so that
+ * logins need no sticky sessions. The nodes find each other over TCP/IP at the addresses in
+ * {@link #setMembers(String)}; no external service is needed. Each node only listens on {@link
+ * #setNetworkInterface(String)}, by default on those of its own addresses that are in the member
+ * list, so that hosts outside the cluster cannot join it.
+ *
+ * <p>Ticket granting tickets (and proxy granting tickets) are kept in a replicated map:  every
+ * node has a copy, so they are read locally, and changes are sent to the other nodes
+ * asynchronously. A node that receives a request right after a login on another node may not see
+ * the new ticket granting ticket yet and asks the user to log in again. Service tickets (and proxy
+ * tickets) are short lived and used once, so they are only kept in a partitioned map, on the node
+ * that owns the ticket id's partition, with {@link #setServiceTicketBackupCount(int)} backups
+ * (none by default, a service ticket is lost if its node fails). Validating one takes at most one
+ * round trip to the owning node.
+ *
+ * <p>Tickets are evicted once they have not been used for their time to kill, which should match
+ * the expiration policies. Evicted ticket granting tickets are queued on every node for a {@link
+ * HazelcastTicketRegistryCleaner}, which deletes them through the outermost registry so that
+ * decorators (e.g. ClearPass, which drops the cached credentials) see the eviction. Only the node
+ * that owns the ticket id's partition queues the ticket to be expired as well, so that exactly one
+ * node sends the single sign-out requests.
+ *
+ * <p>{@link #getCredentialsMap()} gives ClearPass a credentials cache shared by the nodes:  the
+ * portal may ask any node for the credentials of a user who logged in on another one.
+ */
+public class HazelcastTicketRegistry extends AbstractDistributedTicketRegistry
+        implements InitializingBean, DisposableBean {
+    static final String TICKET_GRANTING_TICKETS = "cas-ticket-granting-tickets";
+    static final String SERVICE_TICKETS = "cas-service-tickets";
+    static final String CREDENTIALS = "cas-clearpass-credentials";
+
+    /** Evictions beyond this many, while no cleaner runs, are not queued */
+    private static final int MAX_EVICTED_TICKETS = 100000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private String clusterName = "uportal-cas";
+    private String instanceName;
+    private String members = "127.0.0.1";
+    private String networkInterface;
+    private int port = 5701;
+    private boolean portAutoIncrement = true;
+    private int serviceTicketBackupCount = 0;
+    private long ticketGrantingTicketTimeToKillSeconds = 7200;
+    private long serviceTicketTimeToKillSeconds = 10;
+    private int credentialsTimeToLiveSeconds = 28800;
+
+    private final BlockingQueue<EvictedTicket> evictedTickets =
+            new LinkedBlockingQueue<EvictedTicket>(MAX_EVICTED_TICKETS);
+
+    private HazelcastInstance hazelcastInstance;
+    private ReplicatedMap<String, Ticket> ticketGrantingTickets;
+    private IMap<String, Ticket> serviceTickets;
+
+    /** @param clusterName name shared by the nodes of one cluster, defaults to uportal-cas */
+    public void setClusterName(String clusterName) {
+        this.clusterName = clusterName;
+    }
+
+    /** @param instanceName name of this node's Hazelcast instance, generated by default */
+    public void setInstanceName(String instanceName) {
+        this.instanceName = instanceName;
+    }
+
+    /**
+     * @param members comma separated addresses (host or host:port) of the nodes to join, defaults
+     *     to 127.0.0.1
+     */
+    public void setMembers(String members) {
+        this.members = members;
+    }
+
+    /**
+     * @param networkInterface address (wildcards allowed, e.g. 10.0.*.*) of the network interface
+     *     to bind, by default the addresses of this host in {@link #setMembers(String)}, or
+     *     127.0.0.1 if there are none
+     */
+    public void setNetworkInterface(String networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    /** @param port port the nodes talk to each other on, defaults to 5701 */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /** @param portAutoIncrement whether to try the next ports if the port is in use */
+    public void setPortAutoIncrement(boolean portAutoIncrement) {
+        this.portAutoIncrement = portAutoIncrement;
+    }
+
+    /** @param serviceTicketBackupCount synchronous copies of each service ticket, defaults to 0 */
+    public void setServiceTicketBackupCount(int serviceTicketBackupCount) {
+        this.serviceTicketBackupCount = serviceTicketBackupCount;
+    }
+
+    /** @param seconds time to kill of ticket granting tickets, defaults to 7200 */
+    public void setTicketGrantingTicketTimeToKillInSeconds(int seconds) {
+        this.ticketGrantingTicketTimeToKillSeconds = seconds;
+    }
+
+    /** @param seconds time to kill of service tickets, defaults to 10 */
+    public void setServiceTicketTimeToKillInSeconds(int seconds) {
+        this.serviceTicketTimeToKillSeconds = seconds;
+    }
+
+    /**
+     * @param seconds time after which entries of the {@link #getCredentialsMap()} are removed even
+     *     if their ticket granting ticket is still used, defaults to 28800
+     */
+    public void setCredentialsTimeToLiveInSeconds(int seconds) {
+        this.credentialsTimeToLiveSeconds = seconds;
+    }
+
+    /** @return number of nodes in the cluster, including this one */
+    public int getMemberCount() {
+        return this.hazelcastInstance.getCluster().getMembers().size();
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() {
+        final Config config = new Config();
+        if (this.instanceName != null) {
+            config.setInstanceName(this.instanceName);
+        }
+        config.setClassLoader(getClass().getClassLoader());
+        config.setProperty("hazelcast.logging.type", "slf4j");
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.getGroupConfig().setName(this.clusterName);
+
+        final List<String> memberList = new ArrayList<String>();
+        for (String member : this.members.split(",")) {
+            if (member.trim().length() > 0) {
+                memberList.add(member.trim());
+            }
+        }
+
+        final NetworkConfig network = config.getNetworkConfig();
+        network.setPort(this.port).setPortAutoIncrement(this.portAutoIncrement);
+        // Hazelcast listens on every interface unless told not to
+        config.setProperty("hazelcast.socket.bind.any", "false");
+        network.getInterfaces().setEnabled(true);
+        for (String address : getInterfaceAddresses(memberList)) {
+            network.getInterfaces().addInterface(address);
+        }
+        network.getJoin().getMulticastConfig().setEnabled(false);
+        network.getJoin().getTcpIpConfig().setEnabled(true).setMembers(memberList);
+
+        // Serialized, so that each read gets its own copy:  a shared instance could be changed by
+        // one request while it is being serialized to replicate another's change
+        config.getReplicatedMapConfig(TICKET_GRANTING_TICKETS)
+                .setInMemoryFormat(InMemoryFormat.BINARY)
+                .setAsyncFillup(true);
+        config.getMapConfig(SERVICE_TICKETS)
+                .setBackupCount(this.serviceTicketBackupCount)
+                .setAsyncBackupCount(0);
+        config.getMapConfig(CREDENTIALS)
+                .setBackupCount(1)
+                .setTimeToLiveSeconds(this.credentialsTimeToLiveSeconds);
+
+        this.hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+        this.ticketGrantingTickets =
+                this.hazelcastInstance.getReplicatedMap(TICKET_GRANTING_TICKETS);
+        this.serviceTickets = this.hazelcastInstance.getMap(SERVICE_TICKETS);
+
+        // Every node gets the eviction of its own replica
+        this.ticketGrantingTickets.addEntryListener(
+                new EntryAdapter<String, Ticket>() {
+                    @Override
+                    public void entryEvicted(EntryEvent<String, Ticket> event) {
+                        final String ticketId = event.getKey();
+                        final Ticket ticket = event.getOldValue();
+                        final TicketGrantingTicket ticketToExpire =
+                                ticket instanceof TicketGrantingTicket && isPartitionOwner(ticketId)
+                                        ? (TicketGrantingTicket) ticket
+                                        : null;
+                        if (!evictedTickets.offer(new EvictedTicket(ticketId, ticketToExpire))) {
+                            logger.debug("Evicted ticket queue full, dropped {}", ticketId);
+                        }
+                    }
+                });
+
+        this.logger.info(
+                "Joined ticket registry cluster {} with {} members",
+                this.clusterName,
+                getMemberCount());
+    }
+
+    /** @return the ticket granting tickets evicted on this node since the previous call */
+    List<EvictedTicket> pollEvictedTickets() {
+        final List<EvictedTicket> tickets = new ArrayList<EvictedTicket>();
+        this.evictedTickets.drainTo(tickets);
+        return tickets;
+    }
+
+    /**
+     * @return a map shared by the nodes of the cluster, for the ClearPass credentials cache;  its
+     *     entries are sent between the nodes unencrypted
+     */
+    public Map<String, String> getCredentialsMap() {
+        return this.hazelcastInstance.getMap(CREDENTIALS);
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() {
+        if (this.hazelcastInstance != null) {
+            this.hazelcastInstance.shutdown();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#addTicket(org.jasig.cas.ticket.Ticket)
+     */
+    public void addTicket(Ticket ticket) {
+        if (ticket == null) {
+            throw new IllegalArgumentException("ticket cannot be null");
+        }
+        store(ticket);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTicket(java.lang.String)
+     */
+    public Ticket getTicket(String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        // The local replicated map first, so that ticket granting tickets cost no round trip
+        Ticket ticket = this.ticketGrantingTickets.get(ticketId);
+        if (ticket == null) {
+            ticket = this.serviceTickets.get(ticketId);
+        }
+        return ticket != null ? getProxiedTicketInstance(ticket) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#deleteTicket(java.lang.String)
+     */
+    public boolean deleteTicket(String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+        return this.ticketGrantingTickets.remove(ticketId) != null
+                || this.serviceTickets.remove(ticketId) != null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTickets()
+     */
+    public Collection<Ticket> getTickets() {
+        final List<Ticket> tickets = new ArrayList<Ticket>(this.ticketGrantingTickets.values());
+        tickets.addAll(this.serviceTickets.values());
+        return Collections.unmodifiableCollection(tickets);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractTicketRegistry#sessionCount()
+     */
+    @Override
+    public int sessionCount() {
+        return this.ticketGrantingTickets.size();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractTicketRegistry#serviceTicketCount()
+     */
+    @Override
+    public int serviceTicketCount() {
+        return this.serviceTickets.size();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry#updateTicket(org.jasig.cas.ticket.Ticket)
+     */
+    @Override
+    protected void updateTicket(Ticket ticket) {
+        store(ticket);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry#needsCallback()
+     */
+    @Override
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    /** @return true if this node owns the partition of the key */
+    private boolean isPartitionOwner(String key) {
+        final Member owner =
+                this.hazelcastInstance.getPartitionService().getPartition(key).getOwner();
+        return owner != null && owner.localMember();
+    }
+
+    /**
+     * @return the configured network interface or, if there is none, the members that are
+     *     addresses of this host, 127.0.0.1 if no member is
+     */
+    private List<String> getInterfaceAddresses(List<String> memberList) {
+        if (this.networkInterface != null) {
+            return Collections.singletonList(this.networkInterface);
+        }
+
+        final List<String> addresses = new ArrayList<String>();
+        for (String member : memberList) {
+            final int colon = member.lastIndexOf(':');
+            final String host =
+                    colon > 0 && member.indexOf(':') == colon ? member.substring(0, colon) : member;
+            try {
+                final InetAddress address = InetAddress.getByName(host);
+                if (NetworkInterface.getByInetAddress(address) != null
+                        && !addresses.contains(address.getHostAddress())) {
+                    addresses.add(address.getHostAddress());
+                }
+            } catch (UnknownHostException e) {
+                this.logger.warn("Unknown ticket registry cluster member {}", member);
+            } catch (SocketException e) {
+                this.logger.warn("Could not check whether {} is an address of this host", host, e);
+            }
+        }
+        if (addresses.isEmpty()) {
+            this.logger.warn(
+                    "None of the ticket registry cluster members {} is an address of this host,"
+                            + " listening on 127.0.0.1 only;  set networkInterface",
+                    this.members);
+            addresses.add("127.0.0.1");
+        }
+        return addresses;
+    }
+
+    /** Stores the ticket, restarting its time to kill. */
+    private void store(Ticket ticket) {
+        if (ticket instanceof TicketGrantingTicket) {
+            this.ticketGrantingTickets.put(
+                    ticket.getId(),
+                    ticket,
+                    this.ticketGrantingTicketTimeToKillSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            final long timeToKill =
+                    ticket instanceof ServiceTicket
+                            ? this.serviceTicketTimeToKillSeconds
+                            : this.ticketGrantingTicketTimeToKillSeconds;
+            this.serviceTickets.set(ticket.getId(), ticket, timeToKill, TimeUnit.SECONDS);
+        }
+    }
+
+    /** A ticket granting ticket evicted from this node's replica. */
+    static final class EvictedTicket {
+        private final String ticketId;
+        private final TicketGrantingTicket ticketToExpire;
+
+        EvictedTicket(String ticketId, TicketGrantingTicket ticketToExpire) {
+            this.ticketId = ticketId;
+            this.ticketToExpire = ticketToExpire;
+        }
+
+        String getTicketId() {
+            return this.ticketId;
+        }
+
+        /** @return the ticket if this node should expire it, null if another node does */
+        TicketGrantingTicket getTicketToExpire() {
+            return this.ticketToExpire;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.List;
+import org.apereo.portal.cas.ticket.registry.HazelcastTicketRegistry.EvictedTicket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the ticket granting tickets a {@link HazelcastTicketRegistry} evicted, through {@link
+ * #setTicketRegistry(TicketRegistry)}, which should be the outermost registry (e.g. the ClearPass
+ * decorator) so that decorators see the deletes. Every node deletes the tickets evicted from its
+ * replica; the node that owns a ticket's partition expires it first, which sends the single sign
+ * out requests.
+ */
+public class HazelcastTicketRegistryCleaner {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private HazelcastTicketRegistry hazelcastTicketRegistry;
+    private TicketRegistry ticketRegistry;
+    private boolean logUserOutOfServices = true;
+
+    /** @param hazelcastTicketRegistry the registry to poll for evicted tickets */
+    public void setHazelcastTicketRegistry(HazelcastTicketRegistry hazelcastTicketRegistry) {
+        this.hazelcastTicketRegistry = hazelcastTicketRegistry;
+    }
+
+    /** @param ticketRegistry the registry to delete evicted tickets from */
+    public void setTicketRegistry(TicketRegistry ticketRegistry) {
+        this.ticketRegistry = ticketRegistry;
+    }
+
+    /**
+     * @param logUserOutOfServices whether to expire ticket granting tickets before deleting them,
+     *     which sends single sign out requests to the services used, defaults to true
+     */
+    public void setLogUserOutOfServices(boolean logUserOutOfServices) {
+        this.logUserOutOfServices = logUserOutOfServices;
+    }
+
+    /** Delete the tickets that were evicted since the previous run. */
+    public void clean() {
+        final TicketRegistry ticketRegistry =
+                this.ticketRegistry != null ? this.ticketRegistry : this.hazelcastTicketRegistry;
+
+        final List<EvictedTicket> evicted = this.hazelcastTicketRegistry.pollEvictedTickets();
+        for (EvictedTicket ticket : evicted) {
+            final TicketGrantingTicket ticketToExpire = ticket.getTicketToExpire();
+            try {
+                if (this.logUserOutOfServices && ticketToExpire != null) {
+                    ticketToExpire.expire();
+                }
+            } catch (RuntimeException e) {
+                this.logger.warn(
+                        "Failed to log user out of services for " + ticket.getTicketId(), e);
+            }
+            ticketRegistry.deleteTicket(ticket.getTicketId());
+        }
+
+        if (!evicted.isEmpty()) {
+            this.logger.debug("Deleted {} evicted tickets", evicted.size());
+        }
+    }
+}
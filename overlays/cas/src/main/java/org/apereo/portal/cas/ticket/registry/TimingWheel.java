@@ -0,0 +1,188 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: {@value #LEVELS} wheels of {@value #SLOTS} slots, each slot of a wheel
+ * spanning a full turn of the wheel below it, so the first wheel has a resolution of one tick and
+ * the last covers 64^4 ticks. Scheduling and cancelling take constant time and advancing touches
+ * only the slots that come due, moving entries of a higher wheel down once they are within its
+ * range. Entries further out than the last wheel covers are scheduled at its end.
+ *
+ * <p>Not thread safe, callers must synchronize.
+ */
+final class TimingWheel<T> {
+    static final int LEVELS = 4;
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final Object[][] slots = new Object[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+
+    /** @return the last tick the wheel advanced to */
+    long getCurrentTick() {
+        return this.currentTick;
+    }
+
+    /** @return number of scheduled entries */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Move an empty wheel forward to the given tick without stepping through the ticks in between.
+     * Call before scheduling on a wheel that may not have been advanced for a while.
+     */
+    void skipIfEmpty(long tick) {
+        if (this.size == 0 && tick > this.currentTick) {
+            this.currentTick = tick;
+        }
+    }
+
+    /**
+     * Schedule the node to come due at the given tick, or the next tick if that has already passed.
+     * If the node is already scheduled it is moved.
+     */
+    void schedule(Node<T> node, long deadlineTick) {
+        cancel(node);
+        final long earliest = this.currentTick + 1;
+        final long latest = this.currentTick + MAX_DELAY;
+        node.deadlineTick = Math.min(Math.max(deadlineTick, earliest), latest);
+        place(node);
+        this.size++;
+    }
+
+    /** Remove the node from the wheel, if it is scheduled */
+    void cancel(Node<T> node) {
+        if (node.level < 0) {
+            return;
+        }
+        unlink(node);
+        this.size--;
+    }
+
+    /**
+     * Advance the wheel to the given tick, removing the nodes that came due and adding them to
+     * {@code due}.
+     */
+    void advance(long tick, List<Node<T>> due) {
+        skipIfEmpty(tick);
+        while (this.currentTick < tick) {
+            final long current = ++this.currentTick;
+
+            // Entering a new turn of a wheel moves the matching slot of the wheel above down
+            int level = 1;
+            while (level < LEVELS && (current & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (int l = level - 1; l >= 1; l--) {
+                cascade(l, (int) (current >>> (SLOT_BITS * l)) & SLOT_MASK);
+            }
+
+            final int slot = (int) current & SLOT_MASK;
+            Node<T> node = head(0, slot);
+            this.slots[0][slot] = null;
+            while (node != null) {
+                final Node<T> next = node.next;
+                node.level = -1;
+                node.prev = null;
+                node.next = null;
+                due.add(node);
+                this.size--;
+                node = next;
+            }
+
+            skipIfEmpty(tick);
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Node<T> node = head(level, slot);
+        this.slots[level][slot] = null;
+        while (node != null) {
+            final Node<T> next = node.next;
+            node.prev = null;
+            node.next = null;
+            place(node);
+            node = next;
+        }
+    }
+
+    /** Link the node into the lowest wheel whose current turn contains its deadline */
+    private void place(Node<T> node) {
+        final long deadline = node.deadlineTick;
+        int level = 0;
+        while (level < LEVELS - 1
+                && (deadline >>> (SLOT_BITS * (level + 1)))
+                        != (this.currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        final int slot = (int) (deadline >>> (SLOT_BITS * level)) & SLOT_MASK;
+
+        final Node<T> head = head(level, slot);
+        node.level = level;
+        node.slot = slot;
+        node.prev = null;
+        node.next = head;
+        if (head != null) {
+            head.prev = node;
+        }
+        this.slots[level][slot] = node;
+    }
+
+    private void unlink(Node<T> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            this.slots[node.level][node.slot] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.level = -1;
+        node.prev = null;
+        node.next = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<T> head(int level, int slot) {
+        return (Node<T>) this.slots[level][slot];
+    }
+
+    /** An entry of the wheel, may be scheduled on at most one wheel at a time. */
+    static class Node<T> {
+        final T value;
+        long deadlineTick;
+        int level = -1;
+        int slot;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+
+        /** @return true if the node is scheduled */
+        boolean isScheduled() {
+            return this.level >= 0;
+        }
+    }
+}
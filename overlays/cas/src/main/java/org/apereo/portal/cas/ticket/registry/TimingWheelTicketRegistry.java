@@ -0,0 +1,310 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apereo.portal.cas.ticket.registry.TimingWheel.Node;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.registry.AbstractTicketRegistry;
+
+/**
+ * In-memory ticket registry that finds expired tickets without scanning every ticket. Lookups go
+ * straight to a {@link ConcurrentHashMap}; adds and deletes also schedule or cancel a check of the
+ * ticket on one of {@link #setStripes(int)} independently locked {@link TimingWheel}s.
+ *
+ * <p>A ticket is checked when its time to kill could have run out, i.e. {@link
+ * #setTicketGrantingTicketTimeToKillInSeconds(int)} or {@link
+ * #setServiceTicketTimeToKillInSeconds(int)} after it was last used. These should match the
+ * ticket expiration policies. A ticket that is not expired yet (because it was used since, or its
+ * policy is longer) is checked again after another time to kill. {@link #pollExpiredTickets()}
+ * returns the expired tickets that came due since the previous poll; {@link
+ * TimingWheelTicketRegistryCleaner} polls and deletes them.
+ */
+public class TimingWheelTicketRegistry extends AbstractTicketRegistry {
+    private final ConcurrentMap<String, Node<Ticket>> tickets;
+    private final AtomicInteger ticketGrantingTicketCount = new AtomicInteger();
+    private final AtomicInteger serviceTicketCount = new AtomicInteger();
+
+    private long tickMillis = 1000;
+    private long ticketGrantingTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(7200);
+    private long serviceTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(10);
+    private long otherTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(7200);
+
+    private Stripe[] stripes;
+    private int stripeMask;
+
+    public TimingWheelTicketRegistry() {
+        this.tickets = new ConcurrentHashMap<String, Node<Ticket>>(1024, 0.75f, 64);
+        setStripes(16);
+    }
+
+    /**
+     * @param stripes number of independently locked timing wheels, rounded up to a power of two,
+     *     defaults to 16
+     */
+    public void setStripes(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be greater than 0: " + stripes);
+        }
+        if (!this.tickets.isEmpty()) {
+            throw new IllegalStateException("stripes cannot be changed once tickets were added");
+        }
+
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeMask = size - 1;
+    }
+
+    /** @param tickMillis resolution of the timing wheels in milliseconds, defaults to 1000 */
+    public void setTickMillis(long tickMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be greater than 0: " + tickMillis);
+        }
+        if (!this.tickets.isEmpty()) {
+            throw new IllegalStateException("tickMillis cannot be changed once tickets were added");
+        }
+        this.tickMillis = tickMillis;
+    }
+
+    /** @param seconds time to kill of ticket granting tickets, defaults to 7200 */
+    public void setTicketGrantingTicketTimeToKillInSeconds(int seconds) {
+        this.ticketGrantingTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /** @param seconds time to kill of service tickets, defaults to 10 */
+    public void setServiceTicketTimeToKillInSeconds(int seconds) {
+        this.serviceTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /** @param seconds time to kill of any other kind of ticket, defaults to 7200 */
+    public void setOtherTicketTimeToKillInSeconds(int seconds) {
+        this.otherTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#addTicket(org.jasig.cas.ticket.Ticket)
+     */
+    public void addTicket(Ticket ticket) {
+        if (ticket == null) {
+            throw new IllegalArgumentException("ticket cannot be null");
+        }
+
+        final String ticketId = ticket.getId();
+        final Node<Ticket> node = new Node<Ticket>(ticket);
+        final long currentTick = currentTick();
+        final long deadlineTick = nextCheckTick(ticket);
+
+        final Stripe stripe = stripe(ticketId);
+        final Node<Ticket> previous;
+        synchronized (stripe) {
+            stripe.wheel.skipIfEmpty(currentTick);
+            previous = this.tickets.put(ticketId, node);
+            if (previous != null) {
+                stripe.wheel.cancel(previous);
+            }
+            stripe.wheel.schedule(node, deadlineTick);
+        }
+
+        if (previous != null) {
+            count(previous.value, -1);
+        }
+        count(ticket, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTicket(java.lang.String)
+     */
+    public Ticket getTicket(String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        final Node<Ticket> node = this.tickets.get(ticketId);
+        return node != null ? node.value : null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#deleteTicket(java.lang.String)
+     */
+    public boolean deleteTicket(String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+
+        final Stripe stripe = stripe(ticketId);
+        final Node<Ticket> node;
+        synchronized (stripe) {
+            node = this.tickets.remove(ticketId);
+            if (node == null) {
+                return false;
+            }
+            stripe.wheel.cancel(node);
+        }
+
+        count(node.value, -1);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTickets()
+     */
+    public Collection<Ticket> getTickets() {
+        final List<Ticket> tickets = new ArrayList<Ticket>(this.tickets.size());
+        for (Node<Ticket> node : this.tickets.values()) {
+            tickets.add(node.value);
+        }
+        return Collections.unmodifiableCollection(tickets);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractTicketRegistry#sessionCount()
+     */
+    @Override
+    public int sessionCount() {
+        return this.ticketGrantingTicketCount.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractTicketRegistry#serviceTicketCount()
+     */
+    @Override
+    public int serviceTicketCount() {
+        return this.serviceTicketCount.get();
+    }
+
+    /** @return number of scheduled expiration checks, one per ticket */
+    public int getScheduledCount() {
+        int count = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                count += stripe.wheel.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Advance the timing wheels to the current time and check the tickets that came due. Tickets
+     * that are not expired are scheduled for another check. Expired tickets are returned, and stay
+     * in the registry (checked again on the next tick) until they are deleted.
+     *
+     * @return the expired tickets that came due since the previous call
+     */
+    public List<Ticket> pollExpiredTickets() {
+        final long currentTick = currentTick();
+        final List<Ticket> expired = new ArrayList<Ticket>();
+        final List<Node<Ticket>> due = new ArrayList<Node<Ticket>>();
+        final List<Node<Ticket>> reschedule = new ArrayList<Node<Ticket>>();
+        final List<Long> deadlines = new ArrayList<Long>();
+
+        for (Stripe stripe : this.stripes) {
+            due.clear();
+            synchronized (stripe) {
+                stripe.wheel.advance(currentTick, due);
+            }
+            if (due.isEmpty()) {
+                continue;
+            }
+
+            // Expiration policies are checked without holding the stripe lock
+            reschedule.clear();
+            deadlines.clear();
+            for (Node<Ticket> node : due) {
+                final Ticket ticket = node.value;
+                if (ticket.isExpired()) {
+                    expired.add(ticket);
+                    deadlines.add(currentTick + 1);
+                } else {
+                    deadlines.add(nextCheckTick(ticket));
+                }
+                reschedule.add(node);
+            }
+
+            synchronized (stripe) {
+                for (int i = 0; i < reschedule.size(); i++) {
+                    final Node<Ticket> node = reschedule.get(i);
+                    // skip tickets deleted or replaced in the meantime
+                    if (this.tickets.get(node.value.getId()) == node && !node.isScheduled()) {
+                        stripe.wheel.schedule(node, deadlines.get(i));
+                    }
+                }
+            }
+        }
+
+        return expired;
+    }
+
+    /** @return the current time in milliseconds, overridden by tests */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private long currentTick() {
+        return currentTimeMillis() / this.tickMillis;
+    }
+
+    /** @return the first tick at which the ticket could have expired */
+    private long nextCheckTick(Ticket ticket) {
+        final long timeToKill;
+        if (ticket instanceof TicketGrantingTicket) {
+            timeToKill = this.ticketGrantingTicketTimeToKillMillis;
+        } else if (ticket instanceof ServiceTicket) {
+            timeToKill = this.serviceTicketTimeToKillMillis;
+        } else {
+            timeToKill = this.otherTicketTimeToKillMillis;
+        }
+
+        final long now = currentTimeMillis();
+        final long lastUsed =
+                ticket instanceof TicketState
+                        ? Math.min(now, ((TicketState) ticket).getLastTimeUsed())
+                        : now;
+
+        // round up so that the check is never early
+        return (lastUsed + timeToKill + this.tickMillis - 1) / this.tickMillis;
+    }
+
+    private void count(Ticket ticket, int delta) {
+        if (ticket instanceof TicketGrantingTicket) {
+            this.ticketGrantingTicketCount.addAndGet(delta);
+        } else if (ticket instanceof ServiceTicket) {
+            this.serviceTicketCount.addAndGet(delta);
+        }
+    }
+
+    private Stripe stripe(String ticketId) {
+        final int hash = ticketId.hashCode();
+        return this.stripes[(hash ^ (hash >>> 16)) & this.stripeMask];
+    }
+
+    private static final class Stripe {
+        private final TimingWheel<Ticket> wheel = new TimingWheel<Ticket>();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.List;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the expired tickets found by a {@link TimingWheelTicketRegistry}. Unlike the default
+ * cleaner it does not look at every ticket, so it can run every few seconds.
+ *
+ * <p>Tickets are deleted through {@link #setTicketRegistry(TicketRegistry)}, which should be the
+ * outermost registry (e.g. the ClearPass decorator) so that decorators see the deletes.
+ */
+public class TimingWheelTicketRegistryCleaner {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private TimingWheelTicketRegistry timingWheelTicketRegistry;
+    private TicketRegistry ticketRegistry;
+    private boolean logUserOutOfServices = true;
+
+    /** @param timingWheelTicketRegistry the registry to poll for expired tickets */
+    public void setTimingWheelTicketRegistry(TimingWheelTicketRegistry timingWheelTicketRegistry) {
+        this.timingWheelTicketRegistry = timingWheelTicketRegistry;
+    }
+
+    /** @param ticketRegistry the registry to delete expired tickets from */
+    public void setTicketRegistry(TicketRegistry ticketRegistry) {
+        this.ticketRegistry = ticketRegistry;
+    }
+
+    /**
+     * @param logUserOutOfServices whether to expire ticket granting tickets before deleting them,
+     *     which sends single sign out requests to the services used, defaults to true
+     */
+    public void setLogUserOutOfServices(boolean logUserOutOfServices) {
+        this.logUserOutOfServices = logUserOutOfServices;
+    }
+
+    /** Delete the tickets that expired since the previous run. */
+    public void clean() {
+        final TicketRegistry ticketRegistry =
+                this.ticketRegistry != null ? this.ticketRegistry : this.timingWheelTicketRegistry;
+
+        final List<Ticket> expired = this.timingWheelTicketRegistry.pollExpiredTickets();
+        for (Ticket ticket : expired) {
+            try {
+                if (this.logUserOutOfServices && ticket instanceof TicketGrantingTicket) {
+                    ((TicketGrantingTicket) ticket).expire();
+                }
+            } catch (RuntimeException e) {
+                this.logger.warn("Failed to log user out of services for " + ticket.getId(), e);
+            }
+            ticketRegistry.deleteTicket(ticket.getId());
+        }
+
+        if (!expired.isEmpty()) {
+            this.logger.debug("Deleted {} expired tickets", expired.size());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+/**
+ */
+public class CachingUserPasswordDaoTest {
+
+    @Test
+    public void testCachesFoundHash() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("admin")).andReturn("(MD5)hash").once();
+
+        final CachingUserPasswordDao cachingDao = new CachingUserPasswordDao();
+        cachingDao.setUserPasswordDao(userPasswordDao);
+
+        EasyMock.replay(userPasswordDao);
+
+        assertEquals("(MD5)hash", cachingDao.getPasswordHash("admin"));
+        assertEquals("(MD5)hash", cachingDao.getPasswordHash("admin"));
+
+        EasyMock.verify(userPasswordDao);
+
+        assertEquals(1, cachingDao.getHitCount());
+        assertEquals(1, cachingDao.getMissCount());
+    }
+
+    @Test
+    public void testCachesUnknownUser() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("nobody")).andReturn(null).once();
+
+        final CachingUserPasswordDao cachingDao = new CachingUserPasswordDao();
+        cachingDao.setUserPasswordDao(userPasswordDao);
+
+        EasyMock.replay(userPasswordDao);
+
+        assertNull(cachingDao.getPasswordHash("nobody"));
+        assertNull(cachingDao.getPasswordHash("nobody"));
+
+        EasyMock.verify(userPasswordDao);
+
+        assertEquals(1, cachingDao.getHitCount());
+    }
+
+    @Test
+    public void testNegativeCachingDisabled() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("nobody")).andReturn(null).times(2);
+
+        final CachingUserPasswordDao cachingDao = new CachingUserPasswordDao();
+        cachingDao.setUserPasswordDao(userPasswordDao);
+        cachingDao.setNegativeTimeToLiveSeconds(0);
+
+        EasyMock.replay(userPasswordDao);
+
+        assertNull(cachingDao.getPasswordHash("nobody"));
+        assertNull(cachingDao.getPasswordHash("nobody"));
+
+        EasyMock.verify(userPasswordDao);
+
+        assertEquals(0, cachingDao.getHitCount());
+        assertEquals(2, cachingDao.getMissCount());
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("a")).andReturn("(MD5)a").times(2);
+        EasyMock.expect(userPasswordDao.getPasswordHash("b")).andReturn("(MD5)b").once();
+
+        final CachingUserPasswordDao cachingDao = new CachingUserPasswordDao();
+        cachingDao.setUserPasswordDao(userPasswordDao);
+        cachingDao.setMaxSize(1);
+
+        EasyMock.replay(userPasswordDao);
+
+        cachingDao.getPasswordHash("a");
+        cachingDao.getPasswordHash("b");
+        cachingDao.getPasswordHash("a");
+
+        EasyMock.verify(userPasswordDao);
+
+        assertEquals(1, cachingDao.getSize());
+    }
+
+    @Test
+    public void testConcurrentLookupsAreMerged() throws Exception {
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLookup = new CountDownLatch(1);
+        final AtomicInteger lookups = new AtomicInteger();
+
+        final CachingUserPasswordDao cachingDao = new CachingUserPasswordDao();
+        cachingDao.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        lookups.incrementAndGet();
+                        lookupStarted.countDown();
+                        try {
+                            releaseLookup.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return "(MD5)hash";
+                    }
+                });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Callable<String> lookup =
+                    new Callable<String>() {
+                        public String call() {
+                            return cachingDao.getPasswordHash("student");
+                        }
+                    };
+
+            final Future<String> first = executor.submit(lookup);
+            assertTrue(lookupStarted.await(10, TimeUnit.SECONDS));
+
+            final Future<String> second = executor.submit(lookup);
+            final Future<String> third = executor.submit(lookup);
+            while (cachingDao.getMergedCount() < 2) {
+                Thread.sleep(5);
+            }
+            releaseLookup.countDown();
+
+            assertEquals("(MD5)hash", first.get(10, TimeUnit.SECONDS));
+            assertEquals("(MD5)hash", second.get(10, TimeUnit.SECONDS));
+            assertEquals("(MD5)hash", third.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, lookups.get());
+        assertEquals(1, cachingDao.getMissCount());
+        assertEquals(2, cachingDao.getMergedCount());
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LoginFailureTrackerTest {
+
+    @Test
+    public void testBlocksUsernameAfterMaxFailures() {
+        final LoginFailureTracker tracker = new LoginFailureTracker();
+        tracker.setMaxUsernameFailures(3);
+
+        for (int i = 0; i < 2; i++) {
+            tracker.recordFailure("Student", null);
+        }
+        assertFalse(tracker.isBlocked("student", null));
+
+        tracker.recordFailure("student", null);
+        assertTrue(tracker.isBlocked("STUDENT", null));
+        assertFalse(tracker.isBlocked("staff", null));
+        assertEquals(1, tracker.getShedByUsernameCount());
+    }
+
+    @Test
+    public void testBlocksSourceAfterMaxFailures() {
+        final LoginFailureTracker tracker = new LoginFailureTracker();
+        tracker.setMaxUsernameFailures(0);
+        tracker.setMaxSourceFailures(5);
+
+        for (int i = 0; i < 5; i++) {
+            tracker.recordFailure("user" + i, "192.0.2.1");
+        }
+
+        assertTrue(tracker.isBlocked("user0", "192.0.2.1"));
+        assertTrue(tracker.isBlocked(null, "192.0.2.1"));
+        assertFalse(tracker.isBlocked("user0", "192.0.2.2"));
+        assertEquals(2, tracker.getShedBySourceCount());
+    }
+
+    @Test
+    public void testUsernameFailuresCountedPerSource() {
+        final LoginFailureTracker tracker = new LoginFailureTracker();
+        tracker.setMaxUsernameFailures(3);
+
+        for (int i = 0; i < 20; i++) {
+            tracker.recordFailure("student", "203.0.113.66");
+        }
+
+        assertTrue(tracker.isBlocked("student", "203.0.113.66"));
+        assertFalse(tracker.isBlocked("student", "192.0.2.1"));
+        assertEquals(0, tracker.getUsernameFailures("student", "192.0.2.1"));
+    }
+
+    @Test
+    public void testSuccessForgivesUsernameFailures() {
+        final LoginFailureTracker tracker = new LoginFailureTracker();
+        tracker.setMaxUsernameFailures(3);
+        tracker.setMaxSourceFailures(5);
+
+        for (int i = 0; i < 4; i++) {
+            tracker.recordFailure("student", "192.0.2.1");
+        }
+        assertTrue(tracker.isBlocked("student", "192.0.2.1"));
+
+        tracker.recordSuccess("Student", "192.0.2.1");
+        assertEquals(0, tracker.getUsernameFailures("student", "192.0.2.1"));
+        assertFalse(tracker.isBlocked("student", "192.0.2.1"));
+
+        // The failures of the address are not forgiven
+        assertEquals(4, tracker.getSourceFailures("192.0.2.1"));
+    }
+
+    @Test
+    public void testFailuresDecay() {
+        final long[] now = {0};
+        final LoginFailureTracker tracker =
+                new LoginFailureTracker() {
+                    @Override
+                    protected long currentTimeMillis() {
+                        return now[0];
+                    }
+                };
+        tracker.setWindowSeconds(60);
+        tracker.setMaxUsernameFailures(4);
+
+        for (int i = 0; i < 8; i++) {
+            tracker.recordFailure("admin", null);
+        }
+        assertEquals(8, tracker.getUsernameFailures("admin", null));
+        assertTrue(tracker.isBlocked("admin", null));
+
+        now[0] = TimeUnit.SECONDS.toMillis(60);
+        assertEquals(4, tracker.getUsernameFailures("admin", null));
+        assertTrue(tracker.isBlocked("admin", null));
+
+        now[0] = TimeUnit.SECONDS.toMillis(120);
+        assertEquals(2, tracker.getUsernameFailures("admin", null));
+        assertFalse(tracker.isBlocked("admin", null));
+
+        // New failures add to the decayed count
+        tracker.recordFailure("admin", null);
+        assertEquals(3, tracker.getUsernameFailures("admin", null));
+
+        now[0] = TimeUnit.HOURS.toMillis(1);
+        assertEquals(0, tracker.getUsernameFailures("admin", null));
+    }
+
+    @Test
+    public void testManyDistinctKeysInBoundedMemory() {
+        final LoginFailureTracker tracker = new LoginFailureTracker();
+        tracker.setWidth(1 << 16);
+        tracker.setDepth(4);
+        tracker.setMaxUsernameFailures(5);
+        tracker.setMaxSourceFailures(0);
+
+        // A spray of single failures over many more names than counters per row
+        for (int i = 0; i < 200000; i++) {
+            tracker.recordFailure("sprayed" + i, "198.51.100." + (i & 0xFF));
+        }
+
+        assertEquals(1L << 20, tracker.getMemoryBytes());
+        int blocked = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (tracker.isBlocked("innocent" + i, null)) {
+                blocked++;
+            }
+        }
+        assertEquals(0, blocked);
+    }
+
+    @Test
+    public void testConcurrentFailuresAreCounted() throws Exception {
+        final LoginFailureTracker tracker = new LoginFailureTracker();
+        final int threads = 8;
+        final int failuresPerThread = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                executor.execute(
+                        new Runnable() {
+                            public void run() {
+                                try {
+                                    start.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    return;
+                                }
+                                for (int i = 0; i < failuresPerThread; i++) {
+                                    tracker.recordFailure("admin", "192.0.2.1");
+                                }
+                            }
+                        });
+            }
+            start.countDown();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        }
+
+        // The conservative update may miss increments racing on the same counters, never add any
+        final int failures = tracker.getUsernameFailures("admin", "192.0.2.1");
+        assertTrue(String.valueOf(failures), failures <= threads * failuresPerThread);
+        assertTrue(String.valueOf(failures), failures >= failuresPerThread);
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ */
+public class PasswordHashSchemeRegistryTest {
+
+    @Test
+    public void testFindDefaultSchemes() {
+        final List<PasswordHashScheme> schemes =
+                SaltedDigestPasswordHashScheme.createDefaultSchemes(1);
+        final PasswordHashSchemeRegistry registry = new PasswordHashSchemeRegistry(schemes);
+
+        assertSame(schemes.get(0), registry.find("(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt"));
+        assertSame(
+                schemes.get(1),
+                registry.find("(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA=="));
+        assertNull(registry.find("(SHA512)abc"));
+        assertNull(registry.find("OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt"));
+        assertNull(registry.find("(MD5"));
+        assertNull(registry.find(""));
+        assertNull(registry.find(null));
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        final SaltedDigestPasswordHashScheme sha256 =
+                new SaltedDigestPasswordHashScheme("(SHA256)", "SHA-256", 1000, 1);
+        final SaltedDigestPasswordHashScheme sha256Strong =
+                new SaltedDigestPasswordHashScheme("(SHA256)(10000)", "SHA-256", 10000, 1);
+        final PasswordHashSchemeRegistry registry =
+                new PasswordHashSchemeRegistry(
+                        Arrays.<PasswordHashScheme>asList(sha256, sha256Strong));
+
+        assertSame(sha256, registry.find("(SHA256)abc"));
+        assertSame(sha256Strong, registry.find("(SHA256)(10000)abc"));
+    }
+
+    @Test
+    public void testDuplicatePrefix() {
+        try {
+            new PasswordHashSchemeRegistry(
+                    Arrays.<PasswordHashScheme>asList(
+                            new SaltedDigestPasswordHashScheme("(MD5)", "MD5", 1, 1),
+                            new SaltedDigestPasswordHashScheme("(MD5)", "MD5", 2, 1)));
+            fail("should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testMatchesExistingHashes() {
+        final List<PasswordHashScheme> schemes =
+                SaltedDigestPasswordHashScheme.createDefaultSchemes(1);
+
+        assertTrue(schemes.get(0).matches("admin", "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt"));
+        assertFalse(schemes.get(0).matches("admin", "(MD5)OP2Z89LDMIY5gHAwfoFPRSQWDl5Z16Vt"));
+        assertFalse(schemes.get(0).matches("admin", "(MD5)"));
+        assertFalse(schemes.get(0).matches("admin", "(MD5)\u00e9\u00e9\u00e9"));
+        assertTrue(
+                schemes.get(1)
+                        .matches(
+                                "wombat",
+                                "(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA=="));
+    }
+
+    @Test
+    public void testHashRoundTrip() {
+        final SaltedDigestPasswordHashScheme scheme =
+                new SaltedDigestPasswordHashScheme("(SHA512)", "SHA-512", 10, 1);
+
+        final String hash = scheme.hash("wombat");
+        assertTrue(hash.startsWith("(SHA512)"));
+        assertTrue(scheme.matches("wombat", hash));
+        assertFalse(scheme.matches("student", hash));
+    }
+
+    @Test
+    public void testCalibratorRecommendsMoreIterationsForLongerTargets() {
+        final PasswordHashCalibrator calibrator = new PasswordHashCalibrator();
+
+        final int shortTarget = calibrator.recommendIterations("SHA-256", 1000000L);
+        final int longTarget = calibrator.recommendIterations("SHA-256", 100000000L);
+        assertTrue(shortTarget >= 1);
+        assertTrue(longTarget > shortTarget);
+    }
+}
@@ -14,11 +14,41 @@
  */
 package org.apereo.portal.cas.authentication.handler.support;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
-
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.security.MessageDigestSpi;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.codec.binary.Base64;
+import org.apereo.portal.cas.monitor.AuthenticationMetrics;
+import org.apereo.portal.cas.monitor.AuthenticationMetrics.Outcome;
 import org.easymock.EasyMock;
+import org.jasig.cas.authentication.handler.BlockedCredentialsAuthenticationException;
 import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+import org.jasypt.digest.PooledByteDigester;
+import org.jasypt.digest.StandardByteDigester;
 import org.junit.Test;
 
 /**
@@ -143,4 +173,446 @@ public class PersonDirAuthenticationHandlerTest {
 
         assertFalse(auth);
     }
+
+    /**
+     * Concurrent logins must not be serialized on one digester:  each default scheme gets a pool
+     * of as many distinct digesters as asked for.
+     */
+    @Test
+    public void testDigesterPoolSize() throws Exception {
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setDigesterPoolSize(3);
+
+        assertEquals(2, authenticationHandler.getHashSchemes().size());
+        for (PasswordHashScheme scheme : authenticationHandler.getHashSchemes()) {
+            final SaltedDigestPasswordHashScheme saltedScheme =
+                    (SaltedDigestPasswordHashScheme) scheme;
+            assertEquals(3, saltedScheme.getPoolSize());
+
+            final Set<StandardByteDigester> digesters =
+                    Collections.newSetFromMap(new IdentityHashMap<StandardByteDigester, Boolean>());
+            Collections.addAll(digesters, getPooledDigesters(saltedScheme.getDigester()));
+            assertEquals(scheme.getPrefix(), 3, digesters.size());
+        }
+
+        assertEquals(
+                Outcome.SUCCESS,
+                authenticationHandler.checkPassword(
+                        "student",
+                        "wombat",
+                        "(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA=="));
+    }
+
+    /**
+     * Verifications scale with the threads:  each digest waits at a barrier until all the threads
+     * are digesting, which only happens if they verify in parallel.  One digester serializes them,
+     * and the barrier times out.  PersonDirAuthenticationHandlerBenchmark measures the throughput.
+     */
+    @Test
+    public void testConcurrentVerificationsOverlap() throws Exception {
+        Security.addProvider(new LatchedDigestProvider());
+        try {
+            assertTrue(verifiesConcurrently(4, 4));
+            assertFalse(verifiesConcurrently(1, 2));
+        } finally {
+            Security.removeProvider(LatchedDigestProvider.NAME);
+        }
+    }
+
+    @Test
+    public void testValidSHA256PasswordOnVerificationThread() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("student"))
+                .andReturn("(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA==");
+
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setUserPasswordDao(userPasswordDao);
+        authenticationHandler.setVerificationThreads(2);
+
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername("student");
+        credentials.setPassword("wombat");
+
+        EasyMock.replay(userPasswordDao);
+
+        try {
+            final boolean auth =
+                    authenticationHandler.authenticateUsernamePasswordInternal(credentials);
+            assertTrue(auth);
+        } finally {
+            authenticationHandler.destroy();
+        }
+
+        EasyMock.verify(userPasswordDao);
+    }
+
+    @Test
+    public void testBusyWhenVerificationQueueIsFull() throws Exception {
+        final CountDownLatch verificationStarted = new CountDownLatch(1);
+        final CountDownLatch releaseVerification = new CountDownLatch(1);
+
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler() {
+                    @Override
+                    protected Outcome checkPassword(
+                            String username, String cleartextPassword, String expectedFullHash) {
+                        verificationStarted.countDown();
+                        try {
+                            releaseVerification.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return Outcome.SUCCESS;
+                    }
+                };
+        authenticationHandler.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        return "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt";
+                    }
+                });
+        authenticationHandler.setVerificationThreads(1);
+        authenticationHandler.setVerificationQueueCapacity(1);
+
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername("admin");
+        credentials.setPassword("admin");
+
+        final Callable<Boolean> login =
+                new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return authenticationHandler.authenticateUsernamePasswordInternal(
+                                credentials);
+                    }
+                };
+
+        final ExecutorService requestThreads = Executors.newFixedThreadPool(2);
+        try {
+            // Occupies the only verification thread
+            final Future<Boolean> first = requestThreads.submit(login);
+            assertTrue(verificationStarted.await(10, TimeUnit.SECONDS));
+
+            // Occupies the only queue slot
+            final Future<Boolean> second = requestThreads.submit(login);
+            while (authenticationHandler.getVerificationQueueDepth() < 1) {
+                Thread.sleep(5);
+            }
+
+            try {
+                authenticationHandler.authenticateUsernamePasswordInternal(credentials);
+                fail("should have thrown AuthenticationBusyException");
+            } catch (AuthenticationBusyException e) {
+                //expected
+            }
+            assertEquals(1, authenticationHandler.getVerificationRejectedCount());
+
+            releaseVerification.countDown();
+            assertTrue(first.get(10, TimeUnit.SECONDS));
+            assertTrue(second.get(10, TimeUnit.SECONDS));
+        } finally {
+            requestThreads.shutdownNow();
+            authenticationHandler.destroy();
+        }
+    }
+
+    @Test
+    public void testBusyWhenVerificationTimesOut() throws Exception {
+        final CountDownLatch releaseVerification = new CountDownLatch(1);
+
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler() {
+                    @Override
+                    protected Outcome checkPassword(
+                            String username, String cleartextPassword, String expectedFullHash) {
+                        try {
+                            releaseVerification.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return Outcome.SUCCESS;
+                    }
+                };
+        authenticationHandler.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        return "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt";
+                    }
+                });
+        authenticationHandler.setVerificationThreads(1);
+        authenticationHandler.setVerificationTimeoutMillis(50);
+        final AuthenticationMetrics metrics = new AuthenticationMetrics();
+        authenticationHandler.setMetrics(metrics);
+
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername("admin");
+        credentials.setPassword("admin");
+
+        try {
+            authenticationHandler.authenticateUsernamePasswordInternal(credentials);
+            fail("should have thrown AuthenticationBusyException");
+        } catch (AuthenticationBusyException e) {
+            //expected
+        } finally {
+            releaseVerification.countDown();
+            authenticationHandler.destroy();
+        }
+
+        assertEquals(1, authenticationHandler.getVerificationTimeoutCount());
+        assertEquals(1, metrics.getBusyCount());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final Map<String, String> passwordHashes = new HashMap<String, String>();
+        passwordHashes.put("admin", "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt");
+        passwordHashes.put("student", "(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA==");
+        passwordHashes.put("legacy", "(CRYPT)abcdefgh");
+
+        final AuthenticationMetrics metrics = new AuthenticationMetrics();
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setMetrics(metrics);
+        authenticationHandler.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        return passwordHashes.get(userName);
+                    }
+                });
+
+        assertTrue(authenticate(authenticationHandler, "admin", "admin"));
+        assertTrue(authenticate(authenticationHandler, "student", "wombat"));
+        assertFalse(authenticate(authenticationHandler, "student", "koala"));
+        assertFalse(authenticate(authenticationHandler, "nobody", "wombat"));
+        assertFalse(authenticate(authenticationHandler, "legacy", "wombat"));
+
+        assertEquals(2, metrics.getSuccessCount());
+        assertEquals(1, metrics.getBadPasswordCount());
+        assertEquals(1, metrics.getUnknownUserCount());
+        assertEquals(1, metrics.getInvalidHashCount());
+        assertEquals(0, metrics.getErrorCount());
+        assertEquals(1, metrics.getVerificationLatency("(MD5)").getCount());
+        assertEquals(2, metrics.getVerificationLatency("(SHA256)").getCount());
+    }
+
+    @Test
+    public void testShedsLoginsAfterTooManyFailures() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final LoginFailureTracker failureTracker = new LoginFailureTracker();
+        failureTracker.setWidth(1024);
+        failureTracker.setMaxUsernameFailures(3);
+        failureTracker.setMaxSourceFailures(5);
+        final AuthenticationMetrics metrics = new AuthenticationMetrics();
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler() {
+                    @Override
+                    protected String getSourceAddress() {
+                        return "192.0.2.1";
+                    }
+                };
+        authenticationHandler.setFailureTracker(failureTracker);
+        authenticationHandler.setMetrics(metrics);
+        authenticationHandler.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        lookups.incrementAndGet();
+                        return "admin".equals(userName)
+                                ? "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt"
+                                : null;
+                    }
+                });
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(authenticate(authenticationHandler, "admin", "guess" + i));
+        }
+        try {
+            authenticate(authenticationHandler, "admin", "admin");
+            fail("should have thrown BlockedCredentialsAuthenticationException");
+        } catch (BlockedCredentialsAuthenticationException e) {
+            //expected
+        }
+        assertEquals(3, lookups.get());
+
+        // Other user names are still checked until the source address has failed too often
+        assertFalse(authenticate(authenticationHandler, "nobody", "guess"));
+        assertFalse(authenticate(authenticationHandler, "someone", "guess"));
+        try {
+            authenticate(authenticationHandler, "anyone", "guess");
+            fail("should have thrown BlockedCredentialsAuthenticationException");
+        } catch (BlockedCredentialsAuthenticationException e) {
+            //expected
+        }
+        assertEquals(5, lookups.get());
+
+        assertEquals(2, metrics.getShedCount());
+        assertEquals(3, metrics.getBadPasswordCount());
+        assertEquals(2, metrics.getUnknownUserCount());
+        assertEquals(1, failureTracker.getShedByUsernameCount());
+        assertEquals(1, failureTracker.getShedBySourceCount());
+    }
+
+    @Test
+    public void testLegitimateLoginIsNotLockedOut() throws Exception {
+        final LoginFailureTracker failureTracker = new LoginFailureTracker();
+        failureTracker.setMaxUsernameFailures(3);
+        final String[] source = {"203.0.113.66"};
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler() {
+                    @Override
+                    protected String getSourceAddress() {
+                        return source[0];
+                    }
+
+                    @Override
+                    protected Outcome checkPassword(
+                            String username, String cleartextPassword, String expectedFullHash) {
+                        return "secret".equals(cleartextPassword)
+                                ? Outcome.SUCCESS
+                                : Outcome.BAD_PASSWORD;
+                    }
+                };
+        authenticationHandler.setFailureTracker(failureTracker);
+        authenticationHandler.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        return "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt";
+                    }
+                });
+
+        // Someone else keeps failing logins with the user's name
+        for (int i = 0; i < 20; i++) {
+            try {
+                assertFalse(authenticate(authenticationHandler, "student", "guess" + i));
+            } catch (BlockedCredentialsAuthenticationException e) {
+                //expected once over the limit
+            }
+        }
+
+        // The user still logs in from their own address
+        source[0] = "192.0.2.1";
+        assertFalse(authenticate(authenticationHandler, "student", "typo1"));
+        assertFalse(authenticate(authenticationHandler, "student", "typo2"));
+        assertTrue(authenticate(authenticationHandler, "student", "secret"));
+
+        // and the success forgives their earlier typos
+        assertEquals(0, failureTracker.getUsernameFailures("student", "192.0.2.1"));
+        assertFalse(authenticate(authenticationHandler, "student", "typo3"));
+        assertFalse(authenticate(authenticationHandler, "student", "typo4"));
+        assertTrue(authenticate(authenticationHandler, "student", "secret"));
+    }
+
+    private static boolean authenticate(
+            PersonDirAuthenticationHandler authenticationHandler, String username, String password)
+            throws Exception {
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername(username);
+        credentials.setPassword(password);
+        return authenticationHandler.authenticateUsernamePasswordInternal(credentials);
+    }
+
+    /** @return true if all the threads were digesting at the same time */
+    private static boolean verifiesConcurrently(int poolSize, int threads) throws Exception {
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setHashSchemes(
+                Collections.singletonList(
+                        new SaltedDigestPasswordHashScheme(
+                                "(LATCHED)", LatchedDigestProvider.ALGORITHM, 1, poolSize)));
+        final String storedHash = "(LATCHED)" + Base64.encodeBase64String(new byte[24]);
+
+        LatchedDigest.barrier = new CyclicBarrier(threads);
+        LatchedDigest.overlapped = new AtomicBoolean(true);
+        final ExecutorService requestThreads = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Outcome>> results = new ArrayList<Future<Outcome>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(
+                        requestThreads.submit(
+                                new Callable<Outcome>() {
+                                    public Outcome call() {
+                                        return authenticationHandler.checkPassword(
+                                                "student", "wombat", storedHash);
+                                    }
+                                }));
+            }
+            for (Future<Outcome> result : results) {
+                assertEquals(Outcome.BAD_PASSWORD, result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            requestThreads.shutdownNow();
+        }
+        return LatchedDigest.overlapped.get();
+    }
+
+    /** Provides {@link LatchedDigest}. */
+    private static final class LatchedDigestProvider extends Provider {
+        static final String NAME = "LatchedDigestProvider";
+        static final String ALGORITHM = "LATCHED-TEST";
+
+        LatchedDigestProvider() {
+            super(NAME, 1.0, "Message digest that waits for the other threads to digest");
+            put("MessageDigest." + ALGORITHM, LatchedDigest.class.getName());
+        }
+    }
+
+    /** A message digest that waits at {@link #barrier} before it completes. */
+    public static final class LatchedDigest extends MessageDigestSpi {
+        static volatile CyclicBarrier barrier;
+        static volatile AtomicBoolean overlapped;
+
+        private int hash = 17;
+
+        @Override
+        protected void engineUpdate(byte input) {
+            this.hash = this.hash * 31 + input;
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            for (int i = offset; i < offset + len; i++) {
+                engineUpdate(input[i]);
+            }
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 16;
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            try {
+                barrier.await(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                overlapped.set(false);
+            } catch (BrokenBarrierException e) {
+                overlapped.set(false);
+            } catch (TimeoutException e) {
+                overlapped.set(false);
+            }
+            final byte[] digest = new byte[16];
+            digest[0] = (byte) this.hash;
+            engineReset();
+            return digest;
+        }
+
+        @Override
+        protected void engineReset() {
+            this.hash = 17;
+        }
+    }
+
+    /** The digesters of a jasypt pool, which does not expose them. */
+    private static StandardByteDigester[] getPooledDigesters(PooledByteDigester digester)
+            throws IllegalAccessException {
+        for (Field field : PooledByteDigester.class.getDeclaredFields()) {
+            if (field.getType() == StandardByteDigester[].class) {
+                field.setAccessible(true);
+                return (StandardByteDigester[]) field.get(digester);
+            }
+        }
+        throw new IllegalStateException("No digester pool in " + PooledByteDigester.class);
+    }
 }
@@ -0,0 +1,194 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+public class SnapshotUserPasswordDaoTest {
+    private JdbcTemplate jdbcTemplate;
+    private final List<String> fallbackLookups = new ArrayList<String>();
+    private long now = 1000000000000L;
+    private SnapshotUserPasswordDao snapshotDao;
+
+    @Before
+    public void setUp() {
+        final DataSource dataSource =
+                new SimpleDriverDataSource(
+                        new org.hsqldb.jdbcDriver(), "jdbc:hsqldb:mem:CasSnapshotTest", "sa", "");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.execute(
+                "CREATE TABLE UP_PERSON_DIR (USER_NAME VARCHAR(1000), ENCRPTD_PSWD VARCHAR(1000),"
+                        + " LST_PSWD_CGH_DT TIMESTAMP)");
+
+        this.snapshotDao =
+                new SnapshotUserPasswordDao() {
+                    @Override
+                    protected long currentTimeMillis() {
+                        return now;
+                    }
+                };
+        this.snapshotDao.setDataSource(dataSource);
+        this.snapshotDao.setUserPasswordDao(
+                new UserPasswordDao() {
+                    public String getPasswordHash(String userName) {
+                        fallbackLookups.add(userName);
+                        return "(MD5)fallback";
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        this.jdbcTemplate.execute("SHUTDOWN");
+    }
+
+    @Test
+    public void testFallsBackUntilLoaded() {
+        insert("admin", "(MD5)admin");
+
+        assertEquals("(MD5)fallback", this.snapshotDao.getPasswordHash("admin"));
+        assertEquals(1, this.snapshotDao.getFallbackCount());
+        assertEquals(0, this.snapshotDao.getSize());
+    }
+
+    @Test
+    public void testAnswersFromMemory() {
+        insert("admin", "(MD5)admin");
+        insert("student", "(SHA256)student");
+        insert("\u00e9l\u00e8ve", "unprefixed");
+        insert("nopassword", null);
+        this.snapshotDao.refresh();
+
+        assertEquals("(MD5)admin", this.snapshotDao.getPasswordHash("admin"));
+        assertEquals("(SHA256)student", this.snapshotDao.getPasswordHash("student"));
+        assertEquals("unprefixed", this.snapshotDao.getPasswordHash("\u00e9l\u00e8ve"));
+        assertNull(this.snapshotDao.getPasswordHash("nopassword"));
+        assertEquals(4, this.snapshotDao.getHitCount());
+        assertEquals(0, this.snapshotDao.getFallbackCount());
+        assertEquals(4, this.snapshotDao.getSize());
+
+        assertEquals("(MD5)fallback", this.snapshotDao.getPasswordHash("nobody"));
+        assertEquals("[nobody]", this.fallbackLookups.toString());
+    }
+
+    @Test
+    public void testDuplicateUserNamesFallBack() {
+        insert("foobar", "(MD5)pass1");
+        insert("foobar", "(MD5)pass2");
+        insert("admin", "(MD5)admin");
+        this.snapshotDao.refresh();
+
+        assertEquals("(MD5)fallback", this.snapshotDao.getPasswordHash("foobar"));
+        assertEquals("(MD5)admin", this.snapshotDao.getPasswordHash("admin"));
+        assertEquals("[foobar]", this.fallbackLookups.toString());
+    }
+
+    @Test
+    public void testRefreshReadsChangedPasswords() {
+        insert("admin", "(MD5)old");
+        insert("student", "(MD5)student");
+        this.snapshotDao.refresh();
+
+        this.now += 60000;
+        this.jdbcTemplate.update(
+                "UPDATE UP_PERSON_DIR SET ENCRPTD_PSWD = ?, LST_PSWD_CGH_DT = ?"
+                        + " WHERE USER_NAME = ?",
+                "(SHA256)new",
+                new Timestamp(this.now),
+                "admin");
+        insert("newuser", "(MD5)newuser");
+        this.jdbcTemplate.update("DELETE FROM UP_PERSON_DIR WHERE USER_NAME = 'student'");
+        this.snapshotDao.refresh();
+
+        assertEquals("(SHA256)new", this.snapshotDao.getPasswordHash("admin"));
+        assertEquals("(MD5)newuser", this.snapshotDao.getPasswordHash("newuser"));
+        // Deletions are only seen by a full reload
+        assertEquals("(MD5)student", this.snapshotDao.getPasswordHash("student"));
+        assertEquals(0, this.snapshotDao.getFallbackCount());
+
+        this.now += 3600000;
+        this.snapshotDao.refresh();
+
+        assertEquals("(SHA256)new", this.snapshotDao.getPasswordHash("admin"));
+        assertEquals("(MD5)fallback", this.snapshotDao.getPasswordHash("student"));
+        assertEquals(2, this.snapshotDao.getSize());
+    }
+
+    @Test
+    public void testManyUsers() {
+        for (int i = 0; i < 1000; i++) {
+            insert("user" + i, "(SHA256)hash" + i);
+        }
+        this.snapshotDao.refresh();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("(SHA256)hash" + i, this.snapshotDao.getPasswordHash("user" + i));
+        }
+        assertEquals(0, this.snapshotDao.getFallbackCount());
+        assertEquals(1000, this.snapshotDao.getSize());
+    }
+
+    @Test
+    public void testReloadAfterTableGrew() {
+        insert("admin", "(MD5)admin");
+        this.snapshotDao.setReloadIntervalSeconds(0);
+        this.snapshotDao.refresh();
+
+        for (int i = 0; i < 1000; i++) {
+            insert("user" + i, "(SHA256)a much longer hash than the first load had " + i);
+        }
+        this.snapshotDao.refresh();
+
+        assertEquals("(MD5)admin", this.snapshotDao.getPasswordHash("admin"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(
+                    "(SHA256)a much longer hash than the first load had " + i,
+                    this.snapshotDao.getPasswordHash("user" + i));
+        }
+        assertEquals(0, this.snapshotDao.getFallbackCount());
+        assertEquals(1001, this.snapshotDao.getSize());
+    }
+
+    @Test
+    public void testLoadsWithoutCountQuery() {
+        insert("admin", "(MD5)admin");
+        insert("student", "(SHA256)student");
+        this.snapshotDao.setCountQuery(null);
+        this.snapshotDao.refresh();
+
+        assertEquals("(MD5)admin", this.snapshotDao.getPasswordHash("admin"));
+        assertEquals("(SHA256)student", this.snapshotDao.getPasswordHash("student"));
+        assertEquals(0, this.snapshotDao.getFallbackCount());
+    }
+
+    private void insert(String userName, String passwordHash) {
+        this.jdbcTemplate.update(
+                "INSERT INTO UP_PERSON_DIR VALUES (?, ?, ?)",
+                userName,
+                passwordHash,
+                new Timestamp(this.now));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.clearpass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ */
+public class OffHeapCredentialsMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final OffHeapCredentialsMap credentials = new OffHeapCredentialsMap();
+        credentials.setMaxEntries(10);
+
+        assertNull(credentials.put("student", "wombat"));
+        assertNull(credentials.put("TGT-1-abc", "student"));
+        assertEquals("wombat", credentials.get("student"));
+        assertEquals("student", credentials.get("TGT-1-abc"));
+        assertTrue(credentials.containsKey("student"));
+        assertEquals(2, credentials.size());
+
+        assertEquals("wombat", credentials.put("student", "p\u00e4ssw\u00f6rd"));
+        assertEquals("p\u00e4ssw\u00f6rd", credentials.get("student"));
+
+        assertEquals("p\u00e4ssw\u00f6rd", credentials.remove("student"));
+        assertNull(credentials.get("student"));
+        assertFalse(credentials.containsKey("student"));
+        assertEquals(1, credentials.size());
+
+        credentials.clear();
+        assertTrue(credentials.isEmpty());
+        credentials.destroy();
+    }
+
+    @Test
+    public void testHardCapEvictsOldest() {
+        final OffHeapCredentialsMap credentials = new OffHeapCredentialsMap();
+        credentials.setMaxEntries(3);
+        credentials.setSlotSize(64);
+        assertEquals(192, credentials.getCapacityBytes());
+
+        credentials.put("a", "1");
+        credentials.put("b", "2");
+        credentials.put("c", "3");
+        credentials.put("d", "4");
+
+        assertEquals(3, credentials.size());
+        assertNull(credentials.get("a"));
+        assertEquals("4", credentials.get("d"));
+        assertEquals(1, credentials.getEvictionCount());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final OffHeapCredentialsMap credentials = new OffHeapCredentialsMap();
+        credentials.setMaxEntries(2);
+        credentials.setTimeToLiveSeconds(0);
+
+        credentials.put("a", "1");
+        credentials.put("b", "2");
+        assertNull(credentials.get("a"));
+
+        // expired entries are purged instead of evicting a live one
+        credentials.setTimeToLiveSeconds(60);
+        credentials.put("c", "3");
+        credentials.put("d", "4");
+        assertEquals("3", credentials.get("c"));
+        assertEquals("4", credentials.get("d"));
+        assertEquals(0, credentials.getEvictionCount());
+    }
+
+    @Test
+    public void testValueTooLarge() {
+        final OffHeapCredentialsMap credentials = new OffHeapCredentialsMap();
+        credentials.setSlotSize(40);
+
+        credentials.put("a", "12345678");
+        assertNull(credentials.put("b", "123456789"));
+        assertFalse(credentials.containsKey("b"));
+
+        // A value that no longer fits replaces the cached one by nothing
+        assertEquals("12345678", credentials.put("a", "123456789"));
+        assertNull(credentials.get("a"));
+        assertEquals(0, credentials.size());
+    }
+
+    @Test
+    public void testCapacityLimit() {
+        final OffHeapCredentialsMap credentials = new OffHeapCredentialsMap();
+        credentials.setMaxEntries(8000000);
+        try {
+            credentials.setSlotSize(512);
+            fail("should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        credentials.setSlotSize(256);
+        assertEquals(2048000000L, credentials.getCapacityBytes());
+        try {
+            credentials.setMaxEntries(9000000);
+            fail("should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testEntrySet() {
+        final OffHeapCredentialsMap credentials = new OffHeapCredentialsMap();
+        credentials.put("student", "wombat");
+
+        assertEquals(1, credentials.entrySet().size());
+        assertEquals("wombat", credentials.entrySet().iterator().next().getValue());
+    }
+}
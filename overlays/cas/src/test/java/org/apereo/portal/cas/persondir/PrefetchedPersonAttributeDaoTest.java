@@ -0,0 +1,153 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.persondir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.apereo.portal.cas.authentication.handler.support.PortalPersonDirAttributeUserPasswordDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+public class PrefetchedPersonAttributeDaoTest {
+    private JdbcTemplate jdbcTemplate;
+    private PortalPersonDirAttributeUserPasswordDao userPasswordDao;
+    private PrefetchedPersonAttributeDao attributeDao;
+
+    @Before
+    public void setUp() {
+        final DataSource dataSource =
+                new SimpleDriverDataSource(
+                        new org.hsqldb.jdbcDriver(), "jdbc:hsqldb:mem:CasAttributeTest", "sa", "");
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.execute(
+                "CREATE TABLE UP_PERSON_DIR (USER_ID INTEGER, USER_NAME VARCHAR(100),"
+                        + " ENCRPTD_PSWD VARCHAR(256))");
+        this.jdbcTemplate.execute(
+                "CREATE TABLE UP_PERSON_ATTR (ID INTEGER, USER_DIR_ID INTEGER,"
+                        + " ATTR_NAME VARCHAR(255))");
+        this.jdbcTemplate.execute(
+                "CREATE TABLE UP_PERSON_ATTR_VALUES (ATTR_ID INTEGER, ATTR_VALUE VARCHAR(2000),"
+                        + " VALUE_ORDER INTEGER)");
+
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_DIR VALUES (1, 'student', '(MD5)pass')");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_ATTR VALUES (10, 1, 'mail')");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_ATTR VALUES (11, 1, 'affiliation')");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_ATTR VALUES (12, 1, 'phone')");
+        this.jdbcTemplate.update(
+                "INSERT INTO UP_PERSON_ATTR_VALUES VALUES (10, 'student@example.edu', 0)");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_ATTR_VALUES VALUES (11, 'member', 1)");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_ATTR_VALUES VALUES (11, 'student', 0)");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_ATTR_VALUES VALUES (12, '555-0100', 0)");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_DIR VALUES (2, 'noattrs', '(MD5)other')");
+
+        final Map<String, String> attributeNames = new LinkedHashMap<String, String>();
+        attributeNames.put("mail", "mail");
+        attributeNames.put("affiliation", "eduPersonAffiliation");
+
+        this.userPasswordDao = new PortalPersonDirAttributeUserPasswordDao();
+        this.userPasswordDao.setDataSource(dataSource);
+        this.userPasswordDao.setAttributeNames(attributeNames);
+
+        this.attributeDao = new PrefetchedPersonAttributeDao();
+        this.attributeDao.setUserPasswordDao(this.userPasswordDao);
+    }
+
+    @After
+    public void tearDown() {
+        this.jdbcTemplate.execute("SHUTDOWN");
+    }
+
+    @Test
+    public void testAttributesReadWithPasswordHash() {
+        assertEquals("(MD5)pass", this.userPasswordDao.getPasswordHash("student"));
+
+        final IPersonAttributes person = this.attributeDao.getPerson("student");
+        assertEquals("student", person.getName());
+        assertEquals(
+                Collections.<Object>singletonList("student@example.edu"),
+                person.getAttributeValues("mail"));
+        assertEquals(
+                Arrays.<Object>asList("student", "member"),
+                person.getAttributeValues("eduPersonAffiliation"));
+        assertNull(person.getAttributeValues("phone"));
+        assertEquals(1, this.userPasswordDao.getPrefetchHitCount());
+        assertEquals(0, this.userPasswordDao.getAttributeQueryCount());
+
+        // Only handed over once, later lookups query again
+        this.attributeDao.getPerson("student");
+        assertEquals(1, this.userPasswordDao.getAttributeQueryCount());
+    }
+
+    @Test
+    public void testAttributesQueriedWithoutLogin() {
+        final IPersonAttributes person = this.attributeDao.getPerson("student");
+        assertEquals(
+                Collections.<Object>singletonList("student@example.edu"),
+                person.getAttributeValues("mail"));
+        assertEquals(0, this.userPasswordDao.getPrefetchHitCount());
+        assertEquals(1, this.userPasswordDao.getAttributeQueryCount());
+    }
+
+    @Test
+    public void testUserWithoutAttributes() {
+        assertEquals("(MD5)other", this.userPasswordDao.getPasswordHash("noattrs"));
+        assertEquals(0, this.attributeDao.getPerson("noattrs").getAttributes().size());
+    }
+
+    @Test
+    public void testUnknownUser() {
+        assertNull(this.userPasswordDao.getPasswordHash("nobody"));
+        assertNull(this.attributeDao.getPerson("nobody"));
+        assertEquals(
+                Collections.emptySet(),
+                this.attributeDao.getPeople(
+                        Collections.<String, Object>singletonMap("username", "nobody")));
+    }
+
+    @Test
+    public void testDuplicateUser() {
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_DIR VALUES (3, 'student', '(MD5)dup')");
+
+        try {
+            this.userPasswordDao.getPasswordHash("student");
+            fail("should have thrown IncorrectResultSizeDataAccessException");
+        } catch (IncorrectResultSizeDataAccessException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPrefetchExpires() {
+        this.userPasswordDao.setPrefetchTimeToLiveSeconds(0);
+
+        this.userPasswordDao.getPasswordHash("student");
+        this.attributeDao.getPerson("student");
+
+        assertEquals(0, this.userPasswordDao.getPrefetchHitCount());
+        assertEquals(1, this.userPasswordDao.getAttributeQueryCount());
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.easymock.EasyMock;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.services.RegexRegisteredService;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.ReloadableServicesManager;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class IndexedServicesManagerTest {
+    private StubServicesManager servicesManager;
+    private CountingRegexRegisteredService portal;
+    private CountingRegexRegisteredService portalAdmin;
+    private CountingRegexRegisteredService mail;
+    private CountingRegexRegisteredService anyHttps;
+
+    @Before
+    public void setUp() {
+        this.portal = createService(1, "^https://portal\\.example\\.edu/.*", 10);
+        this.portalAdmin = createService(2, "^https://portal\\.example\\.edu/admin/.*", 5);
+        this.mail = createService(3, "^https://mail\\.example\\.(edu|com)/.*", 20);
+        this.anyHttps = createService(4, "^https://.*", 30);
+
+        this.servicesManager = new StubServicesManager();
+        this.servicesManager.services.add(this.portal);
+        this.servicesManager.services.add(this.portalAdmin);
+        this.servicesManager.services.add(this.mail);
+        this.servicesManager.services.add(this.anyHttps);
+    }
+
+    @Test
+    public void testFindServiceByEvaluationOrder() {
+        final IndexedServicesManager indexedServicesManager =
+                new IndexedServicesManager(this.servicesManager);
+
+        assertSame(this.portal, find(indexedServicesManager, "https://portal.example.edu/uPortal"));
+        assertSame(
+                this.portalAdmin,
+                find(indexedServicesManager, "https://portal.example.edu/admin/index"));
+        assertNull(find(indexedServicesManager, "HTTPS://PORTAL.EXAMPLE.EDU/uPortal"));
+        assertSame(this.mail, find(indexedServicesManager, "https://mail.example.com/inbox"));
+        assertSame(this.anyHttps, find(indexedServicesManager, "https://other.example.edu/"));
+        assertNull(find(indexedServicesManager, "http://portal.example.edu/uPortal"));
+        assertTrue(
+                indexedServicesManager.matchesExistingService(
+                        createUrl("https://portal.example.edu/uPortal")));
+    }
+
+    @Test
+    public void testLowerEvaluationOrderOfUnindexedServiceWins() {
+        this.anyHttps.setEvaluationOrder(0);
+        final IndexedServicesManager indexedServicesManager =
+                new IndexedServicesManager(this.servicesManager);
+
+        assertSame(
+                this.anyHttps, find(indexedServicesManager, "https://portal.example.edu/uPortal"));
+    }
+
+    @Test
+    public void testOnlyCandidatesAreMatched() {
+        final IndexedServicesManager indexedServicesManager =
+                new IndexedServicesManager(this.servicesManager);
+
+        assertSame(this.portal, find(indexedServicesManager, "https://portal.example.edu/uPortal"));
+
+        assertEquals(0, this.portalAdmin.matchCount.get());
+        assertEquals(1, this.portal.matchCount.get());
+        assertEquals(0, this.mail.matchCount.get());
+        assertEquals(0, this.anyHttps.matchCount.get());
+    }
+
+    @Test
+    public void testRecentServicesAreCached() {
+        final IndexedServicesManager indexedServicesManager =
+                new IndexedServicesManager(this.servicesManager);
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(
+                    this.portal,
+                    find(indexedServicesManager, "https://portal.example.edu/uPortal"));
+            assertSame(this.anyHttps, find(indexedServicesManager, "https://other.example.edu/"));
+            assertNull(find(indexedServicesManager, "imaps://mail.example.edu"));
+        }
+
+        assertEquals(1, this.portal.matchCount.get());
+        assertEquals(1, this.anyHttps.matchCount.get());
+    }
+
+    @Test
+    public void testReload() {
+        final IndexedServicesManager indexedServicesManager =
+                new IndexedServicesManager(this.servicesManager);
+        assertSame(this.mail, find(indexedServicesManager, "https://mail.example.edu/inbox"));
+
+        final CountingRegexRegisteredService newMail =
+                createService(5, "^https://mail\\.example\\.edu/.*", 15);
+        this.servicesManager.services.add(newMail);
+        indexedServicesManager.reload();
+
+        assertEquals(1, this.servicesManager.reloadCount);
+        assertSame(newMail, find(indexedServicesManager, "https://mail.example.edu/inbox"));
+
+        indexedServicesManager.delete(5);
+        assertSame(this.mail, find(indexedServicesManager, "https://mail.example.edu/inbox"));
+    }
+
+    @Test
+    public void testEmptyRegistryDelegates() {
+        this.servicesManager.services.clear();
+        final IndexedServicesManager indexedServicesManager =
+                new IndexedServicesManager(this.servicesManager);
+
+        assertNull(find(indexedServicesManager, "https://portal.example.edu/uPortal"));
+        assertEquals(1, this.servicesManager.findCount);
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals(
+                "https://portal.example.edu/",
+                IndexedServicesManager.getLiteralPrefix("^https://portal\\.example\\.edu/.*"));
+        assertEquals(
+                "http",
+                IndexedServicesManager.getLiteralPrefix("^https?://portal\\.example\\.edu"));
+        assertEquals(
+                "https://portal.example.",
+                IndexedServicesManager.getLiteralPrefix("https://portal\\.example\\.(edu|com)/.*"));
+        assertNull(IndexedServicesManager.getLiteralPrefix("^(https?|imaps?)://.*"));
+        assertNull(IndexedServicesManager.getLiteralPrefix("^https://a/.*|^https://b/.*"));
+        assertNull(IndexedServicesManager.getLiteralPrefix("(?i)https://portal/.*"));
+        assertNull(IndexedServicesManager.getLiteralPrefix("\\Qhttps://portal\\E.*"));
+    }
+
+    @Test
+    public void testSchemeAndAuthority() {
+        assertEquals(
+                "https://portal.example.edu:8443",
+                IndexedServicesManager.getSchemeAndAuthority(
+                        "HTTPS://Portal.Example.edu:8443/uPortal", true));
+        assertEquals(
+                "https://portal.example.edu",
+                IndexedServicesManager.getSchemeAndAuthority("https://portal.example.edu", false));
+        assertNull(
+                IndexedServicesManager.getSchemeAndAuthority("https://portal.example.", true));
+        assertNull(IndexedServicesManager.getSchemeAndAuthority("portal.example.edu", false));
+    }
+
+    private static RegisteredService find(
+            IndexedServicesManager indexedServicesManager, String url) {
+        return indexedServicesManager.findServiceBy(createUrl(url));
+    }
+
+    private static Service createUrl(String url) {
+        final Service service = EasyMock.createMock(Service.class);
+        EasyMock.expect(service.getId()).andReturn(url).anyTimes();
+        EasyMock.replay(service);
+        return service;
+    }
+
+    private static CountingRegexRegisteredService createService(
+            long id, String serviceId, int evaluationOrder) {
+        final CountingRegexRegisteredService service = new CountingRegexRegisteredService();
+        service.setId(id);
+        service.setName("Service " + id);
+        service.setServiceId(serviceId);
+        service.setEvaluationOrder(evaluationOrder);
+        return service;
+    }
+
+    private static class CountingRegexRegisteredService extends RegexRegisteredService {
+        private static final long serialVersionUID = 1L;
+
+        private final AtomicInteger matchCount = new AtomicInteger();
+
+        @Override
+        public boolean matches(Service service) {
+            this.matchCount.incrementAndGet();
+            return super.matches(service);
+        }
+    }
+
+    /** Services manager that does a linear scan, like DefaultServicesManagerImpl */
+    private static class StubServicesManager implements ReloadableServicesManager {
+        private final List<RegisteredService> services = new ArrayList<RegisteredService>();
+        private int reloadCount;
+        private int findCount;
+
+        public void save(RegisteredService registeredService) {
+            this.services.add(registeredService);
+        }
+
+        public RegisteredService delete(long id) {
+            final RegisteredService service = findServiceBy(id);
+            this.services.remove(service);
+            return service;
+        }
+
+        public RegisteredService findServiceBy(Service service) {
+            this.findCount++;
+            for (RegisteredService registeredService : getAllServices()) {
+                if (registeredService.matches(service)) {
+                    return registeredService;
+                }
+            }
+            return null;
+        }
+
+        public RegisteredService findServiceBy(long id) {
+            for (RegisteredService registeredService : this.services) {
+                if (registeredService.getId() == id) {
+                    return registeredService;
+                }
+            }
+            return null;
+        }
+
+        public Collection<RegisteredService> getAllServices() {
+            return new TreeSet<RegisteredService>(this.services);
+        }
+
+        public boolean matchesExistingService(Service service) {
+            return findServiceBy(service) != null;
+        }
+
+        public void reload() {
+            this.reloadCount++;
+        }
+    }
+}
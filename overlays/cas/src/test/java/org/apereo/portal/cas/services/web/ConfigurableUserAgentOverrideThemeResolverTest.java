@@ -0,0 +1,95 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class ConfigurableUserAgentOverrideThemeResolverTest {
+    private ConfigurableUserAgentOverrideThemeResolver themeResolver;
+
+    @Before
+    public void setUp() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put(".*iPhone.*", "cas-mobile");
+        mappings.put(".*Android.*", "cas-mobile");
+
+        this.themeResolver = new ConfigurableUserAgentOverrideThemeResolver();
+        this.themeResolver.setDefaultThemeName("cas");
+        this.themeResolver.setOverrides(
+                Collections.<String, Map<String, String>>singletonMap("cas", mappings));
+    }
+
+    @Test
+    public void testOverride() {
+        assertEquals("cas-mobile", resolve("Mozilla/5.0 (iPhone; CPU iPhone OS 16_5)"));
+        assertEquals("cas-mobile", resolve("Mozilla/5.0 (Linux; Android 13)"));
+        assertEquals("cas", resolve("Mozilla/5.0 (Windows NT 10.0; Win64; x64)"));
+    }
+
+    @Test
+    public void testRepeatedUserAgent() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals("cas-mobile", resolve("Mozilla/5.0 (iPhone; CPU iPhone OS 16_5)"));
+            assertEquals("cas", resolve("Mozilla/5.0 (Windows NT 10.0; Win64; x64)"));
+        }
+    }
+
+    @Test
+    public void testCacheEviction() {
+        this.themeResolver.setUserAgentCacheSize(1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("cas-mobile", resolve("Mozilla/5.0 (iPhone; CPU iPhone OS 16_5)"));
+            assertEquals("cas", resolve("Mozilla/5.0 (Windows NT 10.0; Win64; x64)"));
+        }
+    }
+
+    @Test
+    public void testMissingUserAgent() {
+        assertEquals("cas", resolve(null));
+    }
+
+    @Test
+    public void testNoOverridesConfigured() {
+        final ConfigurableUserAgentOverrideThemeResolver themeResolver =
+                new ConfigurableUserAgentOverrideThemeResolver();
+        themeResolver.setDefaultThemeName("cas");
+
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(request);
+
+        assertEquals("cas", themeResolver.resolveThemeName(request));
+    }
+
+    private String resolve(String userAgent) {
+        final HttpServletRequest request = EasyMock.createMock(HttpServletRequest.class);
+        EasyMock.expect(request.getHeader("User-Agent")).andReturn(userAgent);
+        EasyMock.replay(request);
+
+        final String themeName = this.themeResolver.resolveThemeName(request);
+
+        EasyMock.verify(request);
+        return themeName;
+    }
+}
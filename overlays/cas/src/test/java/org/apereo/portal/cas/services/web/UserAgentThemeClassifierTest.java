@@ -0,0 +1,105 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ */
+public class UserAgentThemeClassifierTest {
+    private static final String IPHONE =
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 16_5 like Mac OS X) Mobile/15E148";
+    private static final String ANDROID =
+            "Mozilla/5.0 (Linux; Android 13; Pixel 7) AppleWebKit/537.36 Mobile Safari/537.36";
+    private static final String DESKTOP =
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) Chrome/115.0";
+
+    @Test
+    public void testFirstMatchingExpressionWins() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put(".*iPhone.*", "iphone");
+        mappings.put(".*(Android|iPhone).*", "mobile");
+        mappings.put(".*Mozilla.*", "desktop");
+
+        final UserAgentThemeClassifier classifier = new UserAgentThemeClassifier(mappings);
+
+        assertEquals("iphone", classifier.classify(IPHONE));
+        assertEquals("mobile", classifier.classify(ANDROID));
+        assertEquals("desktop", classifier.classify(DESKTOP));
+        assertNull(classifier.classify("curl/8.0"));
+        assertNull(classifier.classify(null));
+    }
+
+    @Test
+    public void testCapturingGroupsDoNotShiftMatches() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put("(.*)(Windows)(.*)", "windows");
+        mappings.put("((.*)Android(.*))", "android");
+        mappings.put(".*iPhone.*", "iphone");
+
+        final UserAgentThemeClassifier classifier = new UserAgentThemeClassifier(mappings);
+
+        assertEquals("windows", classifier.classify(DESKTOP));
+        assertEquals("android", classifier.classify(ANDROID));
+        assertEquals("iphone", classifier.classify(IPHONE));
+    }
+
+    @Test
+    public void testExpressionsMustMatchWholeUserAgent() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put("iPhone", "iphone");
+        mappings.put("curl/.*|wget/.*", "text");
+
+        final UserAgentThemeClassifier classifier = new UserAgentThemeClassifier(mappings);
+
+        assertNull(classifier.classify(IPHONE));
+        assertEquals("iphone", classifier.classify("iPhone"));
+        assertEquals("text", classifier.classify("wget/1.21"));
+    }
+
+    @Test
+    public void testBackReferencesKeepConfiguredOrder() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put("(\\w+)/\\1", "repeated");
+        mappings.put("(\\w+)/.*", "agent");
+        mappings.put("(?<name>\\w+)-\\k<name>", "named");
+
+        final UserAgentThemeClassifier classifier = new UserAgentThemeClassifier(mappings);
+
+        assertEquals("repeated", classifier.classify("abc/abc"));
+        assertEquals("agent", classifier.classify("abc/def"));
+        assertEquals("named", classifier.classify("abc-abc"));
+        assertNull(classifier.classify("abc-def"));
+    }
+
+    @Test
+    public void testInlineFlagsDoNotLeakBetweenExpressions() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put("(?i).*iphone.*", "iphone");
+        mappings.put(".*android.*", "android");
+        mappings.put("(?x) .*ipad.* # tablets", "ipad");
+
+        final UserAgentThemeClassifier classifier = new UserAgentThemeClassifier(mappings);
+
+        assertEquals("iphone", classifier.classify(IPHONE));
+        assertNull(classifier.classify(ANDROID));
+        assertEquals("ipad", classifier.classify("ipad"));
+    }
+}
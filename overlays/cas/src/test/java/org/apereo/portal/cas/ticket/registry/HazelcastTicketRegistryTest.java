@@ -0,0 +1,257 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.easymock.EasyMock;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs a cluster of {@link #NODES} registries in this JVM, talking to each other over loopback on
+ * free ports. HazelcastTicketRegistryBenchmark measures the validation throughput across nodes.
+ */
+public class HazelcastTicketRegistryTest {
+    private static final int NODES = 3;
+    private static final long REPLICATION_TIMEOUT_MILLIS = 10000;
+
+    private static final Service SERVICE = new SimpleWebApplicationServiceImpl("https://portal/");
+
+    private static final List<HazelcastTicketRegistry> nodes =
+            new ArrayList<HazelcastTicketRegistry>();
+
+    @BeforeClass
+    public static void startCluster() throws IOException {
+        // A cluster name of its own, so that the test never joins another cluster
+        final String clusterName = "cas-test-" + System.nanoTime();
+        final int[] ports = freePorts(NODES);
+        final StringBuilder members = new StringBuilder();
+        for (int i = 0; i < NODES; i++) {
+            members.append(i == 0 ? "" : ",").append("127.0.0.1:").append(ports[i]);
+        }
+        for (int i = 0; i < NODES; i++) {
+            final HazelcastTicketRegistry node = new HazelcastTicketRegistry();
+            node.setClusterName(clusterName);
+            node.setInstanceName(clusterName + "-" + i);
+            // No network interface:  the members are all loopback, so that is what is bound
+            node.setMembers(members.toString());
+            node.setPort(ports[i]);
+            node.setPortAutoIncrement(false);
+            node.afterPropertiesSet();
+            nodes.add(node);
+        }
+        for (HazelcastTicketRegistry node : nodes) {
+            assertEquals(NODES, node.getMemberCount());
+        }
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        for (HazelcastTicketRegistry node : nodes) {
+            node.destroy();
+        }
+        nodes.clear();
+    }
+
+    @Test
+    public void testTicketGrantingTicketsReplicate() throws Exception {
+        final TicketGrantingTicket tgt = createTicketGrantingTicket("TGT-replicated");
+        nodes.get(0).addTicket(tgt);
+
+        for (HazelcastTicketRegistry node : nodes) {
+            final Ticket replicated = awaitTicket(node, "TGT-replicated");
+            assertEquals(
+                    "student",
+                    ((TicketGrantingTicket) replicated).getAuthentication().getPrincipal().getId());
+        }
+
+        assertTrue(nodes.get(1).deleteTicket("TGT-replicated"));
+        for (HazelcastTicketRegistry node : nodes) {
+            awaitNoTicket(node, "TGT-replicated");
+        }
+    }
+
+    @Test
+    public void testServiceTicketValidatedOnAnotherNode() throws Exception {
+        final TicketGrantingTicket tgt = createTicketGrantingTicket("TGT-validated");
+        nodes.get(0).addTicket(tgt);
+        final ServiceTicket st = grantServiceTicket(tgt, "ST-validated");
+        nodes.get(0).addTicket(st);
+
+        // Service tickets are not replicated, so they can be read from any node right away
+        assertTrue(validate(nodes.get(2), "ST-validated"));
+        assertNull(nodes.get(0).getTicket("ST-validated"));
+        assertNull(nodes.get(1).getTicket("ST-validated"));
+        assertFalse(validate(nodes.get(1), "ST-validated"));
+    }
+
+    @Test
+    public void testEvictedTicketExpiredByOneNodeAndDeletedOnAll() throws Exception {
+        nodes.get(0).setTicketGrantingTicketTimeToKillInSeconds(1);
+        try {
+            nodes.get(0).addTicket(createTicketGrantingTicket("TGT-evicted"));
+        } finally {
+            nodes.get(0).setTicketGrantingTicketTimeToKillInSeconds(7200);
+        }
+
+        int toExpire = 0;
+        for (HazelcastTicketRegistry node : nodes) {
+            final List<HazelcastTicketRegistry.EvictedTicket> tickets = awaitEviction(node);
+            assertEquals(1, tickets.size());
+            assertEquals("TGT-evicted", tickets.get(0).getTicketId());
+            if (tickets.get(0).getTicketToExpire() != null) {
+                toExpire++;
+            }
+        }
+        assertEquals(1, toExpire);
+        for (HazelcastTicketRegistry node : nodes) {
+            assertNull(node.getTicket("TGT-evicted"));
+        }
+    }
+
+    @Test
+    public void testCleanerExpiresOnlyTheTicketsItOwns() {
+        final TicketGrantingTicket owned = createTicketGrantingTicket("TGT-owned");
+        final TicketGrantingTicket other = createTicketGrantingTicket("TGT-other");
+        final HazelcastTicketRegistry registry =
+                new HazelcastTicketRegistry() {
+                    @Override
+                    List<EvictedTicket> pollEvictedTickets() {
+                        return Arrays.asList(
+                                new EvictedTicket("TGT-owned", owned),
+                                new EvictedTicket("TGT-other", null));
+                    }
+                };
+        final TicketRegistry decorator = EasyMock.createMock(TicketRegistry.class);
+        EasyMock.expect(decorator.deleteTicket("TGT-owned")).andReturn(true);
+        EasyMock.expect(decorator.deleteTicket("TGT-other")).andReturn(true);
+        EasyMock.replay(decorator);
+
+        final HazelcastTicketRegistryCleaner cleaner = new HazelcastTicketRegistryCleaner();
+        cleaner.setHazelcastTicketRegistry(registry);
+        cleaner.setTicketRegistry(decorator);
+        cleaner.clean();
+
+        EasyMock.verify(decorator);
+        assertTrue(owned.isExpired());
+        assertFalse(other.isExpired());
+    }
+
+    /** @return ports that were free a moment ago, all different */
+    private static int[] freePorts(int count) throws IOException {
+        final ServerSocket[] sockets = new ServerSocket[count];
+        final int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    /** Validates a service ticket the way CentralAuthenticationServiceImpl does. */
+    private static boolean validate(HazelcastTicketRegistry node, String ticketId) {
+        final ServiceTicket st = (ServiceTicket) node.getTicket(ticketId, ServiceTicket.class);
+        if (st == null) {
+            return false;
+        }
+        try {
+            synchronized (st) {
+                if (st.isExpired() || !st.isValidFor(SERVICE)) {
+                    return false;
+                }
+            }
+            return "student"
+                    .equals(st.getGrantingTicket().getAuthentication().getPrincipal().getId());
+        } finally {
+            if (st.isExpired()) {
+                node.deleteTicket(ticketId);
+            }
+        }
+    }
+
+    private static TicketGrantingTicket createTicketGrantingTicket(String id) {
+        return new TicketGrantingTicketImpl(
+                id,
+                new ImmutableAuthentication(new SimplePrincipal("student")),
+                new NeverExpiresExpirationPolicy());
+    }
+
+    private static ServiceTicket grantServiceTicket(TicketGrantingTicket tgt, String id) {
+        return tgt.grantServiceTicket(
+                id, SERVICE, new MultiTimeUseOrTimeoutExpirationPolicy(1, 10000), false);
+    }
+
+    private static Ticket awaitTicket(HazelcastTicketRegistry node, String ticketId)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + REPLICATION_TIMEOUT_MILLIS;
+        Ticket ticket;
+        while ((ticket = node.getTicket(ticketId)) == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(ticketId + " was not replicated", ticket);
+        return ticket;
+    }
+
+    private static List<HazelcastTicketRegistry.EvictedTicket> awaitEviction(
+            HazelcastTicketRegistry node) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 2 * REPLICATION_TIMEOUT_MILLIS;
+        List<HazelcastTicketRegistry.EvictedTicket> tickets = node.pollEvictedTickets();
+        while (tickets.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            tickets = node.pollEvictedTickets();
+        }
+        return tickets;
+    }
+
+    private static void awaitNoTicket(HazelcastTicketRegistry node, String ticketId)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + REPLICATION_TIMEOUT_MILLIS;
+        while (node.getTicket(ticketId) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(ticketId + " was not removed everywhere", node.getTicket(ticketId));
+    }
+}
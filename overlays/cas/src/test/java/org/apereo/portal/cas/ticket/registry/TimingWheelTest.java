@@ -0,0 +1,122 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apereo.portal.cas.ticket.registry.TimingWheel.Node;
+import org.junit.Test;
+
+/**
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testNodesComeDueAtTheirDeadline() {
+        final Random random = new Random(42);
+        final long start = 1700000000L;
+        final TimingWheel<Long> wheel = new TimingWheel<Long>();
+        wheel.skipIfEmpty(start);
+
+        final int count = 20000;
+        for (int i = 0; i < count; i++) {
+            // spread over all levels of the wheel
+            final long delay = 1 + (long) Math.pow(2, random.nextDouble() * 22);
+            final long deadline = start + delay;
+            wheel.schedule(new Node<Long>(deadline), deadline);
+        }
+        assertEquals(count, wheel.size());
+
+        final List<Node<Long>> due = new ArrayList<Node<Long>>();
+        int seen = 0;
+        long tick = start;
+        while (wheel.size() > 0) {
+            // advance by uneven steps
+            final long target = tick + 1 + random.nextInt(5000);
+            for (long t = tick + 1; t <= target; t++) {
+                due.clear();
+                wheel.advance(t, due);
+                for (Node<Long> node : due) {
+                    assertEquals(t, node.value.longValue());
+                    assertFalse(node.isScheduled());
+                }
+                seen += due.size();
+            }
+            tick = target;
+        }
+
+        assertEquals(count, seen);
+    }
+
+    @Test
+    public void testAdvanceSkipsAhead() {
+        final TimingWheel<String> wheel = new TimingWheel<String>();
+        final Node<String> node = new Node<String>("a");
+        wheel.schedule(node, 100000);
+
+        final List<Node<String>> due = new ArrayList<Node<String>>();
+        wheel.advance(99999, due);
+        assertTrue(due.isEmpty());
+
+        wheel.advance(5000000, due);
+        assertEquals(1, due.size());
+        assertEquals(5000000, wheel.getCurrentTick());
+    }
+
+    @Test
+    public void testPastDeadlineComesDueOnNextTick() {
+        final TimingWheel<String> wheel = new TimingWheel<String>();
+        wheel.skipIfEmpty(1000);
+        final Node<String> node = new Node<String>("a");
+        wheel.schedule(node, 10);
+
+        final List<Node<String>> due = new ArrayList<Node<String>>();
+        wheel.advance(1001, due);
+        assertEquals(1, due.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        final TimingWheel<String> wheel = new TimingWheel<String>();
+        final Node<String> a = new Node<String>("a");
+        final Node<String> b = new Node<String>("b");
+        final Node<String> c = new Node<String>("c");
+        wheel.schedule(a, 10);
+        wheel.schedule(b, 10);
+        wheel.schedule(c, 10);
+
+        wheel.cancel(b);
+        wheel.cancel(b);
+        wheel.schedule(c, 5000);
+        assertEquals(2, wheel.size());
+        assertFalse(b.isScheduled());
+
+        final List<Node<String>> due = new ArrayList<Node<String>>();
+        wheel.advance(10, due);
+        assertEquals(1, due.size());
+        assertEquals("a", due.get(0).value);
+
+        due.clear();
+        wheel.advance(5000, due);
+        assertEquals(1, due.size());
+        assertEquals("c", due.get(0).value);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class TimingWheelTicketRegistryTest {
+    private long now = 1700000000000L;
+    private TimingWheelTicketRegistry ticketRegistry;
+
+    @Before
+    public void setUp() {
+        this.ticketRegistry =
+                new TimingWheelTicketRegistry() {
+                    @Override
+                    protected long currentTimeMillis() {
+                        return now;
+                    }
+                };
+        this.ticketRegistry.setTicketGrantingTicketTimeToKillInSeconds(7200);
+        this.ticketRegistry.setServiceTicketTimeToKillInSeconds(10);
+    }
+
+    @Test
+    public void testAddGetDelete() {
+        final Ticket tgt = createTicket(TicketGrantingTicket.class, "TGT-1", new AtomicBoolean());
+        final Ticket st = createTicket(ServiceTicket.class, "ST-1", new AtomicBoolean());
+
+        this.ticketRegistry.addTicket(tgt);
+        this.ticketRegistry.addTicket(st);
+
+        assertSame(tgt, this.ticketRegistry.getTicket("TGT-1"));
+        assertSame(st, this.ticketRegistry.getTicket("ST-1"));
+        assertNull(this.ticketRegistry.getTicket("ST-2"));
+        assertEquals(2, this.ticketRegistry.getTickets().size());
+        assertEquals(1, this.ticketRegistry.sessionCount());
+        assertEquals(1, this.ticketRegistry.serviceTicketCount());
+        assertEquals(2, this.ticketRegistry.getScheduledCount());
+
+        assertTrue(this.ticketRegistry.deleteTicket("ST-1"));
+        assertFalse(this.ticketRegistry.deleteTicket("ST-1"));
+        assertNull(this.ticketRegistry.getTicket("ST-1"));
+        assertEquals(0, this.ticketRegistry.serviceTicketCount());
+        assertEquals(1, this.ticketRegistry.getScheduledCount());
+    }
+
+    @Test
+    public void testExpiredTicketsComeDue() {
+        final AtomicBoolean stExpired = new AtomicBoolean();
+        final AtomicBoolean tgtExpired = new AtomicBoolean();
+        this.ticketRegistry.addTicket(createTicket(ServiceTicket.class, "ST-1", stExpired));
+        this.ticketRegistry.addTicket(
+                createTicket(TicketGrantingTicket.class, "TGT-1", tgtExpired));
+
+        this.now += 9000;
+        assertTrue(this.ticketRegistry.pollExpiredTickets().isEmpty());
+
+        this.now += 1000;
+        stExpired.set(true);
+        final List<Ticket> expired = this.ticketRegistry.pollExpiredTickets();
+        assertEquals(1, expired.size());
+        assertEquals("ST-1", expired.get(0).getId());
+
+        // not deleted yet, so reported again
+        this.now += 1000;
+        assertEquals(1, this.ticketRegistry.pollExpiredTickets().size());
+        this.ticketRegistry.deleteTicket("ST-1");
+        this.now += 1000;
+        assertTrue(this.ticketRegistry.pollExpiredTickets().isEmpty());
+
+        // TGT still in use when first checked, checked again one time to kill later
+        this.now += 7200 * 1000L;
+        assertTrue(this.ticketRegistry.pollExpiredTickets().isEmpty());
+        assertEquals(1, this.ticketRegistry.getScheduledCount());
+        tgtExpired.set(true);
+        this.now += 7200 * 1000L;
+        assertEquals(1, this.ticketRegistry.pollExpiredTickets().size());
+    }
+
+    @Test
+    public void testCleaner() {
+        final AtomicBoolean expired = new AtomicBoolean(true);
+        final TicketGrantingTicket tgt = EasyMock.createMock(TicketGrantingTicket.class);
+        EasyMock.expect(tgt.getId()).andReturn("TGT-1").anyTimes();
+        EasyMock.expect(tgt.isExpired()).andReturn(true).anyTimes();
+        tgt.expire();
+        EasyMock.expectLastCall().once();
+        EasyMock.replay(tgt);
+
+        this.ticketRegistry.addTicket(tgt);
+        this.ticketRegistry.addTicket(createTicket(ServiceTicket.class, "ST-1", expired));
+
+        final TimingWheelTicketRegistryCleaner cleaner = new TimingWheelTicketRegistryCleaner();
+        cleaner.setTimingWheelTicketRegistry(this.ticketRegistry);
+
+        cleaner.clean();
+        assertEquals(2, this.ticketRegistry.getTickets().size());
+
+        this.now += 7200 * 1000L;
+        cleaner.clean();
+
+        EasyMock.verify(tgt);
+        assertTrue(this.ticketRegistry.getTickets().isEmpty());
+        assertEquals(0, this.ticketRegistry.getScheduledCount());
+        assertEquals(0, this.ticketRegistry.sessionCount());
+    }
+
+    private static <T extends Ticket> T createTicket(
+            Class<T> type, String id, final AtomicBoolean expired) {
+        final T ticket = EasyMock.createMock(type);
+        EasyMock.expect(ticket.getId()).andReturn(id).anyTimes();
+        EasyMock.expect(ticket.isExpired())
+                .andAnswer(
+                        new IAnswer<Boolean>() {
+                            public Boolean answer() {
+                                return expired.get();
+                            }
+                        })
+                .anyTimes();
+        EasyMock.replay(ticket);
+        return ticket;
+    }
+}
@@ -0,0 +1,42 @@
+import { test, expect } from "@playwright/test";
+import { config } from "../general-config";
+import { loginViaApi } from "../ux/utils/ux-general-utils";
+import {
+  measureLatencies,
+  summarizeLatencies,
+} from "./utils/api-latency-utils";
+
+// Tagged @latency, so that only the latency project runs them, one endpoint at
+// a time (./gradlew playwrightLatency, or
+//   npx playwright test --config=tests/uportal-pw.config.ts --project=latency).
+// Not serial, so that an endpoint over budget does not skip the later ones.
+test.describe("latency budgets", { tag: "@latency" }, () => {
+  for (const endpoint of config.latency.endpoints) {
+    test(endpoint.name, async ({ request }, testInfo) => {
+      await loginViaApi(request, config.users.admin);
+      const timings = await measureLatencies(
+        request,
+        `${config.url}${endpoint.path}`,
+        config.latency
+      );
+      const summary = summarizeLatencies(
+        endpoint,
+        config.latency.concurrency,
+        timings
+      );
+
+      // Attached to the report (and test-results) so trends can be tracked across builds
+      await testInfo.attach(`latency-${endpoint.name}.json`, {
+        body: JSON.stringify(summary, undefined, 2),
+        contentType: "application/json",
+      });
+      expect
+        .soft(summary.p50, `p50 of ${endpoint.path} in ms`)
+        .toBeLessThanOrEqual(endpoint.p50);
+      expect(
+        summary.p95,
+        `p95 of ${endpoint.path} in ms`
+      ).toBeLessThanOrEqual(endpoint.p95);
+    });
+  }
+});
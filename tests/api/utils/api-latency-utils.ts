@@ -0,0 +1,97 @@
+import { expect, APIRequestContext } from "@playwright/test";
+
+export interface LatencyOptions {
+  warmUpCalls: number;
+  concurrency: number;
+  rounds: number;
+}
+
+export interface LatencyBudget {
+  name: string;
+  path: string;
+  p50: number;
+  p95: number;
+}
+
+export interface LatencySummary {
+  name: string;
+  path: string;
+  budget: { p50: number; p95: number };
+  samples: number;
+  concurrency: number;
+  p50: number;
+  p95: number;
+  max: number;
+  mean: number;
+  timings: number[];
+}
+
+/*
+ * Warms up the endpoint with sequential calls, then calls it in rounds of
+ * concurrent calls and returns the latency of each call in ms.
+ */
+export async function measureLatencies(
+  request: APIRequestContext,
+  url: string,
+  options: LatencyOptions
+): Promise<number[]> {
+  for (let call = 0; call < options.warmUpCalls; call++) {
+    const response = await request.get(url);
+    expect(response.status()).toEqual(200);
+  }
+
+  const timings: number[] = [];
+  for (let round = 0; round < options.rounds; round++) {
+    const calls = Array.from({ length: options.concurrency }, () =>
+      timeCall(request, url)
+    );
+    timings.push(...(await Promise.all(calls)));
+  }
+  return timings;
+}
+
+/*
+ * Times one call;  the response body is fully read when get() resolves.
+ */
+async function timeCall(
+  request: APIRequestContext,
+  url: string
+): Promise<number> {
+  const start = Date.now();
+  const response = await request.get(url);
+  const elapsed = Date.now() - start;
+  expect(response.status()).toEqual(200);
+  return elapsed;
+}
+
+/*
+ * Nearest-rank percentile of the timings.
+ */
+export function percentile(timings: number[], percent: number): number {
+  const sorted = [...timings].sort((a, b) => a - b);
+  const rank = Math.ceil((percent / 100) * sorted.length);
+  return sorted[Math.max(0, rank - 1)];
+}
+
+export function summarizeLatencies(
+  endpoint: LatencyBudget,
+  concurrency: number,
+  timings: number[]
+): LatencySummary {
+  let total = 0;
+  for (const timing of timings) {
+    total += timing;
+  }
+  return {
+    name: endpoint.name,
+    path: endpoint.path,
+    budget: { p50: endpoint.p50, p95: endpoint.p95 },
+    samples: timings.length,
+    concurrency,
+    p50: percentile(timings, 50),
+    p95: percentile(timings, 95),
+    max: Math.max(...timings),
+    mean: Math.round(total / timings.length),
+    timings,
+  };
+}
@@ -34,4 +34,29 @@ export const config = {
     auditDateTimeTz:
       /^(\d{4})-(\d{2})-(\d{2}) (\d{2}):(\d{2}):(\d{2}) \+(\d{4})$/,
   },
+  latency: {
+    // Calls made to each endpoint before measuring, to warm up caches
+    warmUpCalls: 5,
+    // Calls in flight at once, repeated for the given number of rounds
+    concurrency: 4,
+    rounds: 10,
+    // Budgets in ms for the p50 and p95 of each endpoint (relative to url)
+    endpoints: [
+      { name: "portlet-list", path: "api/portlet-list/", p50: 250, p95: 750 },
+      {
+        name: "search",
+        path: "api/v5-0/portal/search?q=cartoon",
+        p50: 500,
+        p95: 1500,
+      },
+      {
+        name: "analytics-level",
+        path: "api/analytics/level",
+        p50: 100,
+        p95: 300,
+      },
+      { name: "userinfo", path: "api/v5-1/userinfo", p50: 250, p95: 750 },
+      { name: "layout", path: "api/v4-3/dlm/layout.json", p50: 500, p95: 1500 },
+    ],
+  },
 };
@@ -10,5 +10,18 @@ const config: PlaywrightTestConfig = {
   },
   reporter: [["list"], ["html", { open: "never" }]],
   retries: 2,
+  projects: [
+    { name: "e2e", grepInvert: /@latency/ },
+    // Run alone (--project=latency), so other tests do not skew its timings, and
+    // one endpoint at a time, so that the measurements do not load the portal
+    // for each other
+    {
+      name: "latency",
+      grep: /@latency/,
+      retries: 0,
+      workers: 1,
+      fullyParallel: false,
+    },
+  ],
 };
 export default config;